@@ -0,0 +1,158 @@
+package com.sourcegraph.toolchain.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Graph writer stage: collects data into batches and passes them to underlying writer on a dedicated thread,
+ * so that producer does not wait for underlying writer. Batches go through bounded queue, producer blocks
+ * when queue is full. Underlying writer is called from writer thread only, in the order data was produced
+ */
+public class AsyncGraphWriter implements GraphWriter {
+
+    private static final int BATCH_SIZE = 1024;
+
+    private final GraphWriter writer;
+
+    private final BlockingQueue<List<Object>> queue;
+
+    private List<Object> batch = new ArrayList<>(BATCH_SIZE);
+
+    private volatile IOException error;
+
+    private volatile long busyTime;
+    private long waitTime;
+
+    /**
+     * @param writer underlying writer
+     * @param queueSize maximum number of batches waiting to be written
+     */
+    public AsyncGraphWriter(GraphWriter writer, int queueSize) {
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        Thread thread = new Thread(this::run, "graph-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void writeRef(Ref r) throws IOException {
+        add(r);
+    }
+
+    @Override
+    public void writeDef(Def s) throws IOException {
+        add(s);
+    }
+
+    @Override
+    public void writeTier(String file, String tier) throws IOException {
+        add(new String[]{file, tier});
+    }
+
+    /**
+     * Waits until everything produced so far is passed to underlying writer, then flushes underlying writer
+     * @throws IOException if underlying writer failed
+     */
+    @Override
+    public void flush() throws IOException {
+        JfrEvents.Span span = JfrEvents.begin(JfrEvents.Type.FLUSH).set(JfrEvents.Field.WRITER, "async");
+        CountDownLatch done = new CountDownLatch(1);
+        add(done);
+        send();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for graph writer");
+        } finally {
+            span.commit();
+        }
+        checkError();
+    }
+
+    /**
+     * @return total time (ns) writer thread spent in underlying writer
+     */
+    public long getBusyTime() {
+        return busyTime;
+    }
+
+    /**
+     * @return total time (ns) producer spent waiting for free space in queue
+     */
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    private void add(Object item) throws IOException {
+        checkError();
+        batch.add(item);
+        if (batch.size() >= BATCH_SIZE) {
+            send();
+        }
+    }
+
+    private void send() throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for graph writer");
+        }
+        waitTime += System.nanoTime() - start;
+        batch = new ArrayList<>(BATCH_SIZE);
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Graph writer failed", error);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Object> items;
+            try {
+                items = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = System.nanoTime();
+            for (Object item : items) {
+                try {
+                    if (item instanceof CountDownLatch) {
+                        writer.flush();
+                        ((CountDownLatch) item).countDown();
+                    } else if (error != null) {
+                        // drop the rest, producer will see the error
+                    } else if (item instanceof Ref) {
+                        writer.writeRef((Ref) item);
+                    } else if (item instanceof Def) {
+                        writer.writeDef((Def) item);
+                    } else {
+                        String[] tier = (String[]) item;
+                        writer.writeTier(tier[0], tier[1]);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (error == null) {
+                        error = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                    if (item instanceof CountDownLatch) {
+                        ((CountDownLatch) item).countDown();
+                    }
+                }
+            }
+            busyTime += System.nanoTime() - start;
+        }
+    }
+}
@@ -3,13 +3,17 @@ package com.sourcegraph.toolchain.core;
 import com.google.gson.*;
 
 import java.lang.reflect.Type;
-import java.util.List;
 
 /**
  * Definition object
  */
 public class Def {
 
+    /**
+     * Modifier bit of exported definitions
+     */
+    public static final int PUBLIC = 1;
+
     /**
      * Definition key
      */
@@ -18,7 +22,7 @@ public class Def {
     /**
      * Definition kind
      */
-    public String kind;
+    public DefKind kind;
 
     /**
      * Definition name
@@ -51,9 +55,9 @@ public class Def {
     public int defEnd;
 
     /**
-     * Modifiers
+     * Modifier bits (PUBLIC)
      */
-    public List<String> modifiers;
+    public int modifiers;
 
     public String pkg;
 
@@ -101,44 +105,10 @@ public class Def {
             object.add("DefStart", new JsonPrimitive(sym.defStart));
             object.add("DefEnd", new JsonPrimitive(sym.defEnd));
 
-            boolean exported;
-            if (sym.modifiers != null) {
-                exported = sym.modifiers.contains("public");
-                object.add("Exported", new JsonPrimitive(exported));
-            } else {
-                exported = false;
-                object.add("Exported", new JsonPrimitive(false));
-            }
-
-            object.add("Local", new JsonPrimitive(!exported &&
-                    !(sym.kind.equals("PACKAGE") ||
-                            sym.kind.equals("ENUM") ||
-                            sym.kind.equals("CLASS") ||
-                            sym.kind.equals("ANNOTATION_TYPE") ||
-                            sym.kind.equals("INTERFACE") ||
-                            sym.kind.equals("ENUM_CONSTANT") ||
-                            sym.kind.equals("FIELD") ||
-                            sym.kind.equals("METHOD") ||
-                            sym.kind.equals("CONSTRUCTOR"))));
-
-            switch (sym.kind) {
-                case "ENUM":
-                case "CLASS":
-                case "INTERFACE":
-                case "ANNOTATION_TYPE":
-                    object.add("Kind", new JsonPrimitive("type"));
-                    break;
-                case "METHOD":
-                case "CONSTRUCTOR":
-                    object.add("Kind", new JsonPrimitive("func"));
-                    break;
-                case "PACKAGE":
-                    object.add("Kind", new JsonPrimitive("package"));
-                    break;
-                default:
-                    object.add("Kind", new JsonPrimitive("var"));
-                    break;
-            }
+            boolean exported = (sym.modifiers & PUBLIC) != 0;
+            object.add("Exported", new JsonPrimitive(exported));
+            object.add("Local", new JsonPrimitive(sym.kind.isLocal(exported)));
+            object.add("Kind", sym.kind.toJSON());
 
             object.add("Path", new JsonPrimitive(sym.defKey.formatPath()));
             object.add("TreePath", new JsonPrimitive(sym.defKey.formatTreePath()));
@@ -17,8 +17,23 @@ public class DefKey {
         this.path = path;
     }
 
+    /**
+     * Id assigned by KeyTable to canonical instance, -1 if key was not interned
+     */
+    int id = -1;
+
+    /**
+     * Formatted path, computed on demand
+     */
+    private String formattedPath;
+
     public String formatPath() {
-        return getPath().replace('.', '/').replace('$', '.');
+        String ret = formattedPath;
+        if (ret == null) {
+            ret = getPath().replace('.', '/').replace('$', '.');
+            formattedPath = ret;
+        }
+        return ret;
     }
 
     public String formatTreePath() {
@@ -56,6 +71,13 @@ public class DefKey {
         return path;
     }
 
+    /**
+     * @return id of this key in the KeyTable that interned it, -1 if this instance is not canonical
+     */
+    public int getId() {
+        return id;
+    }
+
     @Override
     public String toString() {
         return "DefKey{" +
@@ -0,0 +1,55 @@
+package com.sourcegraph.toolchain.core;
+
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Definition kind. Knows srclib kind it is written as and whether definitions of this kind are local
+ * unless exported, so serializer does not have to compare strings for every definition
+ */
+public enum DefKind {
+    PACKAGE("package", false),
+    ENUM("type", false),
+    CLASS("type", false),
+    ANNOTATION_TYPE("type", false),
+    INTERFACE("type", false),
+    ENUM_CONSTANT("var", false),
+    FIELD("var", false),
+    METHOD("func", false),
+    CONSTRUCTOR("func", false),
+    /**
+     * Variables, parameters, properties and enumerators
+     */
+    VAR("var", true);
+
+    private final String srclibKind;
+
+    private final boolean local;
+
+    // shared by all serialized definitions of this kind
+    private final JsonPrimitive json;
+
+    DefKind(String srclibKind, boolean local) {
+        this.srclibKind = srclibKind;
+        this.local = local;
+        this.json = new JsonPrimitive(srclibKind);
+    }
+
+    /**
+     * @return kind as written to graph output (type, func, package, var)
+     */
+    public String getSrclibKind() {
+        return srclibKind;
+    }
+
+    /**
+     * @param exported true if definition is exported
+     * @return true if definition of this kind is local
+     */
+    public boolean isLocal(boolean exported) {
+        return local && !exported;
+    }
+
+    JsonPrimitive toJSON() {
+        return json;
+    }
+}
@@ -0,0 +1,100 @@
+package com.sourcegraph.toolchain.core;
+
+import java.util.Arrays;
+
+/**
+ * Definitions by interned key id (see KeyTable). Open addressing with linear probing over parallel arrays
+ * of ids and definitions, so there is no entry object or boxed key per definition
+ */
+class DefTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int FREE = -1;
+
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private Def[] defs = new Def[INITIAL_CAPACITY];
+    private int size;
+
+    DefTable() {
+        Arrays.fill(ids, FREE);
+    }
+
+    /**
+     * @param id key id
+     * @return definition with given key id or null
+     */
+    Def get(int id) {
+        int mask = ids.length - 1;
+        for (int slot = hash(id) & mask; ids[slot] != FREE; slot = (slot + 1) & mask) {
+            if (ids[slot] == id) {
+                return defs[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds or replaces definition
+     * @param id key id
+     * @param def definition
+     */
+    void put(int id, Def def) {
+        if ((size + 1) * 2 > ids.length) {
+            grow();
+        }
+        int mask = ids.length - 1;
+        int slot = hash(id) & mask;
+        while (ids[slot] != FREE) {
+            if (ids[slot] == id) {
+                defs[slot] = def;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        ids[slot] = id;
+        defs[slot] = def;
+        size++;
+    }
+
+    /**
+     * @return number of definitions
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return all definitions in no particular order
+     */
+    Def[] toArray() {
+        Def[] ret = new Def[size];
+        int i = 0;
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (ids[slot] != FREE) {
+                ret[i++] = defs[slot];
+            }
+        }
+        return ret;
+    }
+
+    private void grow() {
+        int[] oldIds = ids;
+        Def[] oldDefs = defs;
+        ids = new int[oldIds.length * 2];
+        defs = new Def[oldDefs.length * 2];
+        Arrays.fill(ids, FREE);
+        size = 0;
+        for (int slot = 0; slot < oldIds.length; slot++) {
+            if (oldIds[slot] != FREE) {
+                put(oldIds[slot], oldDefs[slot]);
+            }
+        }
+    }
+
+    private static int hash(int id) {
+        // ids are dense, spread them so neighbours do not form long probe runs
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
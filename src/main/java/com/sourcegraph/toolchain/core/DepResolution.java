@@ -0,0 +1,28 @@
+package com.sourcegraph.toolchain.core;
+
+/**
+ * Result of resolving raw dependency: either target or error
+ */
+public class DepResolution {
+
+    /**
+     * Dependency being resolved
+     */
+    public RawDependency Raw;
+
+    /**
+     * Resolved target, null if dependency can't be resolved
+     */
+    public ResolvedTarget Target;
+
+    /**
+     * Resolution error, if any
+     */
+    public String Error;
+
+    public DepResolution(RawDependency raw, ResolvedTarget target, String error) {
+        this.Raw = raw;
+        this.Target = target;
+        this.Error = error;
+    }
+}
@@ -0,0 +1,186 @@
+package com.sourcegraph.toolchain.core;
+
+import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Collects diagnostic events (syntax errors, redefinitions, budget overruns etc) instead of logging each of them.
+ * Events are counted by kind, file and rule, first few examples of each kind are kept, and one summary
+ * is logged (and optionally written as JSON) at the end. Safe to use from multiple threads
+ */
+public class Diagnostics {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Diagnostics.class);
+
+    /**
+     * Default number of examples to keep for each kind of event
+     */
+    public static final int DEFAULT_SAMPLES = 5;
+
+    /**
+     * How many top files and rules to mention in summary
+     */
+    private static final int TOP = 5;
+
+    private final int samples;
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    public Diagnostics() {
+        this(DEFAULT_SAMPLES);
+    }
+
+    /**
+     * @param samples number of examples to keep for each kind of event
+     */
+    public Diagnostics(int samples) {
+        this.samples = samples;
+    }
+
+    /**
+     * Records event. Message is formatted (slf4j style) only when it is going to be kept as an example
+     * @param kind event kind, for example "syntax-error"
+     * @param file file event relates to, may be null
+     * @param rule grammar rule or other location detail, may be null
+     * @param format message format
+     * @param args message arguments
+     */
+    public void report(String kind, String file, String rule, String format, Object... args) {
+        Stats s = stats(kind);
+        long n = s.add(file, rule);
+        if (n <= samples) {
+            s.sample(MessageFormatter.arrayFormat(format, args).getMessage());
+        }
+    }
+
+    /**
+     * Records event without example
+     * @param kind event kind
+     * @param file file event relates to, may be null
+     * @param rule grammar rule or other location detail, may be null
+     */
+    public void count(String kind, String file, String rule) {
+        stats(kind).add(file, rule);
+    }
+
+    /**
+     * @param kind event kind
+     * @return number of events of given kind recorded so far
+     */
+    public long getCount(String kind) {
+        Stats s = stats.get(kind);
+        return s == null ? 0 : s.total.get();
+    }
+
+    /**
+     * Logs one summary line (plus examples) for each kind of event
+     */
+    public void logSummary() {
+        for (Map.Entry<String, Stats> entry : new TreeMap<>(stats).entrySet()) {
+            Stats s = entry.getValue();
+            LOGGER.warn("{}: {} event(s) in {} file(s), top files {}, top rules {}",
+                    entry.getKey(),
+                    s.total.get(),
+                    s.files.size(),
+                    top(s.files),
+                    top(s.rules));
+            for (String example : s.examples()) {
+                LOGGER.warn("{}: {}", entry.getKey(), example);
+            }
+        }
+    }
+
+    /**
+     * Writes all collected counters and examples as JSON
+     * @param file destination file
+     * @throws IOException
+     */
+    public void writeJSON(File file) throws IOException {
+        Map<String, Object> data = new TreeMap<>();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            Map<String, Object> kind = new LinkedHashMap<>();
+            kind.put("Total", s.total.get());
+            kind.put("Files", sums(s.files));
+            kind.put("Rules", sums(s.rules));
+            kind.put("Examples", s.examples());
+            data.put(entry.getKey(), kind);
+        }
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(data, w);
+        }
+    }
+
+    private Stats stats(String kind) {
+        Stats s = stats.get(kind);
+        if (s == null) {
+            s = new Stats();
+            Stats prev = stats.putIfAbsent(kind, s);
+            if (prev != null) {
+                s = prev;
+            }
+        }
+        return s;
+    }
+
+    private static String top(Map<String, LongAdder> counters) {
+        return counters.entrySet().stream().
+                sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum())).
+                limit(TOP).
+                map(entry -> entry.getKey() + " (" + entry.getValue().sum() + ')').
+                collect(Collectors.joining(", ", "[", "]"));
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        Map<String, Long> ret = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            ret.put(entry.getKey(), entry.getValue().sum());
+        }
+        return ret;
+    }
+
+    /**
+     * Counters of a single kind of events
+     */
+    private static class Stats {
+
+        final AtomicLong total = new AtomicLong();
+        final ConcurrentMap<String, LongAdder> files = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, LongAdder> rules = new ConcurrentHashMap<>();
+        private final List<String> examples = new ArrayList<>();
+
+        long add(String file, String rule) {
+            long n = total.incrementAndGet();
+            if (file != null) {
+                files.computeIfAbsent(file, k -> new LongAdder()).increment();
+            }
+            if (rule != null) {
+                rules.computeIfAbsent(rule, k -> new LongAdder()).increment();
+            }
+            return n;
+        }
+
+        synchronized void sample(String example) {
+            examples.add(example);
+        }
+
+        synchronized List<String> examples() {
+            return new ArrayList<>(examples);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.sourcegraph.toolchain.core;
+
+import java.io.IOException;
+import java.util.function.Predicate;
+
+/**
+ * Graph writer that passes to underlying writer only data that belongs to accepted files
+ */
+public class FilteringGraphWriter implements GraphWriter {
+
+    private final GraphWriter writer;
+
+    private final Predicate<String> accept;
+
+    /**
+     * @param writer underlying writer
+     * @param accept decides if data of a given file (path relative to current working directory) should be written
+     */
+    public FilteringGraphWriter(GraphWriter writer, Predicate<String> accept) {
+        this.writer = writer;
+        this.accept = accept;
+    }
+
+    @Override
+    public void writeRef(Ref r) throws IOException {
+        if (accept.test(r.file)) {
+            writer.writeRef(r);
+        }
+    }
+
+    @Override
+    public void writeDef(Def s) throws IOException {
+        if (accept.test(s.file)) {
+            writer.writeDef(s);
+        }
+    }
+
+    @Override
+    public void writeTier(String file, String tier) throws IOException {
+        if (accept.test(file)) {
+            writer.writeTier(file, tier);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+}
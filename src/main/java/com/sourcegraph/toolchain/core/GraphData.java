@@ -1,56 +1,140 @@
 package com.sourcegraph.toolchain.core;
 
 import com.google.gson.*;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
-import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.*;
 
 /**
- * Implementation of graph writer that collects references and definitions and then writes them as JSON
+ * Implementation of graph writer that collects references and definitions and then writes them as JSON.
+ * Output follows canonical GraphOrder: references are kept in per-file runs that are sorted and merged
+ * when data is serialized, definitions are sorted by path
  */
 public class GraphData implements GraphWriter {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(GraphData.class);
+    private final DefTable defs = new DefTable();
+    // file -> references made in file
+    private final Map<String, Collection<Ref>> refs = new HashMap<>();
+    private final Map<String, String> tiers = new TreeMap<>();
 
-    private final Map<Def, Def> defs = new LinkedHashMap<>();
-    private final Collection<Ref> refs = new LinkedHashSet<>();
+    private final Diagnostics diagnostics;
+
+    private final KeyTable keys;
+
+    public GraphData() {
+        this(new Diagnostics());
+    }
+
+    /**
+     * @param diagnostics collector to report redefinitions to
+     */
+    public GraphData(Diagnostics diagnostics) {
+        this(diagnostics, new KeyTable());
+    }
+
+    /**
+     * @param diagnostics collector to report redefinitions to
+     * @param keys table that interns keys of definitions. Definitions are looked up by key id, keys that come
+     *             already interned by this table are not hashed again. Table is only touched for keys that are
+     *             not interned, so producer may share it with writer thread if it interns keys itself
+     */
+    public GraphData(Diagnostics diagnostics, KeyTable keys) {
+        this.diagnostics = diagnostics;
+        this.keys = keys;
+    }
 
     @Override
     public void writeRef(Ref r) throws IOException {
-        refs.add(r);
+        Collection<Ref> fileRefs = refs.get(r.file);
+        if (fileRefs == null) {
+            fileRefs = new HashSet<>();
+            refs.put(r.file, fileRefs);
+        }
+        fileRefs.add(r);
     }
 
     @Override
     public void writeDef(Def s) throws IOException {
-        Def prev = defs.put(s, s);
-        if (prev != null) {
-            LOGGER.warn("{} already defined in {} at {}:{}, redefinition attempt in {} at {}:{}",
-                    prev.defKey.getPath(),
-                    prev.file,
-                    prev.defStart,
-                    prev.defEnd,
-                    s.file,
-                    s.defStart,
-                    s.defEnd);
+        int id = s.defKey.getId();
+        if (id < 0) {
+            id = keys.id(s.defKey);
+            s.defKey = keys.key(id);
+        }
+        Def prev = defs.get(id);
+        if (prev == null) {
+            defs.put(id, s);
+            return;
+        }
+        // keeping the same definition no matter which one came first
+        Def winner = s;
+        Def loser = prev;
+        if (GraphOrder.DEF_LOCATIONS.compare(prev, s) <= 0) {
+            winner = prev;
+            loser = s;
+        } else {
+            defs.put(id, s);
         }
+        diagnostics.report("redefinition",
+                loser.file,
+                null,
+                "{} already defined in {} at {}:{}, redefinition attempt in {} at {}:{}",
+                winner.defKey.getPath(),
+                winner.file,
+                winner.defStart,
+                winner.defEnd,
+                loser.file,
+                loser.defStart,
+                loser.defEnd);
+    }
+
+    @Override
+    public void writeTier(String file, String tier) throws IOException {
+        tiers.put(PathUtil.relativizeCwd(file), tier);
     }
 
     @Override
     public void flush() throws IOException {
     }
 
+    /**
+     * @return definitions in canonical order
+     */
+    List<Def> sortedDefs() {
+        Def[] ret = defs.toArray();
+        Arrays.sort(ret, GraphOrder.DEFS);
+        return Arrays.asList(ret);
+    }
+
+    /**
+     * Sorts each file's run of references and merges runs, since runs do not overlap merging is just
+     * concatenation in file order
+     * @return references in canonical order
+     */
+    List<Ref> sortedRefs() {
+        String[] files = refs.keySet().toArray(new String[refs.size()]);
+        Arrays.sort(files);
+        int size = 0;
+        for (Collection<Ref> fileRefs : refs.values()) {
+            size += fileRefs.size();
+        }
+        List<Ref> ret = new ArrayList<>(size);
+        for (String file : files) {
+            Collection<Ref> fileRefs = refs.get(file);
+            Ref[] run = fileRefs.toArray(new Ref[fileRefs.size()]);
+            Arrays.sort(run, GraphOrder.REFS_IN_FILE);
+            Collections.addAll(ret, run);
+        }
+        return ret;
+    }
+
     static class JSONSerializer implements JsonSerializer<GraphData> {
         @Override
         public JsonElement serialize(GraphData src, Type typeOfSrc, JsonSerializationContext context) {
             JsonObject object = new JsonObject();
-            object.add("Defs", context.serialize(src.defs.keySet()));
-            object.add("Refs", context.serialize(src.refs));
+            object.add("Defs", context.serialize(src.sortedDefs()));
+            object.add("Refs", context.serialize(src.sortedRefs()));
+            object.add("Tiers", context.serialize(src.tiers));
             return object;
         }
     }
@@ -0,0 +1,565 @@
+package com.sourcegraph.toolchain.core;
+
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * In-memory index of graph output (Defs/Refs JSON as written by GraphData) for point and range lookups by file
+ * offset and lookups by definition path. References live in parallel int arrays sorted by (file, start, end), so
+ * each file owns a contiguous slice; a running maximum of end offsets over the slice turns it into a static
+ * interval index (binary search for last interval starting before query end, then walk back while running
+ * maximum reaches query start). Definitions get the same per-file index. Definition targets (repo, unit type,
+ * unit, path) are hashed to ids, and references of each target are kept as a slice of one int array.
+ * Offsets and ranges are inclusive, as in graph output
+ */
+public class GraphIndex {
+
+    private static final int NO_DEF = -1;
+
+    // file names and their slices of refs and defs
+    private final List<String> files = new ArrayList<>();
+    private final Map<String, Integer> fileIds = new HashMap<>();
+    private int[] fileRefs;
+    private int[] fileDefs;
+
+    // references sorted by (file, start, end)
+    private int refCount;
+    private int[] refFile = new int[1024];
+    private int[] refStart = new int[1024];
+    private int[] refEnd = new int[1024];
+    private int[] refTarget = new int[1024];
+    private BitSet refIsDef = new BitSet();
+    private int[] refMaxEnd;
+
+    // definitions sorted by (file, start, end)
+    private final List<Definition> defs = new ArrayList<>();
+    private int[] defStart;
+    private int[] defMaxEnd;
+
+    // targets: key -> id, id -> key parts, definition and slice of references
+    private final Map<String, Integer> targetIds = new HashMap<>();
+    private final List<String[]> targets = new ArrayList<>();
+    private int[] targetDef;
+    private int[] targetRefs;
+    private int[] refsByTarget;
+
+    private GraphIndex() {
+    }
+
+    /**
+     * Loads graph output
+     * @param file graph JSON file
+     * @return index
+     * @throws IOException
+     */
+    public static GraphIndex load(File file) throws IOException {
+        try (Reader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8),
+                1 << 16)) {
+            return load(r);
+        }
+    }
+
+    /**
+     * Loads graph output
+     * @param r reader of graph JSON
+     * @return index
+     * @throws IOException
+     */
+    public static GraphIndex load(Reader r) throws IOException {
+        GraphIndex index = new GraphIndex();
+        JsonReader reader = new JsonReader(r);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "Defs":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            index.readDef(reader);
+                        }
+                        reader.endArray();
+                        break;
+                    case "Refs":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            index.readRef(reader);
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed graph output: " + e.getMessage(), e);
+        }
+        index.build();
+        return index;
+    }
+
+    /**
+     * @return number of references
+     */
+    public int getRefCount() {
+        return refCount;
+    }
+
+    /**
+     * @return number of definitions
+     */
+    public int getDefCount() {
+        return defs.size();
+    }
+
+    /**
+     * @return approximate heap taken by index arrays, definitions and strings not included
+     */
+    public long getArraysSize() {
+        long size = (long) refCount * 4 * 5 + refCount / 8;
+        size += (long) targets.size() * 4 * 2 + (long) files.size() * 4 * 2 + (long) defs.size() * 4 * 2;
+        return size;
+    }
+
+    /**
+     * @param file file name as in graph output
+     * @param offset offset in file
+     * @return references whose range includes offset, in (start, end) order
+     */
+    public List<Reference> refsAt(String file, int offset) {
+        return refsIn(file, offset, offset);
+    }
+
+    /**
+     * @param file file name as in graph output
+     * @param start range start
+     * @param end range end (inclusive)
+     * @return references that overlap range, in (start, end) order
+     */
+    public List<Reference> refsIn(String file, int start, int end) {
+        Integer id = fileIds.get(file);
+        if (id == null) {
+            return new ArrayList<>();
+        }
+        List<Reference> ret = new ArrayList<>();
+        int from = fileRefs[id];
+        for (int i = last(refStart, from, fileRefs[id + 1], end); i >= from && refMaxEnd[i] >= start; i--) {
+            if (refEnd[i] >= start) {
+                ret.add(reference(i));
+            }
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    /**
+     * @param file file name as in graph output
+     * @param start range start
+     * @param end range end (inclusive)
+     * @return definitions whose (name) range overlaps given one
+     */
+    public List<Definition> defsIn(String file, int start, int end) {
+        Integer id = fileIds.get(file);
+        if (id == null) {
+            return new ArrayList<>();
+        }
+        List<Definition> ret = new ArrayList<>();
+        int from = fileDefs[id];
+        for (int i = last(defStart, from, fileDefs[id + 1], end); i >= from && defMaxEnd[i] >= start; i--) {
+            if (defs.get(i).end >= start) {
+                ret.add(defs.get(i));
+            }
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    /**
+     * @param path definition path of current unit
+     * @return definition or null
+     */
+    public Definition def(String path) {
+        Integer id = targetIds.get(targetKey(null, null, null, path));
+        return id == null || targetDef[id] == NO_DEF ? null : defs.get(targetDef[id]);
+    }
+
+    /**
+     * @param path definition path of current unit
+     * @return references to definition
+     */
+    public List<Reference> refs(String path) {
+        return refs(null, null, null, path);
+    }
+
+    /**
+     * @param repo repository of definition, null for current one
+     * @param unitType unit type of definition, null for current one
+     * @param unit unit of definition, null for current one
+     * @param path definition path
+     * @return references to definition, in (file, start, end) order
+     */
+    public List<Reference> refs(String repo, String unitType, String unit, String path) {
+        Integer id = targetIds.get(targetKey(repo, unitType, unit, path));
+        if (id == null) {
+            return new ArrayList<>();
+        }
+        List<Reference> ret = new ArrayList<>(targetRefs[id + 1] - targetRefs[id]);
+        for (int i = targetRefs[id]; i < targetRefs[id + 1]; i++) {
+            ret.add(reference(refsByTarget[i]));
+        }
+        return ret;
+    }
+
+    private Reference reference(int i) {
+        String[] target = targets.get(refTarget[i]);
+        return new Reference(target[0], target[1], target[2], target[3],
+                files.get(refFile[i]), refStart[i], refEnd[i], refIsDef.get(i));
+    }
+
+    private void readDef(JsonReader reader) throws IOException {
+        Definition def = new Definition();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "File":
+                    def.file = files.get(fileId(reader.nextString()));
+                    break;
+                case "Name":
+                    def.name = reader.nextString();
+                    break;
+                case "DefStart":
+                    def.start = reader.nextInt();
+                    break;
+                case "DefEnd":
+                    def.end = reader.nextInt();
+                    break;
+                case "Exported":
+                    def.exported = reader.nextBoolean();
+                    break;
+                case "Local":
+                    def.local = reader.nextBoolean();
+                    break;
+                case "Kind":
+                    def.kind = reader.nextString().intern();
+                    break;
+                case "Path":
+                    def.path = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (def.file == null) {
+            def.file = files.get(fileId(""));
+        }
+        defs.add(def);
+    }
+
+    private void readRef(JsonReader reader) throws IOException {
+        String repo = null;
+        String unitType = null;
+        String unit = null;
+        String path = null;
+        int file = -1;
+        int start = 0;
+        int end = 0;
+        boolean def = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "DefRepo":
+                    repo = nextString(reader);
+                    break;
+                case "DefUnitType":
+                    unitType = nextString(reader);
+                    break;
+                case "DefUnit":
+                    unit = nextString(reader);
+                    break;
+                case "DefPath":
+                    path = reader.nextString();
+                    break;
+                case "File":
+                    file = fileId(reader.nextString());
+                    break;
+                case "Start":
+                    start = reader.nextInt();
+                    break;
+                case "End":
+                    end = reader.nextInt();
+                    break;
+                case "Def":
+                    def = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (file < 0) {
+            file = fileId("");
+        }
+        if (refCount == refFile.length) {
+            int capacity = refCount * 2;
+            refFile = Arrays.copyOf(refFile, capacity);
+            refStart = Arrays.copyOf(refStart, capacity);
+            refEnd = Arrays.copyOf(refEnd, capacity);
+            refTarget = Arrays.copyOf(refTarget, capacity);
+        }
+        refFile[refCount] = file;
+        refStart[refCount] = start;
+        refEnd[refCount] = end;
+        refTarget[refCount] = targetId(repo, unitType, unit, path);
+        refIsDef.set(refCount, def);
+        refCount++;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private int fileId(String file) {
+        Integer id = fileIds.get(file);
+        if (id == null) {
+            id = files.size();
+            fileIds.put(file, id);
+            files.add(file);
+        }
+        return id;
+    }
+
+    private int targetId(String repo, String unitType, String unit, String path) {
+        String key = targetKey(repo, unitType, unit, path);
+        Integer id = targetIds.get(key);
+        if (id == null) {
+            id = targets.size();
+            targetIds.put(key, id);
+            targets.add(new String[]{repo, unitType, unit, path});
+        }
+        return id;
+    }
+
+    private static String targetKey(String repo, String unitType, String unit, String path) {
+        if (repo == null && unitType == null && unit == null) {
+            return path;
+        }
+        return repo + '\0' + unitType + '\0' + unit + '\0' + path;
+    }
+
+    /**
+     * Sorts references and definitions, computes per-file slices, running maximums and per-target slices
+     */
+    private void build() {
+        // file ids follow names, so references of a target come in graph output order
+        String[] names = files.toArray(new String[files.size()]);
+        Arrays.sort(names);
+        int[] renumbered = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            renumbered[fileIds.get(names[i])] = i;
+            fileIds.put(names[i], i);
+        }
+        files.clear();
+        Collections.addAll(files, names);
+        for (int i = 0; i < refCount; i++) {
+            refFile[i] = renumbered[refFile[i]];
+        }
+
+        sortRefs();
+        refFile = Arrays.copyOf(refFile, refCount);
+        refStart = Arrays.copyOf(refStart, refCount);
+        refEnd = Arrays.copyOf(refEnd, refCount);
+        refTarget = Arrays.copyOf(refTarget, refCount);
+
+        fileRefs = slices(refFile, refCount, files.size());
+        refMaxEnd = new int[refCount];
+        for (int i = 0; i < refCount; i++) {
+            boolean first = i == 0 || refFile[i] != refFile[i - 1];
+            refMaxEnd[i] = first ? refEnd[i] : Math.max(refMaxEnd[i - 1], refEnd[i]);
+        }
+
+        defs.sort(Comparator.<Definition>comparingInt(def -> fileIds.get(def.file)).
+                thenComparingInt(def -> def.start).
+                thenComparingInt(def -> def.end));
+        int[] defFile = new int[defs.size()];
+        defStart = new int[defs.size()];
+        defMaxEnd = new int[defs.size()];
+        for (int i = 0; i < defs.size(); i++) {
+            Definition def = defs.get(i);
+            defFile[i] = fileIds.get(def.file);
+            defStart[i] = def.start;
+            boolean first = i == 0 || defFile[i] != defFile[i - 1];
+            defMaxEnd[i] = first ? def.end : Math.max(defMaxEnd[i - 1], def.end);
+        }
+        fileDefs = slices(defFile, defFile.length, files.size());
+
+        int[] defTarget = new int[defs.size()];
+        for (int i = 0; i < defs.size(); i++) {
+            defTarget[i] = targetId(null, null, null, defs.get(i).path);
+        }
+        targetDef = new int[targets.size()];
+        Arrays.fill(targetDef, NO_DEF);
+        for (int i = defs.size() - 1; i >= 0; i--) {
+            targetDef[defTarget[i]] = i;
+        }
+
+        targetRefs = slices(refTarget, refCount, targets.size());
+        refsByTarget = new int[refCount];
+        int[] next = Arrays.copyOf(targetRefs, targets.size());
+        for (int i = 0; i < refCount; i++) {
+            refsByTarget[next[refTarget[i]]++] = i;
+        }
+    }
+
+    /**
+     * Sorts references by (file, start, end) unless they already are (graph output is written in that order)
+     */
+    private void sortRefs() {
+        boolean sorted = true;
+        for (int i = 1; i < refCount && sorted; i++) {
+            sorted = compareRefs(i - 1, i) <= 0;
+        }
+        if (sorted) {
+            return;
+        }
+        Integer[] order = new Integer[refCount];
+        for (int i = 0; i < refCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, this::compareRefs);
+        int[] file = new int[refCount];
+        int[] start = new int[refCount];
+        int[] end = new int[refCount];
+        int[] target = new int[refCount];
+        BitSet isDef = new BitSet(refCount);
+        for (int i = 0; i < refCount; i++) {
+            int j = order[i];
+            file[i] = refFile[j];
+            start[i] = refStart[j];
+            end[i] = refEnd[j];
+            target[i] = refTarget[j];
+            isDef.set(i, refIsDef.get(j));
+        }
+        refFile = file;
+        refStart = start;
+        refEnd = end;
+        refTarget = target;
+        refIsDef = isDef;
+    }
+
+    private int compareRefs(int a, int b) {
+        int c = Integer.compare(refFile[a], refFile[b]);
+        if (c == 0) {
+            c = Integer.compare(refStart[a], refStart[b]);
+        }
+        if (c == 0) {
+            c = Integer.compare(refEnd[a], refEnd[b]);
+        }
+        return c;
+    }
+
+    /**
+     * @param keys sorted owner id of each item
+     * @param count number of items
+     * @param owners number of owners
+     * @return offsets, items of owner i are [ret[i], ret[i + 1])
+     */
+    private static int[] slices(int[] keys, int count, int owners) {
+        int[] ret = new int[owners + 1];
+        for (int i = 0; i < count; i++) {
+            ret[keys[i] + 1]++;
+        }
+        for (int i = 0; i < owners; i++) {
+            ret[i + 1] += ret[i];
+        }
+        return ret;
+    }
+
+    /**
+     * @return index of last item in [from, to) with value <= key, from - 1 if there is none
+     */
+    private static int last(int[] values, int from, int to, int key) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Definition as in graph output
+     */
+    public static class Definition {
+        @SerializedName("File")
+        public String file;
+        @SerializedName("Name")
+        public String name;
+        @SerializedName("DefStart")
+        public int start;
+        @SerializedName("DefEnd")
+        public int end;
+        @SerializedName("Exported")
+        public boolean exported;
+        @SerializedName("Local")
+        public boolean local;
+        @SerializedName("Kind")
+        public String kind;
+        @SerializedName("Path")
+        public String path;
+    }
+
+    /**
+     * Reference as in graph output
+     */
+    public static class Reference {
+        @SerializedName("DefRepo")
+        public final String repo;
+        @SerializedName("DefUnitType")
+        public final String unitType;
+        @SerializedName("DefUnit")
+        public final String unit;
+        @SerializedName("DefPath")
+        public final String path;
+        @SerializedName("File")
+        public final String file;
+        @SerializedName("Start")
+        public final int start;
+        @SerializedName("End")
+        public final int end;
+        @SerializedName("Def")
+        public final boolean def;
+
+        Reference(String repo,
+                  String unitType,
+                  String unit,
+                  String path,
+                  String file,
+                  int start,
+                  int end,
+                  boolean def) {
+            this.repo = repo;
+            this.unitType = unitType;
+            this.unit = unit;
+            this.path = path;
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.def = def;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.sourcegraph.toolchain.core;
+
+import java.util.Comparator;
+
+/**
+ * Canonical ordering of graph output. Output that follows it does not depend on the order files were processed in,
+ * number of threads or cache state, so identical sources always produce identical bytes
+ */
+public class GraphOrder {
+
+    /**
+     * Definitions are ordered by path, then by location
+     */
+    public static final Comparator<Def> DEFS = (a, b) -> {
+        int ret = a.defKey.formatPath().compareTo(b.defKey.formatPath());
+        if (ret != 0) {
+            return ret;
+        }
+        ret = compareOrigins(a.defKey, b.defKey);
+        if (ret != 0) {
+            return ret;
+        }
+        return compareLocations(a, b);
+    };
+
+    /**
+     * Definitions with the same key are ordered by file, then by start and end offsets. When the same key is defined
+     * more than once, the first definition in this order wins
+     */
+    public static final Comparator<Def> DEF_LOCATIONS = GraphOrder::compareLocations;
+
+    /**
+     * References are ordered by file, then by start and end offsets, then by target
+     */
+    public static final Comparator<Ref> REFS = (a, b) -> {
+        int ret = compare(a.file, b.file);
+        if (ret != 0) {
+            return ret;
+        }
+        return compareInFile(a, b);
+    };
+
+    /**
+     * References of the same file are ordered by start and end offsets, then by target
+     */
+    public static final Comparator<Ref> REFS_IN_FILE = GraphOrder::compareInFile;
+
+    private static int compareInFile(Ref a, Ref b) {
+        int ret = Integer.compare(a.start, b.start);
+        if (ret != 0) {
+            return ret;
+        }
+        ret = Integer.compare(a.end, b.end);
+        if (ret != 0) {
+            return ret;
+        }
+        ret = a.defKey.formatPath().compareTo(b.defKey.formatPath());
+        if (ret != 0) {
+            return ret;
+        }
+        ret = compareOrigins(a.defKey, b.defKey);
+        if (ret != 0) {
+            return ret;
+        }
+        ret = Boolean.compare(a.def, b.def);
+        if (ret != 0) {
+            return ret;
+        }
+        ret = compare(a.defRepo, b.defRepo);
+        if (ret != 0) {
+            return ret;
+        }
+        ret = compare(a.defUnitType, b.defUnitType);
+        if (ret != 0) {
+            return ret;
+        }
+        return compare(a.defUnit, b.defUnit);
+    }
+
+    private static int compareLocations(Def a, Def b) {
+        int ret = compare(a.file, b.file);
+        if (ret != 0) {
+            return ret;
+        }
+        ret = Integer.compare(a.defStart, b.defStart);
+        if (ret != 0) {
+            return ret;
+        }
+        return Integer.compare(a.defEnd, b.defEnd);
+    }
+
+    private static int compare(String a, String b) {
+        if (a == b) {
+            return 0;
+        }
+        if (a == null) {
+            return -1;
+        }
+        if (b == null) {
+            return 1;
+        }
+        return a.compareTo(b);
+    }
+
+    private static int compareOrigins(DefKey a, DefKey b) {
+        if (a.getOrigin() == b.getOrigin()) {
+            return 0;
+        }
+        if (a.getOrigin() == null) {
+            return -1;
+        }
+        if (b.getOrigin() == null) {
+            return 1;
+        }
+        return a.getOrigin().compareTo(b.getOrigin());
+    }
+}
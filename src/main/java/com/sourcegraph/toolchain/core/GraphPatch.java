@@ -0,0 +1,157 @@
+package com.sourcegraph.toolchain.core;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.*;
+
+/**
+ * Applies results of incremental graph run to previous graph output: drops everything previous output had for
+ * re-graphed files and adds new data. Result keeps canonical GraphOrder
+ */
+public class GraphPatch {
+
+    private static final Comparator<JsonObject> DEFS = (a, b) -> {
+        int ret = string(a, "Path").compareTo(string(b, "Path"));
+        if (ret != 0) {
+            return ret;
+        }
+        return compareDefLocations(a, b);
+    };
+
+    private static final Comparator<JsonObject> REFS = (a, b) -> {
+        int ret = string(a, "File").compareTo(string(b, "File"));
+        if (ret != 0) {
+            return ret;
+        }
+        ret = Integer.compare(integer(a, "Start"), integer(b, "Start"));
+        if (ret != 0) {
+            return ret;
+        }
+        ret = Integer.compare(integer(a, "End"), integer(b, "End"));
+        if (ret != 0) {
+            return ret;
+        }
+        ret = string(a, "DefPath").compareTo(string(b, "DefPath"));
+        if (ret != 0) {
+            return ret;
+        }
+        ret = Boolean.compare(a.get("Def").getAsBoolean(), b.get("Def").getAsBoolean());
+        if (ret != 0) {
+            return ret;
+        }
+        ret = string(a, "DefRepo").compareTo(string(b, "DefRepo"));
+        if (ret != 0) {
+            return ret;
+        }
+        ret = string(a, "DefUnitType").compareTo(string(b, "DefUnitType"));
+        if (ret != 0) {
+            return ret;
+        }
+        return string(a, "DefUnit").compareTo(string(b, "DefUnit"));
+    };
+
+    /**
+     * Merges graph outputs
+     * @param previous previous graph output
+     * @param current output produced for re-graphed files only
+     * @param files re-graphed (changed, deleted or affected) files, relative to current working directory
+     * @return merged output
+     */
+    public static JsonObject merge(JsonObject previous, JsonObject current, Set<String> files) {
+        JsonObject ret = new JsonObject();
+
+        // definitions, deduplicated by path
+        Map<String, JsonObject> defs = new HashMap<>();
+        for (JsonObject def : objects(previous, "Defs")) {
+            if (!files.contains(string(def, "File"))) {
+                defs.put(string(def, "Path"), def);
+            }
+        }
+        for (JsonObject def : objects(current, "Defs")) {
+            String path = string(def, "Path");
+            JsonObject prev = defs.get(path);
+            if (prev == null || compareDefLocations(def, prev) < 0) {
+                defs.put(path, def);
+            }
+        }
+        List<JsonObject> sortedDefs = new ArrayList<>(defs.values());
+        sortedDefs.sort(DEFS);
+        ret.add("Defs", array(sortedDefs));
+
+        List<JsonObject> refs = new ArrayList<>();
+        for (JsonObject ref : objects(previous, "Refs")) {
+            if (!files.contains(string(ref, "File"))) {
+                refs.add(ref);
+            }
+        }
+        refs.addAll(objects(current, "Refs"));
+        refs.sort(REFS);
+        ret.add("Refs", array(refs));
+
+        Map<String, JsonElement> tiers = new TreeMap<>();
+        JsonObject previousTiers = previous.getAsJsonObject("Tiers");
+        if (previousTiers != null) {
+            for (Map.Entry<String, JsonElement> entry : previousTiers.entrySet()) {
+                if (!files.contains(entry.getKey())) {
+                    tiers.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        JsonObject currentTiers = current.getAsJsonObject("Tiers");
+        if (currentTiers != null) {
+            for (Map.Entry<String, JsonElement> entry : currentTiers.entrySet()) {
+                tiers.put(entry.getKey(), entry.getValue());
+            }
+        }
+        JsonObject tiersObject = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : tiers.entrySet()) {
+            tiersObject.add(entry.getKey(), entry.getValue());
+        }
+        ret.add("Tiers", tiersObject);
+        return ret;
+    }
+
+    private static int compareDefLocations(JsonObject a, JsonObject b) {
+        int ret = string(a, "File").compareTo(string(b, "File"));
+        if (ret != 0) {
+            return ret;
+        }
+        ret = Integer.compare(integer(a, "DefStart"), integer(b, "DefStart"));
+        if (ret != 0) {
+            return ret;
+        }
+        return Integer.compare(integer(a, "DefEnd"), integer(b, "DefEnd"));
+    }
+
+    private static List<JsonObject> objects(JsonObject object, String name) {
+        JsonArray array = object.getAsJsonArray(name);
+        if (array == null) {
+            return Collections.emptyList();
+        }
+        List<JsonObject> ret = new ArrayList<>(array.size());
+        for (JsonElement element : array) {
+            ret.add(element.getAsJsonObject());
+        }
+        return ret;
+    }
+
+    private static JsonArray array(Collection<JsonObject> objects) {
+        JsonArray ret = new JsonArray();
+        for (JsonObject object : objects) {
+            ret.add(object);
+        }
+        return ret;
+    }
+
+    private static String string(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? "" : element.getAsString();
+    }
+
+    private static int integer(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return element == null || element.isJsonNull() ? 0 : element.getAsInt();
+    }
+}
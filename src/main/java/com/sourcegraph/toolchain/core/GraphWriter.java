@@ -21,6 +21,15 @@ public interface GraphWriter {
      */
     void writeDef(Def s) throws IOException;
 
+    /**
+     * Records how thoroughly file was processed, ignored by default
+     * @param file source file
+     * @param tier processing tier name (for example "full" or "lexer-only")
+     * @throws IOException
+     */
+    default void writeTier(String file, String tier) throws IOException {
+    }
+
     /**
      * Flush underlying streams
      * @throws IOException
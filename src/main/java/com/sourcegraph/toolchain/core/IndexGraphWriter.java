@@ -0,0 +1,334 @@
+package com.sourcegraph.toolchain.core;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Graph writer that produces immutable sorted index file for {@link MappedGraphIndex}. References and definitions are
+ * collected by GraphData (so duplicates and redefinitions are resolved exactly as in JSON output), then
+ * {@link #writeIndex(File)} turns them into string table, definition table sorted by path, references sorted by
+ * (file, start) and definition targets with slices of references pointing to them. See MappedGraphIndex for layout
+ */
+public class IndexGraphWriter implements GraphWriter {
+
+    private final GraphData data;
+
+    /**
+     * @param data graph data to collect references and definitions into, may be shared with JSON output
+     */
+    public IndexGraphWriter(GraphData data) {
+        this.data = data;
+    }
+
+    @Override
+    public void writeRef(Ref r) throws IOException {
+        data.writeRef(r);
+    }
+
+    @Override
+    public void writeDef(Def s) throws IOException {
+        data.writeDef(s);
+    }
+
+    @Override
+    public void writeTier(String file, String tier) throws IOException {
+        data.writeTier(file, tier);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        data.flush();
+    }
+
+    /**
+     * Writes index of collected data. File is written next to destination and moved over it when complete,
+     * so readers never see partial index
+     * @param file destination file
+     * @throws IOException
+     */
+    public void writeIndex(File file) throws IOException {
+        List<Def> defs = data.sortedDefs();
+        List<Ref> refs = data.sortedRefs();
+
+        // string table sorted by UTF-8 bytes, reader compares strings without decoding them
+        Map<String, String> relativized = new HashMap<>();
+        Set<String> strings = new HashSet<>();
+        for (Def def : defs) {
+            strings.add(relativize(relativized, def.file));
+            strings.add(def.name);
+            strings.add(def.kind.getSrclibKind());
+            strings.add(def.defKey.formatPath());
+        }
+        for (Ref ref : refs) {
+            strings.add(relativize(relativized, ref.file));
+            strings.add(ref.defKey.formatPath());
+            strings.add(ref.defRepo);
+            strings.add(ref.defUnitType);
+            strings.add(ref.defUnit);
+        }
+        strings.remove(null);
+        byte[][] bytes = new byte[strings.size()][];
+        int n = 0;
+        for (String s : strings) {
+            bytes[n++] = s.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(bytes, MappedGraphIndex::compare);
+        Map<String, Integer> ids = new HashMap<>(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            ids.put(new String(bytes[i], StandardCharsets.UTF_8), i);
+        }
+
+        // definition targets, numbered in order of first appearance
+        Map<String, Integer> targetIds = new HashMap<>();
+        List<int[]> targets = new ArrayList<>();
+        int refCount = refs.size();
+        int[] refFile = new int[refCount];
+        int[] refStart = new int[refCount];
+        int[] refEnd = new int[refCount];
+        int[] refTarget = new int[refCount];
+        BitSet refIsDef = new BitSet(refCount);
+        for (int i = 0; i < refCount; i++) {
+            Ref ref = refs.get(i);
+            int[] target = new int[]{ids.get(ref.defKey.formatPath()),
+                    id(ids, ref.defRepo),
+                    id(ids, ref.defUnitType),
+                    id(ids, ref.defUnit)};
+            String key = target[0] + "/" + target[1] + "/" + target[2] + "/" + target[3];
+            Integer targetId = targetIds.get(key);
+            if (targetId == null) {
+                targetId = targets.size();
+                targetIds.put(key, targetId);
+                targets.add(target);
+            }
+            refFile[i] = ids.get(relativize(relativized, ref.file));
+            refStart[i] = ref.start;
+            refEnd[i] = ref.end;
+            refTarget[i] = targetId;
+            refIsDef.set(i, ref.def);
+        }
+
+        // references by (file, start, end): runs come sorted per file, only files need reordering by string id
+        int[] order = orderBy(refFile, refCount, bytes.length);
+        for (int from = 0; from < refCount; ) {
+            int to = from + 1;
+            while (to < refCount && refFile[order[to]] == refFile[order[from]]) {
+                to++;
+            }
+            sortRun(order, from, to, refStart, refEnd);
+            from = to;
+        }
+
+        // targets sorted by (path, repo, unit type, unit), references of each target in (file, start) order
+        Integer[] targetOrder = new Integer[targets.size()];
+        for (int i = 0; i < targetOrder.length; i++) {
+            targetOrder[i] = i;
+        }
+        Arrays.sort(targetOrder, (a, b) -> compareTargets(targets.get(a), targets.get(b)));
+        int[] targetRank = new int[targetOrder.length];
+        for (int i = 0; i < targetOrder.length; i++) {
+            targetRank[targetOrder[i]] = i;
+        }
+        int[] rankOfRef = new int[refCount];
+        for (int i = 0; i < refCount; i++) {
+            rankOfRef[i] = targetRank[refTarget[order[i]]];
+        }
+        int[] byTarget = orderBy(rankOfRef, refCount, targetOrder.length);
+        int[] targetFirst = new int[targetOrder.length + 1];
+        for (int i = 0; i < refCount; i++) {
+            targetFirst[rankOfRef[i] + 1]++;
+        }
+        for (int i = 0; i < targetOrder.length; i++) {
+            targetFirst[i + 1] += targetFirst[i];
+        }
+
+        // definitions by (path, file, start)
+        Integer[] defOrder = new Integer[defs.size()];
+        int[] defPath = new int[defs.size()];
+        int[] defFile = new int[defs.size()];
+        for (int i = 0; i < defOrder.length; i++) {
+            defOrder[i] = i;
+            defPath[i] = ids.get(defs.get(i).defKey.formatPath());
+            defFile[i] = ids.get(relativize(relativized, defs.get(i).file));
+        }
+        Arrays.sort(defOrder, (a, b) -> {
+            int c = Integer.compare(defPath[a], defPath[b]);
+            if (c == 0) {
+                c = Integer.compare(defFile[a], defFile[b]);
+            }
+            if (c == 0) {
+                c = Integer.compare(defs.get(a).defStart, defs.get(b).defStart);
+            }
+            return c;
+        });
+
+        int fileCount = 0;
+        for (int i = 0; i < refCount; i++) {
+            if (i == 0 || refFile[order[i]] != refFile[order[i - 1]]) {
+                fileCount++;
+            }
+        }
+
+        long stringOffsets = MappedGraphIndex.HEADER_SIZE;
+        long filesPosition = stringOffsets + 8L * (bytes.length + 1);
+        long defsPosition = filesPosition + (long) MappedGraphIndex.FILE_SIZE * fileCount;
+        long targetsPosition = defsPosition + (long) MappedGraphIndex.DEF_SIZE * defOrder.length;
+        long refsPosition = targetsPosition + (long) MappedGraphIndex.TARGET_SIZE * targetOrder.length;
+        long byTargetPosition = refsPosition + (long) MappedGraphIndex.REF_SIZE * refCount;
+        long stringData = byTargetPosition + 4L * refCount;
+
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),
+                1 << 16))) {
+            out.writeInt(MappedGraphIndex.MAGIC);
+            out.writeInt(MappedGraphIndex.VERSION);
+            out.writeInt(bytes.length);
+            out.writeInt(fileCount);
+            out.writeInt(defOrder.length);
+            out.writeInt(targetOrder.length);
+            out.writeInt(refCount);
+            out.writeInt(0);
+            out.writeLong(stringOffsets);
+            out.writeLong(filesPosition);
+            out.writeLong(defsPosition);
+            out.writeLong(targetsPosition);
+            out.writeLong(refsPosition);
+            out.writeLong(byTargetPosition);
+            out.writeLong(stringData);
+
+            long offset = 0;
+            for (byte[] s : bytes) {
+                out.writeLong(offset);
+                offset += s.length;
+            }
+            out.writeLong(offset);
+
+            for (int i = 0; i < refCount; i++) {
+                int start = i;
+                while (i + 1 < refCount && refFile[order[i + 1]] == refFile[order[start]]) {
+                    i++;
+                }
+                out.writeInt(refFile[order[start]]);
+                out.writeInt(start);
+                out.writeInt(i + 1 - start);
+            }
+
+            for (Integer i : defOrder) {
+                Def def = defs.get(i);
+                boolean exported = (def.modifiers & Def.PUBLIC) != 0;
+                out.writeInt(defPath[i]);
+                out.writeInt(defFile[i]);
+                out.writeInt(ids.get(def.name));
+                out.writeInt(ids.get(def.kind.getSrclibKind()));
+                out.writeInt(def.defStart);
+                out.writeInt(def.defEnd);
+                out.writeInt((exported ? MappedGraphIndex.EXPORTED : 0) |
+                        (def.kind.isLocal(exported) ? MappedGraphIndex.LOCAL : 0));
+            }
+
+            for (int i = 0; i < targetOrder.length; i++) {
+                int[] target = targets.get(targetOrder[i]);
+                for (int part : target) {
+                    out.writeInt(part);
+                }
+                out.writeInt(targetFirst[i]);
+                out.writeInt(targetFirst[i + 1] - targetFirst[i]);
+            }
+
+            int maxEnd = 0;
+            for (int i = 0; i < refCount; i++) {
+                int j = order[i];
+                boolean first = i == 0 || refFile[j] != refFile[order[i - 1]];
+                maxEnd = first ? refEnd[j] : Math.max(maxEnd, refEnd[j]);
+                out.writeInt(refFile[j]);
+                out.writeInt(refStart[j]);
+                out.writeInt(refEnd[j]);
+                out.writeInt(maxEnd);
+                out.writeInt(targetRank[refTarget[j]]);
+                out.writeInt(refIsDef.get(j) ? MappedGraphIndex.DEF : 0);
+            }
+
+            for (int i = 0; i < refCount; i++) {
+                out.writeInt(byTarget[i]);
+            }
+
+            for (byte[] s : bytes) {
+                out.write(s);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String relativize(Map<String, String> relativized, String file) {
+        if (file == null) {
+            return StringUtils.EMPTY;
+        }
+        return relativized.computeIfAbsent(file, PathUtil::relativizeCwd);
+    }
+
+    private static int id(Map<String, Integer> ids, String s) {
+        return s == null ? -1 : ids.get(s);
+    }
+
+    /**
+     * Stable counting sort
+     * @param keys key of each item, in [0, range)
+     * @param count number of items
+     * @param range number of distinct keys
+     * @return item indexes ordered by key
+     */
+    private static int[] orderBy(int[] keys, int count, int range) {
+        int[] next = new int[range + 1];
+        for (int i = 0; i < count; i++) {
+            next[keys[i] + 1]++;
+        }
+        for (int i = 0; i < range; i++) {
+            next[i + 1] += next[i];
+        }
+        int[] ret = new int[count];
+        for (int i = 0; i < count; i++) {
+            ret[next[keys[i]]++] = i;
+        }
+        return ret;
+    }
+
+    /**
+     * Sorts run of one file by (start, end) unless it already is (several source paths may relativize to one name)
+     */
+    private static void sortRun(int[] order, int from, int to, int[] start, int[] end) {
+        boolean sorted = true;
+        for (int i = from + 1; i < to && sorted; i++) {
+            int a = order[i - 1];
+            int b = order[i];
+            sorted = start[a] < start[b] || start[a] == start[b] && end[a] <= end[b];
+        }
+        if (sorted) {
+            return;
+        }
+        Integer[] run = new Integer[to - from];
+        for (int i = from; i < to; i++) {
+            run[i - from] = order[i];
+        }
+        Arrays.sort(run, Comparator.<Integer>comparingInt(i -> start[i]).thenComparingInt(i -> end[i]));
+        for (int i = from; i < to; i++) {
+            order[i] = run[i - from];
+        }
+    }
+
+    private static int compareTargets(int[] a, int[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int c = Integer.compare(a[i], b[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+}
@@ -1,12 +1,9 @@
 package com.sourcegraph.toolchain.core;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.*;
 import org.apache.commons.io.IOUtils;
 
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.Writer;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -24,11 +21,50 @@ public class JSONUtil {
         IOUtils.closeQuietly(w);
     }
 
+    /**
+     * Writes object as UTF-8 JSON, leaves stream open
+     * @param o object to write
+     * @param out destination stream
+     * @throws IOException
+     */
+    public static void writeJSON(Object o, OutputStream out) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        try {
+            gson().toJson(o, w);
+        } catch (JsonIOException e) {
+            throw new IOException(e);
+        }
+        w.flush();
+    }
+
+    /**
+     * Converts object to JSON tree
+     * @param o object to convert
+     * @return JSON tree
+     */
+    public static JsonElement toJSONTree(Object o) {
+        return gson().toJsonTree(o);
+    }
+
+    /**
+     * Reads JSON tree from UTF-8 file
+     * @param file file to read
+     * @return JSON tree
+     * @throws IOException
+     */
+    public static JsonElement readJSON(File file) throws IOException {
+        try (Reader r = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(r);
+        } catch (JsonParseException e) {
+            throw new IOException("Failed to parse " + file, e);
+        }
+    }
+
     /**
      * Constructs new writer implementation
      * @return configured writer implementation
      */
-    private static Gson gson() {
+    static Gson gson() {
         GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.setPrettyPrinting();
         gsonBuilder.disableHtmlEscaping();
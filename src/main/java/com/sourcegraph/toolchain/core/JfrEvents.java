@@ -0,0 +1,321 @@
+package com.sourcegraph.toolchain.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events of graph jobs (files, their phases, import resolution, output flushes), so CPU and
+ * allocation samples of a recording can be tied to input that caused them. Toolchain is built for Java 8, which has
+ * no jdk.jfr API to compile against, so event types are defined at startup through jdk.jfr.EventFactory found by
+ * reflection. On JVMs without it (or with -Dsrclib.jfr=false) every span is a no-op that costs one static check,
+ * and when no recording wants an event type, its spans are no-ops that cost a check of cached jdk.jfr.EventType, no
+ * event is allocated and numeric fields are not boxed.
+ * Events are named srclib.objc.* and appear under "srclib" category in JDK Mission Control
+ */
+public final class JfrEvents {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JfrEvents.class);
+
+    /**
+     * System property that turns events off
+     */
+    public static final String PROPERTY = "srclib.jfr";
+
+    /**
+     * Event fields, each event type uses a subset of them
+     */
+    public enum Field {
+        FILE("file", "File", String.class),
+        BYTES("bytes", "Size (chars)", long.class),
+        TOKENS("tokens", "Tokens", long.class),
+        DEFS("defs", "Definitions emitted", long.class),
+        REFS("refs", "References emitted", long.class),
+        PHASE("phase", "Phase", String.class),
+        MODE("mode", "Prediction mode (LL, SLL, none)", String.class),
+        OUTCOME("outcome", "Outcome", String.class),
+        IMPORT("name", "Imported name", String.class),
+        RESOLVED("resolved", "Resolved file", String.class),
+        CACHE_HIT("cacheHit", "Cache hit", boolean.class),
+        WRITER("writer", "Writer", String.class),
+        COUNT("count", "Items", long.class);
+
+        final String name;
+        final String label;
+        final Class<?> type;
+
+        Field(String name, String label, Class<?> type) {
+            this.name = name;
+            this.label = label;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Event types
+     */
+    public enum Type {
+        /**
+         * File parsed and walked by graph, headers it imports are processed before it in their own events
+         */
+        FILE("File", "File processing",
+                Field.FILE, Field.BYTES, Field.TOKENS, Field.DEFS, Field.REFS, Field.MODE, Field.OUTCOME),
+        /**
+         * Phase of file processing (read, parse, lex, walk)
+         */
+        PHASE("Phase", "File phase",
+                Field.FILE, Field.PHASE, Field.MODE, Field.TOKENS, Field.OUTCOME),
+        /**
+         * Resolution of #import name, hit or miss of resolution cache
+         */
+        IMPORT("Import", "Import resolution",
+                Field.IMPORT, Field.FILE, Field.RESOLVED, Field.CACHE_HIT),
+        /**
+         * Buffered definitions or references written out
+         */
+        FLUSH("Flush", "Output flush",
+                Field.WRITER, Field.COUNT);
+
+        final String name;
+        final String label;
+        final Field[] fields;
+
+        // field ordinal -> index in event, -1 if event has no such field
+        final int[] index = new int[Field.values().length];
+
+        Type(String name, String label, Field... fields) {
+            this.name = "srclib.objc." + name;
+            this.label = label;
+            this.fields = fields;
+            Arrays.fill(index, -1);
+            for (int i = 0; i < fields.length; i++) {
+                index[fields[i].ordinal()] = i;
+            }
+        }
+    }
+
+    /**
+     * Event being timed. Fields the event type does not have are ignored
+     */
+    public interface Span {
+
+        /**
+         * @param field field to set
+         * @param value value of field's type
+         * @return this span
+         */
+        Span set(Field field, Object value);
+
+        /**
+         * @param field numeric field to set
+         * @param value value
+         * @return this span
+         */
+        Span set(Field field, long value);
+
+        /**
+         * @param field boolean field to set
+         * @param value value
+         * @return this span
+         */
+        Span set(Field field, boolean value);
+
+        /**
+         * Ends span and commits event if recording wants it
+         */
+        void commit();
+    }
+
+    private static final Span NONE = new Span() {
+        @Override
+        public Span set(Field field, Object value) {
+            return this;
+        }
+
+        @Override
+        public Span set(Field field, long value) {
+            return this;
+        }
+
+        @Override
+        public Span set(Field field, boolean value) {
+            return this;
+        }
+
+        @Override
+        public void commit() {
+        }
+    };
+
+    // jdk.jfr.EventFactory per type, null when events are off
+    private static final Object[] FACTORIES;
+    // jdk.jfr.EventType per type, tells if any recording wants events of the type
+    private static final Object[] TYPES;
+    private static final MethodHandle NEW_EVENT;
+    private static final MethodHandle IS_ENABLED;
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle END;
+    private static final MethodHandle SET;
+    private static final MethodHandle COMMIT;
+
+    static {
+        Object[] factories = null;
+        Object[] types = null;
+        MethodHandle newEvent = null;
+        MethodHandle isEnabled = null;
+        MethodHandle begin = null;
+        MethodHandle end = null;
+        MethodHandle set = null;
+        MethodHandle commit = null;
+        if (!"false".equals(System.getProperty(PROPERTY))) {
+            try {
+                Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+                Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+                Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+                Constructor<?> descriptor = descriptorClass.getConstructor(Class.class, String.class, List.class);
+                Method create = factoryClass.getMethod("create", List.class, List.class);
+                Method getEventType = factoryClass.getMethod("getEventType");
+                Class<?> nameType = Class.forName("jdk.jfr.Name");
+                Class<?> labelType = Class.forName("jdk.jfr.Label");
+                Class<?> categoryType = Class.forName("jdk.jfr.Category");
+
+                factories = new Object[Type.values().length];
+                types = new Object[Type.values().length];
+                for (Type type : Type.values()) {
+                    List<Object> annotations = new ArrayList<>();
+                    annotations.add(annotation.newInstance(nameType, type.name));
+                    annotations.add(annotation.newInstance(labelType, type.label));
+                    annotations.add(annotation.newInstance(categoryType, new String[]{"srclib"}));
+                    List<Object> fields = new ArrayList<>();
+                    for (Field field : type.fields) {
+                        fields.add(descriptor.newInstance(field.type,
+                                field.name,
+                                Collections.singletonList(annotation.newInstance(labelType, field.label))));
+                    }
+                    factories[type.ordinal()] = create.invoke(null, annotations, fields);
+                    types[type.ordinal()] = getEventType.invoke(factories[type.ordinal()]);
+                }
+
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                newEvent = lookup.findVirtual(factoryClass, "newEvent", MethodType.methodType(eventClass)).
+                        asType(MethodType.methodType(Object.class, Object.class));
+                isEnabled = lookup.findVirtual(eventTypeClass, "isEnabled", MethodType.methodType(boolean.class)).
+                        asType(MethodType.methodType(boolean.class, Object.class));
+                begin = lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class)).
+                        asType(MethodType.methodType(void.class, Object.class));
+                end = lookup.findVirtual(eventClass, "end", MethodType.methodType(void.class)).
+                        asType(MethodType.methodType(void.class, Object.class));
+                set = lookup.findVirtual(eventClass, "set", MethodType.methodType(void.class, int.class, Object.class)).
+                        asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+                commit = lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class)).
+                        asType(MethodType.methodType(void.class, Object.class));
+            } catch (ClassNotFoundException e) {
+                LOGGER.debug("Flight Recorder API is not available, events are off");
+                factories = null;
+                types = null;
+            } catch (Exception | LinkageError e) {
+                LOGGER.warn("Unable to define Flight Recorder events: {}", e.toString());
+                factories = null;
+                types = null;
+            }
+        }
+        FACTORIES = factories;
+        TYPES = types;
+        NEW_EVENT = newEvent;
+        IS_ENABLED = isEnabled;
+        BEGIN = begin;
+        END = end;
+        SET = set;
+        COMMIT = commit;
+    }
+
+    private JfrEvents() {
+    }
+
+    /**
+     * @return true if events are defined (running recording decides which of them are recorded)
+     */
+    public static boolean isAvailable() {
+        return FACTORIES != null;
+    }
+
+    /**
+     * Starts timing an event
+     * @param type event type
+     * @return span to set fields of and commit, no-op span if events are off or recording ignores this type
+     */
+    public static Span begin(Type type) {
+        if (FACTORIES == null) {
+            return NONE;
+        }
+        try {
+            if (!(boolean) IS_ENABLED.invokeExact(TYPES[type.ordinal()])) {
+                return NONE;
+            }
+            Object event = NEW_EVENT.invokeExact(FACTORIES[type.ordinal()]);
+            BEGIN.invokeExact(event);
+            return new EventSpan(type, event);
+        } catch (Throwable e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Span backed by jdk.jfr.Event
+     */
+    private static class EventSpan implements Span {
+
+        private final Type type;
+        private final Object event;
+
+        EventSpan(Type type, Object event) {
+            this.type = type;
+            this.event = event;
+        }
+
+        @Override
+        public Span set(Field field, Object value) {
+            int index = type.index[field.ordinal()];
+            if (index >= 0 && value != null) {
+                try {
+                    SET.invokeExact(event, index, value);
+                } catch (Throwable e) {
+                    // wrong value type, keep field empty
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public Span set(Field field, long value) {
+            return set(field, (Object) value);
+        }
+
+        @Override
+        public Span set(Field field, boolean value) {
+            return set(field, (Object) value);
+        }
+
+        @Override
+        public void commit() {
+            try {
+                END.invokeExact(event);
+                COMMIT.invokeExact(event);
+            } catch (Throwable e) {
+                // event is lost, recording goes on
+            }
+        }
+    }
+}
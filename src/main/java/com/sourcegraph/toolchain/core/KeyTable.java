@@ -0,0 +1,61 @@
+package com.sourcegraph.toolchain.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns definition keys: every distinct key gets dense int id and one canonical DefKey instance,
+ * so references to the same definition share key object (and its formatted path). Canonical instance
+ * remembers its id, so looking it up again needs no hashing
+ */
+public class KeyTable {
+
+    private final Map<DefKey, Integer> ids = new HashMap<>();
+
+    private final List<DefKey> keys = new ArrayList<>();
+
+    /**
+     * @param key definition key
+     * @return id of a given key, new keys get next id
+     */
+    public int id(DefKey key) {
+        int id = key.id;
+        if (id >= 0 && id < keys.size() && keys.get(id) == key) {
+            return id;
+        }
+        Integer known = ids.get(key);
+        if (known != null) {
+            return known;
+        }
+        id = keys.size();
+        ids.put(key, id);
+        keys.add(key);
+        key.id = id;
+        return id;
+    }
+
+    /**
+     * @param id key id
+     * @return canonical key with given id
+     */
+    public DefKey key(int id) {
+        return keys.get(id);
+    }
+
+    /**
+     * @param key definition key
+     * @return canonical instance of a given key
+     */
+    public DefKey intern(DefKey key) {
+        return key(id(key));
+    }
+
+    /**
+     * @return number of distinct keys
+     */
+    public int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,129 @@
+package com.sourcegraph.toolchain.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only memory-mapped file addressed by long offsets. Single mapping can't exceed 2 GB, so larger files
+ * are mapped as a sequence of segments. Values that cross segment boundary are assembled byte by byte.
+ * All multi-byte values are big-endian
+ */
+public class MappedFile implements Closeable {
+
+    /**
+     * Segment size, 1 GB
+     */
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer[] segments;
+
+    private final long size;
+
+    /**
+     * Maps given file into memory
+     * @param f file to map
+     * @throws IOException
+     */
+    public MappedFile(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            size = channel.size();
+            int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return file size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    public byte get(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK));
+    }
+
+    public short getShort(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - 2) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getShort(offset);
+        }
+        return (short) (((get(position) & 0xFF) << 8) | (get(position + 1) & 0xFF));
+    }
+
+    public int getInt(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - 4) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getInt(offset);
+        }
+        int ret = 0;
+        for (int i = 0; i < 4; i++) {
+            ret = (ret << 8) | (get(position + i) & 0xFF);
+        }
+        return ret;
+    }
+
+    public long getLong(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - 8) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getLong(offset);
+        }
+        return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Copies bytes into given array
+     * @param position file offset
+     * @param dst destination array
+     * @param offset offset in destination array
+     * @param length number of bytes to copy
+     */
+    public void get(long position, byte[] dst, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)].duplicate();
+            segment.position((int) (position & SEGMENT_MASK));
+            int n = Math.min(length, segment.remaining());
+            segment.get(dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Reads UTF-8 string
+     * @param position file offset
+     * @param length string length in bytes
+     * @return decoded string
+     */
+    public String getString(long position, int length) {
+        byte[] data = new byte[length];
+        get(position, data, 0, length);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // mappings stay valid until buffers are collected
+        file.close();
+    }
+}
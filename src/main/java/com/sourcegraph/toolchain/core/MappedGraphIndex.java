@@ -0,0 +1,356 @@
+package com.sourcegraph.toolchain.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reader of index written by {@link IndexGraphWriter}. File is memory-mapped and searched in place, nothing is loaded
+ * up front, so opening an index takes the same time whatever its size, and pages that queries never touch are never
+ * read. Answers the same reference and definition-by-path lookups as GraphIndex.
+ * <p>
+ * File format (big-endian): header (magic, version, counts of strings, files, definitions, targets and references,
+ * then positions of sections), string offset table (count + 1 longs relative to string data), files (string id,
+ * first reference, reference count) sorted by name, definitions (path, file, name, kind, start, end, flags) sorted by
+ * path, targets (path, repo, unit type, unit, first entry in references-by-target, count) sorted by these ids,
+ * references (file, start, end, running maximum of end within file, target, flags) sorted by (file, start, end),
+ * references-by-target (reference numbers), UTF-8 string data. Strings are sorted by bytes, so string ids compare
+ * the same way strings do and every table is searched by comparing ints
+ */
+public class MappedGraphIndex implements Closeable {
+
+    static final int MAGIC = 0x4F424A49;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 88;
+    static final int FILE_SIZE = 12;
+    static final int DEF_SIZE = 28;
+    static final int TARGET_SIZE = 24;
+    static final int REF_SIZE = 24;
+
+    // definition flags
+    static final int EXPORTED = 1;
+    static final int LOCAL = 2;
+
+    // reference flags
+    static final int DEF = 1;
+
+    private final MappedFile data;
+
+    private final int stringCount;
+    private final int fileCount;
+    private final int defCount;
+    private final int targetCount;
+    private final int refCount;
+
+    private final long stringOffsets;
+    private final long files;
+    private final long defs;
+    private final long targets;
+    private final long refs;
+    private final long refsByTarget;
+    private final long stringData;
+
+    private MappedGraphIndex(MappedFile data) {
+        this.data = data;
+        stringCount = data.getInt(8);
+        fileCount = data.getInt(12);
+        defCount = data.getInt(16);
+        targetCount = data.getInt(20);
+        refCount = data.getInt(24);
+        stringOffsets = data.getLong(32);
+        files = data.getLong(40);
+        defs = data.getLong(48);
+        targets = data.getLong(56);
+        refs = data.getLong(64);
+        refsByTarget = data.getLong(72);
+        stringData = data.getLong(80);
+    }
+
+    /**
+     * Maps index into memory
+     * @param file index file
+     * @return index reader, to be closed when no longer needed
+     * @throws IOException
+     */
+    public static MappedGraphIndex open(File file) throws IOException {
+        MappedFile data = new MappedFile(file);
+        try {
+            if (data.size() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a graph index");
+            }
+            int version = data.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported graph index version " + version + " in " + file);
+            }
+            MappedGraphIndex index = new MappedGraphIndex(data);
+            if (index.stringData + index.stringOffset(index.stringCount) != data.size()) {
+                throw new IOException("Graph index " + file + " is truncated");
+            }
+            return index;
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of references
+     */
+    public int getRefCount() {
+        return refCount;
+    }
+
+    /**
+     * @return number of definitions
+     */
+    public int getDefCount() {
+        return defCount;
+    }
+
+    /**
+     * @return number of files that have references
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @param file file name as in graph output
+     * @param offset offset in file
+     * @return references whose range includes offset, in (start, end) order
+     */
+    public List<GraphIndex.Reference> refsAt(String file, int offset) {
+        return refsIn(file, offset, offset);
+    }
+
+    /**
+     * @param file file name as in graph output
+     * @param start range start
+     * @param end range end (inclusive)
+     * @return references that overlap range, in (start, end) order
+     */
+    public List<GraphIndex.Reference> refsIn(String file, int start, int end) {
+        List<GraphIndex.Reference> ret = new ArrayList<>();
+        int id = stringId(file);
+        if (id < 0) {
+            return ret;
+        }
+        int low = 0;
+        int high = fileCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int c = Integer.compare(data.getInt(files + (long) middle * FILE_SIZE), id);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                long entry = files + (long) middle * FILE_SIZE;
+                int from = data.getInt(entry + 4);
+                int to = from + data.getInt(entry + 8);
+                // last reference that starts at or before range end
+                low = from;
+                high = to - 1;
+                while (low <= high) {
+                    int m = (low + high) >>> 1;
+                    if (data.getInt(ref(m) + 4) <= end) {
+                        low = m + 1;
+                    } else {
+                        high = m - 1;
+                    }
+                }
+                for (int i = high; i >= from && data.getInt(ref(i) + 12) >= start; i--) {
+                    if (data.getInt(ref(i) + 8) >= start) {
+                        ret.add(reference(i));
+                    }
+                }
+                Collections.reverse(ret);
+                return ret;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param path definition path of current unit
+     * @return definition or null
+     */
+    public GraphIndex.Definition def(String path) {
+        int id = stringId(path);
+        if (id < 0) {
+            return null;
+        }
+        int low = 0;
+        int high = defCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (data.getInt(defs + (long) middle * DEF_SIZE) < id) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (low == defCount || data.getInt(defs + (long) low * DEF_SIZE) != id) {
+            return null;
+        }
+        long entry = defs + (long) low * DEF_SIZE;
+        GraphIndex.Definition def = new GraphIndex.Definition();
+        def.path = path;
+        def.file = string(data.getInt(entry + 4));
+        def.name = string(data.getInt(entry + 8));
+        def.kind = string(data.getInt(entry + 12));
+        def.start = data.getInt(entry + 16);
+        def.end = data.getInt(entry + 20);
+        int flags = data.getInt(entry + 24);
+        def.exported = (flags & EXPORTED) != 0;
+        def.local = (flags & LOCAL) != 0;
+        return def;
+    }
+
+    /**
+     * @param path definition path of current unit
+     * @return references to definition
+     */
+    public List<GraphIndex.Reference> refs(String path) {
+        return refs(null, null, null, path);
+    }
+
+    /**
+     * @param repo repository of definition, null for current one
+     * @param unitType unit type of definition, null for current one
+     * @param unit unit of definition, null for current one
+     * @param path definition path
+     * @return references to definition, in (file, start, end) order
+     */
+    public List<GraphIndex.Reference> refs(String repo, String unitType, String unit, String path) {
+        List<GraphIndex.Reference> ret = new ArrayList<>();
+        int[] key = new int[]{stringId(path), optionalId(repo), optionalId(unitType), optionalId(unit)};
+        for (int part : key) {
+            if (part < -1) {
+                return ret;
+            }
+        }
+        if (key[0] < 0) {
+            return ret;
+        }
+        int low = 0;
+        int high = targetCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long entry = targets + (long) middle * TARGET_SIZE;
+            int c = 0;
+            for (int i = 0; i < key.length && c == 0; i++) {
+                c = Integer.compare(data.getInt(entry + 4 * i), key[i]);
+            }
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                int first = data.getInt(entry + 16);
+                int count = data.getInt(entry + 20);
+                for (int i = first; i < first + count; i++) {
+                    ret.add(reference(data.getInt(refsByTarget + 4L * i)));
+                }
+                return ret;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    private long ref(int i) {
+        return refs + (long) i * REF_SIZE;
+    }
+
+    private GraphIndex.Reference reference(int i) {
+        long entry = ref(i);
+        long target = targets + (long) data.getInt(entry + 16) * TARGET_SIZE;
+        return new GraphIndex.Reference(string(data.getInt(target + 4)),
+                string(data.getInt(target + 8)),
+                string(data.getInt(target + 12)),
+                string(data.getInt(target)),
+                string(data.getInt(entry)),
+                data.getInt(entry + 4),
+                data.getInt(entry + 8),
+                (data.getInt(entry + 20) & DEF) != 0);
+    }
+
+    private String string(int id) {
+        if (id < 0) {
+            return null;
+        }
+        long start = stringOffset(id);
+        return data.getString(stringData + start, (int) (stringOffset(id + 1) - start));
+    }
+
+    private long stringOffset(int id) {
+        return data.getLong(stringOffsets + 8L * id);
+    }
+
+    /**
+     * @return id of string, -1 for null and -2 for strings not in table
+     */
+    private int optionalId(String s) {
+        if (s == null) {
+            return -1;
+        }
+        int id = stringId(s);
+        return id < 0 ? -2 : id;
+    }
+
+    /**
+     * Binary search of string table, compares UTF-8 bytes in place
+     * @return string id or -1 if there is no such string
+     */
+    private int stringId(String s) {
+        byte[] key = s.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = stringCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long start = stringOffset(middle);
+            long length = stringOffset(middle + 1) - start;
+            start += stringData;
+            int c = 0;
+            for (int i = 0; i < length && i < key.length && c == 0; i++) {
+                c = Integer.compare(data.get(start + i) & 0xFF, key[i] & 0xFF);
+            }
+            if (c == 0) {
+                c = Long.compare(length, key.length);
+            }
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Unsigned lexicographic order of UTF-8 bytes, the order of string table
+     */
+    static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+}
@@ -3,23 +3,34 @@ package com.sourcegraph.toolchain.core;
 /**
  * Contains information where we can retrieve definition source code
  */
-class ResolvedTarget {
+public class ResolvedTarget {
     /**
      * Repository SCM URI
      */
-    String ToRepoCloneURL;
+    public String ToRepoCloneURL;
     /**
      * Source unit name
      */
-    String ToUnit;
+    public String ToUnit;
     /**
      * Source unit type
      */
-    String ToUnitType;
+    public String ToUnitType;
     /**
      * Version
      */
-    String ToVersionString;
+    public String ToVersionString;
+
+    public ResolvedTarget() {
+
+    }
+
+    public ResolvedTarget(String repoCloneURL, String unit, String unitType, String version) {
+        this.ToRepoCloneURL = repoCloneURL;
+        this.ToUnit = unit;
+        this.ToUnitType = unitType;
+        this.ToVersionString = version;
+    }
 
     @Override
     public boolean equals(Object o) {
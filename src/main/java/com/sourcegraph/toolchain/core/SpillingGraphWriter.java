@@ -0,0 +1,454 @@
+package com.sourcegraph.toolchain.core;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Graph writer that keeps bounded amount of data in memory. References and definitions are buffered until their
+ * estimated size reaches heap budget, then buffer is sorted in canonical GraphOrder and spilled to temporary file
+ * as compact binary run. When output is requested, runs (and what is left in memory) are merged k-way straight
+ * into JSON, dropping duplicate references and resolving definitions redefined in several files the same way
+ * GraphData does. Output is identical to GraphData's
+ */
+public class SpillingGraphWriter implements GraphWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillingGraphWriter.class);
+
+    // rough per-object heap footprint, strings are mostly shared with other objects
+    private static final int REF_SIZE = 96;
+    private static final int DEF_SIZE = 160;
+
+    private static final Type TIERS_TYPE = new TypeToken<Map<String, String>>() {
+    }.getType();
+
+    private final long budget;
+
+    private final Diagnostics diagnostics;
+
+    private List<Def> defs = new ArrayList<>();
+    private List<Ref> refs = new ArrayList<>();
+    private long size;
+
+    private final Map<String, String> tiers = new TreeMap<>();
+
+    private final List<File> defRuns = new ArrayList<>();
+    private final List<File> refRuns = new ArrayList<>();
+
+    /**
+     * @param budget heap budget in bytes
+     * @param diagnostics collector to report redefinitions to
+     */
+    public SpillingGraphWriter(long budget, Diagnostics diagnostics) {
+        this.budget = budget;
+        this.diagnostics = diagnostics;
+    }
+
+    @Override
+    public void writeRef(Ref r) throws IOException {
+        refs.add(r);
+        size += REF_SIZE;
+        if (size >= budget) {
+            spill();
+        }
+    }
+
+    @Override
+    public void writeDef(Def s) throws IOException {
+        defs.add(s);
+        size += DEF_SIZE + (s.doc == null ? 0 : s.doc.length() * 2);
+        if (size >= budget) {
+            spill();
+        }
+    }
+
+    @Override
+    public void writeTier(String file, String tier) throws IOException {
+        tiers.put(PathUtil.relativizeCwd(file), tier);
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Merges spilled runs and in-memory data and writes result as UTF-8 JSON (same format as GraphData),
+     * then removes temporary files
+     * @param out destination stream
+     * @throws IOException
+     */
+    public void writeJSON(OutputStream out) throws IOException {
+        Gson gson = JSONUtil.gson();
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+            json.setIndent("  ");
+            json.setHtmlSafe(false);
+            json.beginObject();
+
+            json.name("Defs").beginArray();
+            PriorityQueue<Cursor<Def>> defQueue = new PriorityQueue<>((a, b) -> GraphOrder.DEFS.compare(a.head, b.head));
+            for (File run : defRuns) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                add(defQueue, new Cursor<>(reader::readDef));
+            }
+            defs.sort(GraphOrder.DEFS);
+            add(defQueue, new Cursor<>(defs.iterator()));
+            mergeDefs(defQueue, def -> gson.toJson(def, Def.class, json));
+            defs = null;
+            json.endArray();
+
+            json.name("Refs").beginArray();
+            PriorityQueue<Cursor<Ref>> refQueue = refQueue();
+            for (File run : refRuns) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                add(refQueue, new Cursor<>(reader::readRef));
+            }
+            refs.sort(GraphOrder.REFS);
+            add(refQueue, new Cursor<>(refs.iterator()));
+            mergeRefs(refQueue, ref -> gson.toJson(ref, Ref.class, json));
+            refs = null;
+            json.endArray();
+
+            json.name("Tiers");
+            gson.toJson(tiers, TIERS_TYPE, json);
+            json.endObject();
+            json.flush();
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+            for (File run : defRuns) {
+                Files.deleteIfExists(run.toPath());
+            }
+            for (File run : refRuns) {
+                Files.deleteIfExists(run.toPath());
+            }
+        }
+    }
+
+    /**
+     * @return number of runs spilled to disk so far
+     */
+    public int getRunCount() {
+        return defRuns.size() + refRuns.size();
+    }
+
+    private void spill() throws IOException {
+        JfrEvents.Span span = JfrEvents.begin(JfrEvents.Type.FLUSH).
+                set(JfrEvents.Field.WRITER, "spill").
+                set(JfrEvents.Field.COUNT, (long) (defs.size() + refs.size()));
+        try {
+            writeRuns();
+        } finally {
+            span.commit();
+        }
+        LOGGER.debug("Spilled {} definition(s) and {} reference(s) to disk", defs.size(), refs.size());
+        defs = new ArrayList<>();
+        refs = new ArrayList<>();
+        size = 0;
+    }
+
+    private void writeRuns() throws IOException {
+        if (!defs.isEmpty()) {
+            defs.sort(GraphOrder.DEFS);
+            File run = createRun();
+            defRuns.add(run);
+            try (RunWriter writer = new RunWriter(run)) {
+                // redefinitions are resolved when runs are merged, so they are reported only once
+                for (Def def : defs) {
+                    writer.writeDef(def);
+                }
+            }
+        }
+        if (!refs.isEmpty()) {
+            refs.sort(GraphOrder.REFS);
+            File run = createRun();
+            refRuns.add(run);
+            try (RunWriter writer = new RunWriter(run)) {
+                PriorityQueue<Cursor<Ref>> queue = refQueue();
+                add(queue, new Cursor<>(refs.iterator()));
+                mergeRefs(queue, writer::writeRef);
+            }
+        }
+    }
+
+    private static File createRun() throws IOException {
+        File run = Files.createTempFile("srclib-graph-", ".run").toFile();
+        run.deleteOnExit();
+        return run;
+    }
+
+    /**
+     * Emits definitions in canonical order, for definitions that share a key only the first one (by location)
+     * is kept, others are reported as redefinitions
+     */
+    private void mergeDefs(PriorityQueue<Cursor<Def>> queue, Sink<Def> sink) throws IOException {
+        // definitions with equal formatted path and origin, may still have different keys
+        Map<DefKey, Def> group = new LinkedHashMap<>();
+        Def previous = null;
+        while (!queue.isEmpty()) {
+            Def def = next(queue);
+            if (previous != null && !sameGroup(previous, def)) {
+                for (Def d : group.values()) {
+                    sink.accept(d);
+                }
+                group.clear();
+            }
+            previous = def;
+            Def winner = group.putIfAbsent(def.defKey, def);
+            if (winner != null) {
+                diagnostics.report("redefinition",
+                        def.file,
+                        null,
+                        "{} already defined in {} at {}:{}, redefinition attempt in {} at {}:{}",
+                        winner.defKey.getPath(),
+                        winner.file,
+                        winner.defStart,
+                        winner.defEnd,
+                        def.file,
+                        def.defStart,
+                        def.defEnd);
+            }
+        }
+        for (Def d : group.values()) {
+            sink.accept(d);
+        }
+    }
+
+    private static boolean sameGroup(Def a, Def b) {
+        return a.defKey.formatPath().equals(b.defKey.formatPath()) &&
+                Objects.equals(a.defKey.getOrigin(), b.defKey.getOrigin());
+    }
+
+    /**
+     * Emits references in canonical order without duplicates
+     */
+    private static void mergeRefs(PriorityQueue<Cursor<Ref>> queue, Sink<Ref> sink) throws IOException {
+        // references that are equal in canonical order, may still differ in key
+        Set<Ref> group = new LinkedHashSet<>();
+        Ref previous = null;
+        while (!queue.isEmpty()) {
+            Ref ref = next(queue);
+            if (previous != null && GraphOrder.REFS.compare(previous, ref) != 0) {
+                for (Ref r : group) {
+                    sink.accept(r);
+                }
+                group.clear();
+            }
+            previous = ref;
+            group.add(ref);
+        }
+        for (Ref r : group) {
+            sink.accept(r);
+        }
+    }
+
+    private static PriorityQueue<Cursor<Ref>> refQueue() {
+        return new PriorityQueue<>((a, b) -> GraphOrder.REFS.compare(a.head, b.head));
+    }
+
+    private static <T> void add(PriorityQueue<Cursor<T>> queue, Cursor<T> cursor) throws IOException {
+        if (cursor.advance()) {
+            queue.add(cursor);
+        }
+    }
+
+    private static <T> T next(PriorityQueue<Cursor<T>> queue) throws IOException {
+        Cursor<T> cursor = queue.poll();
+        T ret = cursor.head;
+        add(queue, cursor);
+        return ret;
+    }
+
+    private interface Sink<T> {
+        void accept(T item) throws IOException;
+    }
+
+    private interface Source<T> {
+        /**
+         * @return next item or null at the end
+         */
+        T next() throws IOException;
+    }
+
+    /**
+     * Head of sorted run
+     */
+    private static class Cursor<T> {
+
+        private final Source<T> source;
+        T head;
+
+        Cursor(Source<T> source) {
+            this.source = source;
+        }
+
+        Cursor(Iterator<T> iterator) {
+            this(() -> iterator.hasNext() ? iterator.next() : null);
+        }
+
+        boolean advance() throws IOException {
+            head = source.next();
+            return head != null;
+        }
+    }
+
+    /**
+     * Writes run records. Strings are written once per run and then referred to by index
+     */
+    private static class RunWriter implements Closeable {
+
+        private static final int NULL = -1;
+        private static final int NEW = -2;
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        RunWriter(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        void writeRef(Ref ref) throws IOException {
+            out.writeBoolean(true);
+            writeKey(ref.defKey);
+            writeString(ref.defRepo);
+            writeString(ref.defUnitType);
+            writeString(ref.defUnit);
+            writeString(ref.file);
+            out.writeInt(ref.start);
+            out.writeInt(ref.end);
+            out.writeBoolean(ref.def);
+        }
+
+        void writeDef(Def def) throws IOException {
+            out.writeBoolean(true);
+            writeKey(def.defKey);
+            writeString(def.kind == null ? null : def.kind.name());
+            writeString(def.name);
+            writeString(def.file);
+            out.writeInt(def.identStart);
+            out.writeInt(def.identEnd);
+            out.writeInt(def.defStart);
+            out.writeInt(def.defEnd);
+            out.writeInt(def.modifiers);
+            writeString(def.pkg);
+            writeString(def.doc);
+            writeString(def.typeExpr);
+        }
+
+        private void writeKey(DefKey key) throws IOException {
+            writeString(key.getOrigin() == null ? null : key.getOrigin().toString());
+            writeString(key.getPath());
+        }
+
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                out.writeInt(NULL);
+                return;
+            }
+            Integer id = strings.get(s);
+            if (id != null) {
+                out.writeInt(id);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(NEW);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.writeBoolean(false);
+            out.close();
+        }
+    }
+
+    /**
+     * Reads run records written by RunWriter
+     */
+    private static class RunReader implements Closeable {
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        }
+
+        Ref readRef() throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            Ref ref = new Ref();
+            ref.defKey = readKey();
+            ref.defRepo = readString();
+            ref.defUnitType = readString();
+            ref.defUnit = readString();
+            ref.file = readString();
+            ref.start = in.readInt();
+            ref.end = in.readInt();
+            ref.def = in.readBoolean();
+            return ref;
+        }
+
+        Def readDef() throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            Def def = new Def();
+            def.defKey = readKey();
+            String kind = readString();
+            def.kind = kind == null ? null : DefKind.valueOf(kind);
+            def.name = readString();
+            def.file = readString();
+            def.identStart = in.readInt();
+            def.identEnd = in.readInt();
+            def.defStart = in.readInt();
+            def.defEnd = in.readInt();
+            def.modifiers = in.readInt();
+            def.pkg = readString();
+            def.doc = readString();
+            def.typeExpr = readString();
+            return def;
+        }
+
+        private DefKey readKey() throws IOException {
+            String origin = readString();
+            return new DefKey(origin == null ? null : URI.create(origin), readString());
+        }
+
+        private String readString() throws IOException {
+            int id = in.readInt();
+            if (id == RunWriter.NULL) {
+                return null;
+            }
+            if (id != RunWriter.NEW) {
+                return strings.get(id);
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
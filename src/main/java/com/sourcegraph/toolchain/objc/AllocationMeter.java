@@ -0,0 +1,113 @@
+package com.sourcegraph.toolchain.objc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counts bytes allocated by graph thread in each stage (read, lex, parse, walk, serialize), using HotSpot's per-thread
+ * allocation counter. Stages may nest (lex and parse run inside read stage that covers creating grapher), so each
+ * stage gets only bytes not attributed to stages measured inside it. Not thread-safe: graph must lex and parse on
+ * its own thread (no parser threads, no writer thread) for numbers to be complete
+ */
+class AllocationMeter {
+
+    /**
+     * Measured stages
+     */
+    enum Stage {
+        /**
+         * Reading and preprocessing source, creating grapher
+         */
+        READ,
+        LEX,
+        PARSE,
+        /**
+         * Walking parse tree (or tokens of lexer-only files) and writing definitions and references
+         */
+        WALK,
+        SERIALIZE
+    }
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    private final long[] bytes = new long[Stage.values().length];
+
+    // bytes attributed to all stages so far, lets outer stage exclude inner ones
+    private long attributed;
+
+    private long input;
+
+    private AllocationMeter(com.sun.management.ThreadMXBean threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return new meter or null if JVM does not count allocated bytes per thread
+     */
+    static AllocationMeter create() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return new AllocationMeter(threads);
+    }
+
+    /**
+     * Marks start of a stage
+     * @return mark to pass to {@link #add(Stage, long[])}
+     */
+    long[] start() {
+        return new long[]{allocated(), attributed};
+    }
+
+    /**
+     * Attributes bytes allocated since mark, minus bytes attributed to stages nested in this one, to stage
+     * @param stage stage that ended
+     * @param mark mark returned by {@link #start()} when stage started
+     */
+    void add(Stage stage, long[] mark) {
+        long delta = allocated() - mark[0] - (attributed - mark[1]);
+        bytes[stage.ordinal()] += delta;
+        attributed += delta;
+    }
+
+    /**
+     * Counts input that was read
+     * @param chars number of source characters
+     */
+    void addInput(long chars) {
+        input += chars;
+    }
+
+    /**
+     * @param stage stage
+     * @return bytes allocated by stage
+     */
+    long getBytes(Stage stage) {
+        return bytes[stage.ordinal()];
+    }
+
+    /**
+     * @param stage stage
+     * @return bytes allocated by stage per KB of input, 0 if nothing was read
+     */
+    double getBytesPerKb(Stage stage) {
+        return input == 0 ? 0 : getBytes(stage) * 1024.0 / input;
+    }
+
+    /**
+     * @return number of source characters read
+     */
+    long getInput() {
+        return input;
+    }
+
+    private long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,388 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sourcegraph.toolchain.core.GraphWriter;
+import com.sourcegraph.toolchain.core.JSONUtil;
+import com.sourcegraph.toolchain.core.SourceUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Runs scan and graph over current working directory several times in one JVM and compares throughput, peak heap
+ * and GC time with a recorded baseline. Warm-up runs are not measured, so JIT has compiled lexer and parser by the
+ * time measured runs start. Throughput and GC time are medians of measured runs, peak heap is maximum.
+ * One more run on a single thread measures bytes allocated per KB of source in each stage and heap retained by
+ * graph data per 1000 references; these are budgets too.
+ * Exits with non-zero status if any metric is worse than baseline by more than its tolerance
+ */
+public class BenchCommand {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BenchCommand.class);
+
+    @Parameter(names = {"--warmup"}, description = "Number of runs before measured ones")
+    int warmup = 2;
+
+    @Parameter(names = {"--iterations"}, description = "Number of measured runs")
+    int iterations = 5;
+
+    @Parameter(names = {"--baseline"}, description = "The path to a baseline file (see --save-baseline) to compare results with")
+    String baseline;
+
+    @Parameter(names = {"--save-baseline"}, description = "Write results to --baseline file instead of comparing with it")
+    boolean saveBaseline;
+
+    @Parameter(names = {"--allocations"}, arity = 1, description = "Measure per-stage allocations and graph data size in an extra single-threaded run")
+    boolean allocations = true;
+
+    @Parameter(names = {"--tolerance"}, description = "Allowed regression of each metric in percent, used for metrics baseline file sets no tolerance for")
+    double tolerance = 10;
+
+    /**
+     * Graph options (threads, budgets, defines) used in every run
+     */
+    @ParametersDelegate
+    GraphCommand graph = new GraphCommand();
+
+    // keeps writer (and graph data it holds) reachable while retained heap is measured
+    private GraphWriter retained;
+
+    /**
+     * Main method
+     */
+    public void Execute() {
+        Result result;
+        try {
+            result = run();
+        } catch (Exception e) {
+            LOGGER.error("Unexpected error occurred while running benchmark", e);
+            System.exit(1);
+            return;
+        }
+        JSONUtil.writeJSON(result);
+
+        if (StringUtils.isEmpty(baseline)) {
+            return;
+        }
+        File baselineFile = new File(baseline);
+        if (saveBaseline) {
+            try {
+                result.tolerances = new TreeMap<>();
+                for (Metric metric : Metric.values()) {
+                    result.tolerances.put(metric.name, tolerance);
+                }
+                FileUtils.writeStringToFile(baselineFile, gson().toJson(result) + '\n', StandardCharsets.UTF_8);
+                LOGGER.info("Saved baseline to {}", baselineFile);
+            } catch (IOException e) {
+                LOGGER.error("Failed to write baseline {}", baselineFile, e);
+                System.exit(1);
+            }
+            return;
+        }
+
+        if (!baselineFile.isFile()) {
+            LOGGER.warn("Baseline {} does not exist, nothing to compare with, record it with --save-baseline",
+                    baselineFile);
+            return;
+        }
+        Result expected;
+        try (Reader r = new InputStreamReader(new FileInputStream(baselineFile), StandardCharsets.UTF_8)) {
+            expected = gson().fromJson(r, Result.class);
+        } catch (Exception e) {
+            LOGGER.error("Failed to read baseline {}", baselineFile, e);
+            System.exit(1);
+            return;
+        }
+        if (expected.files != result.files) {
+            LOGGER.error("Baseline {} was recorded on {} file(s), current corpus has {}, record it again with --save-baseline",
+                    baselineFile, expected.files, result.files);
+            System.exit(1);
+        }
+        if (!compare(expected, result)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs warm-up and measured iterations
+     * @return measured metrics
+     * @throws IOException
+     */
+    Result run() throws IOException {
+        for (int i = 0; i < warmup; i++) {
+            LOGGER.info("Warm-up run {} of {}", i + 1, warmup);
+            iteration();
+        }
+
+        List<Run> runs = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            LOGGER.info("Measured run {} of {}", i + 1, iterations);
+            runs.add(iteration());
+        }
+
+        Result result = new Result();
+        if (runs.isEmpty()) {
+            return result;
+        }
+        result.files = runs.get(0).files;
+        result.refs = runs.get(0).refs;
+        result.defs = runs.get(0).defs;
+        result.metrics.put(Metric.FILES_PER_SEC.name, median(runs, run -> run.files / seconds(run.time)));
+        result.metrics.put(Metric.REFS_PER_SEC.name, median(runs, run -> run.refs / seconds(run.time)));
+        result.metrics.put(Metric.PEAK_HEAP.name,
+                (double) runs.stream().mapToLong(run -> run.peakHeap).max().getAsLong() / FileUtils.ONE_MB);
+        result.metrics.put(Metric.GC_TIME.name, median(runs, run -> (double) run.gcTime));
+        if (allocations) {
+            measureAllocations(result);
+        }
+        return result;
+    }
+
+    /**
+     * Graphs all source units once on a single thread with in-memory graph data, counting bytes allocated in
+     * each stage, and measures heap that graph data of each unit retains once the rest of graph is gone
+     * @param result results to add allocation metrics to
+     * @throws IOException
+     */
+    private void measureAllocations(Result result) throws IOException {
+        AllocationMeter meter = AllocationMeter.create();
+        if (meter == null) {
+            LOGGER.warn("JVM does not count allocated bytes per thread, skipping allocation budgets");
+            return;
+        }
+        LOGGER.info("Allocation run");
+        int threads = graph.threads;
+        int writeQueue = graph.writeQueue;
+        int heapBudget = graph.heapBudget;
+        graph.threads = 0;
+        graph.writeQueue = 0;
+        graph.heapBudget = 0;
+        graph.allocations = meter;
+        long graphData = 0;
+        long refs = 0;
+        try {
+            for (SourceUnit unit : new ScanCommand().scan()) {
+                long before = usedHeap();
+                ObjCGraph g = graph.graph(unit, NullOutputStream.NULL_OUTPUT_STREAM);
+                refs += g.getRefCount();
+                retained = g.writer;
+                g = null;
+                graphData += Math.max(0, usedHeap() - before);
+                retained = null;
+            }
+        } finally {
+            graph.threads = threads;
+            graph.writeQueue = writeQueue;
+            graph.heapBudget = heapBudget;
+            graph.allocations = null;
+        }
+
+        for (Metric metric : Metric.values()) {
+            if (metric.stage != null) {
+                result.metrics.put(metric.name, meter.getBytesPerKb(metric.stage));
+            }
+        }
+        if (refs > 0) {
+            result.metrics.put(Metric.GRAPH_DATA.name, graphData * 1000.0 / refs);
+        }
+        LOGGER.info("{} KB of source, allocated MB: read {}, lex {}, parse {}, walk {}, serialize {}; graph data {} MB",
+                meter.getInput() / 1024,
+                meter.getBytes(AllocationMeter.Stage.READ) / FileUtils.ONE_MB,
+                meter.getBytes(AllocationMeter.Stage.LEX) / FileUtils.ONE_MB,
+                meter.getBytes(AllocationMeter.Stage.PARSE) / FileUtils.ONE_MB,
+                meter.getBytes(AllocationMeter.Stage.WALK) / FileUtils.ONE_MB,
+                meter.getBytes(AllocationMeter.Stage.SERIALIZE) / FileUtils.ONE_MB,
+                graphData / FileUtils.ONE_MB);
+    }
+
+    /**
+     * Scans and graphs all source units once, graph output is discarded
+     * @return run measurements
+     * @throws IOException
+     */
+    private Run iteration() throws IOException {
+        System.gc();
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                pools.add(pool);
+            }
+        }
+        long gcTime = gcTime();
+        long start = System.nanoTime();
+
+        Run run = new Run();
+        ScanCommand scan = new ScanCommand();
+        for (SourceUnit unit : scan.scan()) {
+            ObjCGraph g = graph.graph(unit, NullOutputStream.NULL_OUTPUT_STREAM);
+            run.files += unit.Files.size();
+            run.defs += g.getDefCount();
+            run.refs += g.getRefCount();
+        }
+
+        run.time = System.nanoTime() - start;
+        run.gcTime = gcTime() - gcTime;
+        for (MemoryPoolMXBean pool : pools) {
+            run.peakHeap += pool.getPeakUsage().getUsed();
+        }
+        LOGGER.info("{} file(s), {} def(s), {} ref(s) in {} ms, peak heap {} MB, GC {} ms",
+                run.files,
+                run.defs,
+                run.refs,
+                TimeUnit.NANOSECONDS.toMillis(run.time),
+                run.peakHeap / FileUtils.ONE_MB,
+                run.gcTime);
+        return run;
+    }
+
+    /**
+     * Logs every metric against baseline
+     * @param expected baseline
+     * @param actual current results
+     * @return false if some metric regressed beyond tolerance
+     */
+    private boolean compare(Result expected, Result actual) {
+        boolean ok = true;
+        for (Metric metric : Metric.values()) {
+            Double base = expected.metrics.get(metric.name);
+            Double value = actual.metrics.get(metric.name);
+            if (base == null || value == null) {
+                continue;
+            }
+            double allowed = expected.tolerances == null ?
+                    tolerance :
+                    expected.tolerances.getOrDefault(metric.name, tolerance);
+            double change = base == 0 ? 0 : 100 * (value - base) / base;
+            double regression = metric.higherIsBetter ? -change : change;
+            // small absolute differences (a few ms of GC, a few MB of heap) are noise
+            boolean failed = regression > allowed && Math.abs(value - base) > metric.noise;
+            if (failed) {
+                LOGGER.error("{}: {} vs baseline {} ({}%), tolerance {}%",
+                        metric.name, format(value), format(base), format(change), format(allowed));
+                ok = false;
+            } else {
+                LOGGER.info("{}: {} vs baseline {} ({}%)",
+                        metric.name, format(value), format(base), format(change));
+            }
+        }
+        return ok;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static double median(List<Run> runs, ToDoubleFunction<Run> f) {
+        double[] values = runs.stream().mapToDouble(f).sorted().toArray();
+        int middle = values.length / 2;
+        return values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(nanos, 1) / 1e9;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static Gson gson() {
+        return new GsonBuilder().setPrettyPrinting().create();
+    }
+
+    /**
+     * Benchmark metrics
+     */
+    enum Metric {
+        FILES_PER_SEC("filesPerSec", true, 0),
+        REFS_PER_SEC("refsPerSec", true, 0),
+        PEAK_HEAP("peakHeapMB", false, 16),
+        GC_TIME("gcTimeMs", false, 50),
+        READ_ALLOCATION("readBytesPerKB", AllocationMeter.Stage.READ),
+        LEX_ALLOCATION("lexBytesPerKB", AllocationMeter.Stage.LEX),
+        PARSE_ALLOCATION("parseBytesPerKB", AllocationMeter.Stage.PARSE),
+        WALK_ALLOCATION("walkBytesPerKB", AllocationMeter.Stage.WALK),
+        SERIALIZE_ALLOCATION("serializeBytesPerKB", AllocationMeter.Stage.SERIALIZE),
+        GRAPH_DATA("graphDataBytesPer1kRefs", false, 0);
+
+        /**
+         * Name in results and baseline file
+         */
+        final String name;
+
+        final boolean higherIsBetter;
+
+        /**
+         * Absolute difference that is never reported as regression
+         */
+        final double noise;
+
+        /**
+         * Stage whose allocations are measured, null for other metrics
+         */
+        final AllocationMeter.Stage stage;
+
+        Metric(String name, boolean higherIsBetter, double noise) {
+            this.name = name;
+            this.higherIsBetter = higherIsBetter;
+            this.noise = noise;
+            this.stage = null;
+        }
+
+        Metric(String name, AllocationMeter.Stage stage) {
+            this.name = name;
+            this.higherIsBetter = false;
+            this.noise = 0;
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * Measurements of a single run
+     */
+    private static class Run {
+        int files;
+        long defs;
+        long refs;
+        long time;
+        long gcTime;
+        long peakHeap;
+    }
+
+    /**
+     * Benchmark results, also the format of baseline file
+     */
+    static class Result {
+        int files;
+        long defs;
+        long refs;
+        Map<String, Double> metrics = new TreeMap<>();
+        Map<String, Double> tolerances;
+    }
+}
@@ -0,0 +1,139 @@
+package com.sourcegraph.toolchain.objc;
+
+import java.util.*;
+
+/**
+ * Class hierarchy table: superclass links and adopted protocols of classes (and parent protocols of protocols).
+ * Resolves (class, selector) to the class or protocol that declares method, looking at the class itself (categories
+ * declare methods under class name), then at superclasses, then at protocols adopted anywhere in the chain.
+ * Only method declarations visible from file message is sent in count (see {@link ImportGraph}). Results are
+ * memoized per set of visible files, so each chain is walked once per selector. Memo is dropped whenever hierarchy
+ * or selector index changes, so files walked later (or walked again by IncrementalFile) never see stale results
+ */
+class ClassHierarchy {
+
+    /**
+     * Marks negative cache entries
+     */
+    private static final String UNRESOLVED = "";
+
+    private SelectorIndex selectors;
+
+    // class -> superclass
+    private Map<String, String> superclasses = new HashMap<>();
+    // class or protocol -> adopted or parent protocols
+    private Map<String, Set<String>> protocols = new HashMap<>();
+
+    // class -> (selector -> declaring class or protocol)
+    private Map<String, Map<String, String>> cache = new HashMap<>();
+    // version of selector index and visible files cache was filled with
+    private int cacheVersion;
+    private BitSet cacheVisible;
+
+    ClassHierarchy(SelectorIndex selectors) {
+        this.selectors = selectors;
+    }
+
+    /**
+     * Registers superclass link
+     * @param className class name
+     * @param superclassName superclass name
+     */
+    void setSuperclass(String className, String superclassName) {
+        if (!superclassName.equals(superclasses.put(className, superclassName))) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @param className class name
+     * @return superclass name or null if unknown
+     */
+    String getSuperclass(String className) {
+        return superclasses.get(className);
+    }
+
+    /**
+     * @return class -> superclass links
+     */
+    Map<String, String> getSuperclasses() {
+        return Collections.unmodifiableMap(superclasses);
+    }
+
+    /**
+     * Registers protocol adopted by class (or by class' category) or parent protocol of protocol
+     * @param name class or protocol name
+     * @param protocol protocol name
+     */
+    void addProtocol(String name, String protocol) {
+        if (protocols.computeIfAbsent(name, k -> new LinkedHashSet<>()).add(protocol)) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return class or protocol -> adopted or parent protocols
+     */
+    Map<String, Set<String>> getProtocols() {
+        return Collections.unmodifiableMap(protocols);
+    }
+
+    /**
+     * Resolves method
+     * @param className class name
+     * @param selector method selector
+     * @param visible ids of files method declarations may come from, null if all are visible
+     * @return Owner/selector definition key where owner is class or protocol declaring method,
+     * null if method was not found in the hierarchy
+     */
+    String resolve(String className, String selector, BitSet visible) {
+        if (cacheVersion != selectors.getVersion() || cacheVisible != visible) {
+            cache.clear();
+            cacheVersion = selectors.getVersion();
+            cacheVisible = visible;
+        }
+        Map<String, String> methods = cache.computeIfAbsent(className, k -> new HashMap<>());
+        String owner = methods.get(selector);
+        if (owner == null) {
+            owner = lookup(className, selector, visible);
+            methods.put(selector, owner == null ? UNRESOLVED : owner);
+        }
+        return owner == null || owner == UNRESOLVED ? null : owner + '/' + selector;
+    }
+
+    private String lookup(String className, String selector, BitSet visible) {
+        if (!selectors.isDeclared(selector)) {
+            return null;
+        }
+        // class chain first, guarding against cycles in broken code
+        Set<String> chain = new LinkedHashSet<>();
+        for (String c = className; c != null && chain.add(c); c = superclasses.get(c)) {
+            if (selectors.declares(selector, c, visible)) {
+                return c;
+            }
+        }
+        // then protocols adopted by classes in the chain and their parents
+        Set<String> visited = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        for (String c : chain) {
+            Set<String> adopted = protocols.get(c);
+            if (adopted != null) {
+                queue.addAll(adopted);
+            }
+        }
+        while (!queue.isEmpty()) {
+            String protocol = queue.poll();
+            if (!visited.add(protocol)) {
+                continue;
+            }
+            if (selectors.declares(selector, protocol, visible)) {
+                return protocol;
+            }
+            Set<String> parents = protocols.get(protocol);
+            if (parents != null) {
+                queue.addAll(parents);
+            }
+        }
+        return null;
+    }
+}
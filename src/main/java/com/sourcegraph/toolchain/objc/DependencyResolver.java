@@ -0,0 +1,250 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import com.sourcegraph.toolchain.core.DepResolution;
+import com.sourcegraph.toolchain.core.JSONUtil;
+import com.sourcegraph.toolchain.core.RawDependency;
+import com.sourcegraph.toolchain.core.ResolvedTarget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Maps CocoaPods and Carthage dependencies to resolved targets. Resolution table of each lockfile is cached
+ * on disk under lockfile's SHA-256, so identical lockfiles (common across many repositories) are parsed
+ * and resolved once. Only successful resolutions are cached, failures depend on state of spec repositories
+ * (pod may be found after `pod repo update`) and are retried on every run
+ */
+class DependencyResolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DependencyResolver.class);
+
+    /**
+     * Bump when resolution rules change to invalidate cached tables
+     */
+    private static final String CACHE_FORMAT = "1";
+
+    /**
+     * Unit scan makes for files no Xcode target covers, or for all files if there are no Xcode projects. Pod
+     * sources usually end up there, because targets of the Pods project are skipped
+     */
+    private static final String TARGET_UNIT = ".";
+    private static final String TARGET_UNIT_TYPE = "ObjectiveC";
+
+    private static final Type CACHE_TYPE = new TypeToken<Map<String, CacheEntry>>() {
+    }.getType();
+
+    private File cacheDir;
+
+    private Collection<File> podRepos;
+
+    /**
+     * @param cacheDir directory to keep cached resolution tables in, null disables caching
+     * @param podRepos directory that holds CocoaPods spec repositories (~/.cocoapods/repos), may be null
+     */
+    DependencyResolver(File cacheDir, File podRepos) {
+        this.cacheDir = cacheDir;
+        this.podRepos = new ArrayList<>();
+        if (podRepos != null) {
+            File[] repos = podRepos.listFiles(File::isDirectory);
+            if (repos != null) {
+                Arrays.sort(repos);
+                this.podRepos.addAll(Arrays.asList(repos));
+            }
+        }
+    }
+
+    /**
+     * Resolves dependencies
+     * @param dependencies raw dependencies, lockfile is expected in RawDependency.file
+     * @return resolution for every dependency, in the same order
+     */
+    List<DepResolution> resolve(Collection<RawDependency> dependencies) {
+        Map<String, Map<String, CacheEntry>> tables = new HashMap<>();
+        Map<String, List<RawDependency>> byLockfile = new LinkedHashMap<>();
+        for (RawDependency dependency : dependencies) {
+            byLockfile.computeIfAbsent(String.valueOf(dependency.file), k -> new ArrayList<>()).add(dependency);
+        }
+        for (Map.Entry<String, List<RawDependency>> entry : byLockfile.entrySet()) {
+            tables.put(entry.getKey(), table(entry.getKey(), entry.getValue()));
+        }
+
+        List<DepResolution> ret = new ArrayList<>();
+        for (RawDependency dependency : dependencies) {
+            CacheEntry resolved = tables.get(String.valueOf(dependency.file)).get(key(dependency));
+            if (resolved == null) {
+                resolved = resolve(dependency);
+            }
+            ret.add(new DepResolution(dependency, resolved.Target, resolved.Error));
+        }
+        return ret;
+    }
+
+    /**
+     * @param lockfile lockfile path
+     * @param dependencies dependencies listed in lockfile
+     * @return resolution table of a lockfile, either cached (successful resolutions only) or computed (and cached)
+     */
+    private Map<String, CacheEntry> table(String lockfile, Collection<RawDependency> dependencies) {
+        File cacheFile = cacheFile(lockfile);
+        Map<String, CacheEntry> table = null;
+        if (cacheFile != null && cacheFile.isFile()) {
+            try (Reader r = new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8)) {
+                table = new Gson().fromJson(r, CACHE_TYPE);
+                if (table != null) {
+                    LOGGER.debug("Using cached resolutions of {} from {}", lockfile, cacheFile);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Ignoring unreadable cache file {}", cacheFile, e);
+            }
+        }
+        boolean changed = table == null;
+        if (table == null) {
+            table = new TreeMap<>();
+        }
+
+        // dependencies that failed to resolve before are not cached, trying them again
+        for (RawDependency dependency : dependencies) {
+            String key = key(dependency);
+            if (!table.containsKey(key)) {
+                CacheEntry entry = resolve(dependency);
+                table.put(key, entry);
+                changed |= entry.Error == null;
+            }
+        }
+        if (cacheFile != null && changed) {
+            Map<String, CacheEntry> resolved = new TreeMap<>();
+            for (Map.Entry<String, CacheEntry> entry : table.entrySet()) {
+                if (entry.getValue().Error == null) {
+                    resolved.put(entry.getKey(), entry.getValue());
+                }
+            }
+            try {
+                Files.createDirectories(cacheFile.getParentFile().toPath());
+                File tmp = new File(cacheFile.getPath() + ".tmp");
+                try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                    new Gson().toJson(resolved, CACHE_TYPE, w);
+                }
+                // rename is atomic, so concurrent runs never see partially written table
+                if (!tmp.renameTo(cacheFile)) {
+                    Files.deleteIfExists(tmp.toPath());
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to cache resolutions of {} in {}", lockfile, cacheFile, e);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @param lockfile lockfile path
+     * @return cache file for a given lockfile or null if caching is disabled or lockfile can't be read
+     */
+    private File cacheFile(String lockfile) {
+        if (cacheDir == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(CACHE_FORMAT.getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(new File(lockfile).toPath()));
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(cacheDir, hash + ".json");
+        } catch (IOException | NoSuchAlgorithmException e) {
+            LOGGER.debug("Not caching resolutions of {}: {}", lockfile, e.getMessage());
+            return null;
+        }
+    }
+
+    private CacheEntry resolve(RawDependency dependency) {
+        if (XcodeProject.TARGET_DEPENDENCY.equals(dependency.groupID)) {
+            // another target of the same project, no repository means current one
+            return new CacheEntry(new ResolvedTarget(null, dependency.artifactID, TARGET_UNIT_TYPE, null), null);
+        }
+        String repo = dependency.repoURI;
+        if (repo == null && Lockfiles.COCOAPODS.equals(dependency.groupID)) {
+            repo = podSource(dependency.artifactID, dependency.version);
+        }
+        if (repo == null) {
+            return new CacheEntry(null, "Unable to find source repository of " + dependency.groupID + ' ' +
+                    dependency.artifactID + ' ' + dependency.version);
+        }
+        return new CacheEntry(new ResolvedTarget(repo, TARGET_UNIT, TARGET_UNIT_TYPE, dependency.version), null);
+    }
+
+    /**
+     * Looks for pod's git source in local CocoaPods spec repositories,
+     * both sharded (Specs/a/b/c/Name) and flat (Specs/Name) layouts are supported
+     * @param pod pod name
+     * @param version pod version
+     * @return git URL or null
+     */
+    private String podSource(String pod, String version) {
+        String shard = shard(pod);
+        for (File repo : podRepos) {
+            for (File dir : new File[]{new File(repo, "Specs/" + shard + '/' + pod), new File(repo, "Specs/" + pod)}) {
+                File spec = new File(dir, version + '/' + pod + ".podspec.json");
+                if (!spec.isFile()) {
+                    continue;
+                }
+                try {
+                    JsonElement source = JSONUtil.readJSON(spec).getAsJsonObject().get("source");
+                    if (source != null && source.isJsonObject()) {
+                        JsonElement git = ((JsonObject) source).get("git");
+                        if (git != null && git.isJsonPrimitive()) {
+                            return git.getAsString();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warn("Failed to read pod spec {}", spec, e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return CocoaPods shard prefix of a pod, first three hex digits of MD5 of pod name as a/b/c
+     */
+    private static String shard(String pod) {
+        try {
+            byte[] md5 = MessageDigest.getInstance("MD5").digest(pod.getBytes(StandardCharsets.UTF_8));
+            return Character.forDigit((md5[0] >> 4) & 0xF, 16) + "/" +
+                    Character.forDigit(md5[0] & 0xF, 16) + '/' +
+                    Character.forDigit((md5[1] >> 4) & 0xF, 16);
+        } catch (NoSuchAlgorithmException e) {
+            return pod;
+        }
+    }
+
+    private static String key(RawDependency dependency) {
+        return dependency.groupID + ':' + dependency.artifactID + '@' + dependency.version;
+    }
+
+    /**
+     * Cached resolution of a single dependency
+     */
+    private static class CacheEntry {
+
+        ResolvedTarget Target;
+        String Error;
+
+        CacheEntry(ResolvedTarget target, String error) {
+            this.Target = target;
+            this.Error = error;
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package com.sourcegraph.toolchain.objc;
 
 import com.beust.jcommander.Parameter;
+import com.google.gson.Gson;
 import com.sourcegraph.toolchain.core.JSONUtil;
+import com.sourcegraph.toolchain.core.SourceUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 
 public class DepresolveCommand {
 
@@ -14,11 +23,36 @@ public class DepresolveCommand {
     @Parameter(names = {"--debug-unit-file"}, description = "The path to a source unit input file, which will be read as though it came from stdin. Used to mimic stdin when you can't actually pipe to stdin (e.g., in IntelliJ run configurations).")
     String debugUnitFile;
 
+    @Parameter(names = {"--cache-dir"}, description = "The path to a directory to cache lockfile resolutions in, empty value disables caching")
+    String cacheDir = new File(SystemUtils.getUserHome(), ".srclib-cache/objc-depresolve").getPath();
+
+    @Parameter(names = {"--pod-repos"}, description = "The path to a directory with CocoaPods spec repositories used to find pod sources")
+    String podRepos = new File(SystemUtils.getUserHome(), ".cocoapods/repos").getPath();
+
     /**
      * Main method
      */
     public void Execute() {
-        JSONUtil.writeJSON(Collections.emptyList());
+        SourceUnit unit = null;
+        try {
+            Reader r;
+            if (!StringUtils.isEmpty(debugUnitFile)) {
+                LOGGER.debug("Reading source unit JSON data from {}", debugUnitFile);
+                r = Files.newBufferedReader(FileSystems.getDefault().getPath(debugUnitFile));
+            } else {
+                r = new InputStreamReader(System.in);
+            }
+            unit = new Gson().fromJson(r, SourceUnit.class);
+            r.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to read source unit data", e);
+            System.exit(1);
+        }
+
+        DependencyResolver resolver = new DependencyResolver(
+                StringUtils.isEmpty(cacheDir) ? null : new File(cacheDir),
+                StringUtils.isEmpty(podRepos) ? null : new File(podRepos));
+        JSONUtil.writeJSON(resolver.resolve(unit.Dependencies));
     }
 
 }
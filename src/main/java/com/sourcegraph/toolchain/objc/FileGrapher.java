@@ -2,6 +2,7 @@ package com.sourcegraph.toolchain.objc;
 
 import com.sourcegraph.toolchain.core.Def;
 import com.sourcegraph.toolchain.core.DefKey;
+import com.sourcegraph.toolchain.core.DefKind;
 import com.sourcegraph.toolchain.core.Ref;
 import com.sourcegraph.toolchain.objc.antlr4.ObjCBaseListener;
 import com.sourcegraph.toolchain.objc.antlr4.ObjCLexer;
@@ -12,16 +13,12 @@ import org.antlr.v4.runtime.dfa.DFA;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.apache.commons.lang3.ArrayUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
 
 public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener {
 
-    private static Logger LOGGER = LoggerFactory.getLogger(FileGrapher.class);
-
     private static final String[] PREDEFINED_TYPES = new String[]{
             "id", "void", "char", "short", "int", "long", "float", "double", "signed", "unsigned"
     };
@@ -34,7 +31,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
     private String currentMethodName;
 
     private Map<String, String> paramsVars = new HashMap<>();
-    private Stack<Map<String, Var>> localVars = new Stack<>();
+    private ScopeTable localVars = new ScopeTable();
 
     private int blockCounter;
 
@@ -46,28 +43,109 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
     @Override
     public void enterPreprocessor_declaration(ObjCParser.Preprocessor_declarationContext ctx) {
 
+        if (ctx.IMPORT() == null && ctx.INCLUDE() == null) {
+            return;
+        }
+        String fileName = importedFile(ctx.getText());
+        if (fileName != null) {
+            graph.imported(fileName, file);
+        }
+    }
+
+    /**
+     * Prescans preprocessed source for #import and #include directives, skipping comments and string literals the
+     * way lexer does, so imported files can be processed before importer is parsed
+     * @param data source
+     * @param length source length
+     * @return imported file names in source order
+     */
+    static List<String> importedFiles(char[] data, int length) {
+        List<String> ret = new ArrayList<>();
+        int i = 0;
+        while (i < length) {
+            char c = data[i];
+            char next = i + 1 < length ? data[i + 1] : 0;
+            if (c == '/' && next == '*') {
+                i += 2;
+                while (i < length && !(data[i] == '*' && i + 1 < length && data[i + 1] == '/')) {
+                    i++;
+                }
+                i += 2;
+            } else if (c == '/' && next == '/') {
+                i = lineEnd(data, i, length);
+            } else if (c == '"' || c == '\'') {
+                i++;
+                while (i < length && data[i] != c && data[i] != '\n') {
+                    i += data[i] == '\\' ? 2 : 1;
+                }
+                i++;
+            } else if (c == '#' && (startsWith(data, i, length, "#import") || startsWith(data, i, length, "#include"))) {
+                int end = lineEnd(data, i, length);
+                String fileName = importedFile(new String(data, i, end - i));
+                if (fileName != null) {
+                    ret.add(fileName);
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return ret;
+    }
+
+    private static int lineEnd(char[] data, int from, int length) {
+        while (from < length && data[from] != '\n') {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean startsWith(char[] data, int from, int length, String prefix) {
+        if (length - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[from + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Extracts file name from #import or #include directive
+     * @param directive directive text
+     * @return imported file name or null
+     */
+    static String importedFile(String directive) {
         String prefix;
-        if (ctx.IMPORT() != null) {
+        if (directive.startsWith("#import")) {
             prefix = "#import";
-        } else if (ctx.INCLUDE() != null) {
+        } else if (directive.startsWith("#include")) {
             prefix = "#include";
         } else {
-            return;
+            return null;
         }
-        String fileName = ctx.getText();
-        if (!fileName.startsWith(prefix)) {
-            return;
+        String fileName = directive.substring(prefix.length()).trim();
+        if (fileName.isEmpty()) {
+            return null;
         }
-        fileName = fileName.substring(prefix.length()).trim();
         // cut <> or ""
-        fileName = fileName.substring(1, fileName.length() - 1);
-        graph.process(fileName, file);
+        char open = fileName.charAt(0);
+        if (open != '"' && open != '<') {
+            return null;
+        }
+        int close = fileName.indexOf(open == '"' ? '"' : '>', 1);
+        if (close < 0) {
+            return null;
+        }
+        return fileName.substring(1, close);
     }
 
     @Override
     public void enterClass_implementation(ObjCParser.Class_implementationContext ctx) {
 
-        localVars.push(new HashMap<>());
+        localVars.enter();
         currentClassName = ctx.class_name().getText();
 
         Ref interfaceRef = ref(ctx.class_name());
@@ -85,14 +163,14 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
     @Override
     public void exitClass_implementation(ObjCParser.Class_implementationContext ctx) {
-        localVars.pop();
+        localVars.exit();
         currentClassName = null;
     }
 
     @Override
     public void enterCategory_implementation(ObjCParser.Category_implementationContext ctx) {
 
-        localVars.push(new HashMap<>());
+        localVars.enter();
         currentClassName = ctx.class_name().getText();
 
         Ref interfaceRef = ref(ctx.class_name());
@@ -110,35 +188,35 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
     @Override
     public void exitCategory_implementation(ObjCParser.Category_implementationContext ctx) {
-        localVars.pop();
+        localVars.exit();
         currentClassName = null;
     }
 
     @Override
     public void enterClass_method_definition(ObjCParser.Class_method_definitionContext ctx) {
         currentMethodName = getFuncName(ctx.method_definition().method_selector());
-        localVars.push(new HashMap<>());
+        localVars.enter();
         processMethodDefinition(ctx.method_definition(), true);
     }
 
     @Override
     public void exitClass_method_definition(ObjCParser.Class_method_definitionContext ctx) {
         currentMethodName = null;
-        localVars.pop();
+        localVars.exit();
         paramsVars.clear();
     }
 
     @Override
     public void enterInstance_method_definition(ObjCParser.Instance_method_definitionContext ctx) {
         currentMethodName = getFuncName(ctx.method_definition().method_selector());
-        localVars.push(new HashMap<>());
+        localVars.enter();
         processMethodDefinition(ctx.method_definition(), false);
     }
 
     @Override
     public void exitInstance_method_definition(ObjCParser.Instance_method_definitionContext ctx) {
         currentMethodName = null;
-        localVars.pop();
+        localVars.exit();
         paramsVars.clear();
     }
 
@@ -166,7 +244,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
             if (ident.struct_or_union_specifier() == null &&
                     ident.class_name() == null &&
                     ident.enum_specifier() == null) {
-                Def varDef = def(ident, "VAR");
+                Def varDef = def(ident, DefKind.VAR);
                 Map<String, String> vars = null;
                 String defKey;
                 if (currentClassName == null) {
@@ -174,9 +252,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                         vars = graph.globalVars;
                         defKey = varDef.name;
                     } else {
-                        Var var = new Var(varDef.name, typeName);
-                        localVars.peek().put(varDef.name, var);
-                        defKey = var.defKey;
+                        defKey = defineLocal(varDef.name, typeName);
                     }
                 } else {
                     if (currentMethodName == null) {
@@ -187,9 +263,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                         }
                         defKey = currentDefKey(varDef.name);
                     } else {
-                        Var var = new Var(varDef.name, typeName);
-                        localVars.peek().put(varDef.name, var);
-                        defKey = var.defKey;
+                        defKey = defineLocal(varDef.name, typeName);
                     }
                 }
                 varDef.defKey = new DefKey(null, defKey);
@@ -220,7 +294,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                     emit(externRef);
                     graph.globalVars.put(ident.getText(), typeName);
                 } else {
-                    Def varDef = def(ident, "VAR");
+                    Def varDef = def(ident, DefKind.VAR);
                     Map<String, String> vars = null;
                     String defKey;
                     if (currentClassName == null) {
@@ -228,9 +302,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                             vars = graph.globalVars;
                             defKey = varDef.name;
                         } else {
-                            Var var = new Var(varDef.name, typeName);
-                            localVars.peek().put(varDef.name, var);
-                            defKey = var.defKey;
+                            defKey = defineLocal(varDef.name, typeName);
                         }
                     } else {
                         if (currentMethodName == null) {
@@ -241,9 +313,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                             }
                             defKey = currentDefKey(varDef.name);
                         } else {
-                            Var var = new Var(varDef.name, typeName);
-                            localVars.peek().put(varDef.name, var);
-                            defKey = var.defKey;
+                            defKey = defineLocal(varDef.name, typeName);
                         }
                     }
                     varDef.defKey = new DefKey(null, defKey);
@@ -268,53 +338,60 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
         String funcName = getFuncName(messageSelectorContext);
         String receiver = ctx.receiver().getText();
-        String messageKey;
 
-        if (receiver.equals("self") || receiver.equals("super")) {
-            // TODO: separate super
-            messageKey = currentClassName + '/' + funcName;
-        } else {
-            // class method?
-            Var var = getLocalVariable(receiver);
-            if (var != null) {
-                messageKey = var.type + '/' + funcName;
+        ParserRuleContext fnCallCtx;
+        if (messageSelectorContext.selector() == null) {
+            ObjCParser.Keyword_argumentContext keywordArgumentContext = messageSelectorContext.
+                    keyword_argument(0);
+            if (keywordArgumentContext != null) {
+                fnCallCtx = keywordArgumentContext.selector();
             } else {
-                String type = paramsVars.get(receiver);
-                if (type != null) {
-                    messageKey = type + '/' + funcName;
-                } else {
-                    Map<String, String> currentInstanceVars = graph.instanceVars.get(currentClassName);
-                    type = currentInstanceVars != null ? currentInstanceVars.get(receiver) : null;
-                    if (type != null) {
-                        messageKey = type + '/' + funcName;
-                    } else {
-                        type = graph.globalVars.get(receiver);
-                        if (type != null) {
-                            messageKey = type + '/' + funcName;
-                        } else {
-                            messageKey = guessMessageKey(ctx.receiver(), funcName);
-                        }
-                    }
-                }
+                // [x retain]
+                fnCallCtx = messageSelectorContext;
             }
+        } else {
+            fnCallCtx = messageSelectorContext.selector();
         }
-        if (messageKey != null) {
-            ParserRuleContext fnCallCtx;
-            if (messageSelectorContext.selector() == null) {
-                ObjCParser.Keyword_argumentContext keywordArgumentContext = messageSelectorContext.
-                        keyword_argument(0);
-                if (keywordArgumentContext != null) {
-                    fnCallCtx = keywordArgumentContext.selector();
-                } else {
-                    // [x retain]
-                    fnCallCtx = messageSelectorContext;
-                }
-            } else {
-                fnCallCtx = messageSelectorContext.selector();
-            }
-            Ref fnCallRef = ref(fnCallCtx);
-            fnCallRef.defKey = new DefKey(null, messageKey);
-            emit(fnCallRef);
+        Ref fnCallRef = ref(fnCallCtx);
+
+        if (receiver.equals("super")) {
+            // method is looked up starting at superclass when hierarchy is known
+            graph.linker.defer(Linker.Kind.SUPER_MESSAGE,
+                    fnCallRef,
+                    currentClassName,
+                    currentClassName,
+                    funcName,
+                    currentClassName + '/' + funcName);
+            return;
+        }
+        String type;
+        boolean typed;
+        if (receiver.equals("self")) {
+            type = currentClassName;
+            typed = true;
+        } else {
+            // class method?
+            int var = localVars.lookup(receiver);
+            type = var != ScopeTable.NONE ? localVars.type(var) : paramsVars.get(receiver);
+            typed = type != null || var != ScopeTable.NONE;
+        }
+        if (typed) {
+            // receiver's type is known, resolving through class hierarchy (or selector index for id and id<Protocol>)
+            // when all files are known
+            graph.linker.defer(Linker.Kind.TYPED_MESSAGE,
+                    fnCallRef,
+                    currentClassName,
+                    type,
+                    funcName,
+                    SelectorIndex.isDynamic(type) ? null : type + '/' + funcName);
+        } else {
+            // instance or global variable, resolved when all files are known
+            graph.linker.defer(Linker.Kind.MESSAGE,
+                    fnCallRef,
+                    currentClassName,
+                    receiver,
+                    funcName,
+                    guessMessageKey(ctx.receiver(), funcName));
         }
     }
 
@@ -325,6 +402,9 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
         }
         String text = receiver.getText();
         int len = text.length();
+        if (len == 0) {
+            return null;
+        }
         int state = 0;
         for (int i = 0; i < len; i++) {
             char c = text.charAt(i);
@@ -361,7 +441,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
     public void enterClass_interface(ObjCParser.Class_interfaceContext ctx) {
 
         // interface definition
-        Def interfaceDef = def(ctx.class_name(), "CLASS");
+        Def interfaceDef = def(ctx.class_name(), DefKind.CLASS);
         interfaceDef.defKey = new DefKey(null, interfaceDef.name);
         emit(interfaceDef);
 
@@ -377,6 +457,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
         // reference to superclass if any
         ObjCParser.Superclass_nameContext superclassNameContext = ctx.superclass_name();
         if (superclassNameContext != null) {
+            graph.hierarchy.setSuperclass(interfaceDef.name, superclassNameContext.getText());
             Ref superInterfaceRef = ref(superclassNameContext);
             superInterfaceRef.defKey = new DefKey(null, superclassNameContext.getText());
             emit(superInterfaceRef);
@@ -384,7 +465,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
         // reference to protocols if any
         ObjCParser.Protocol_reference_listContext protocolReferenceListContext = ctx.protocol_reference_list();
-        processProtocolReferences(protocolReferenceListContext);
+        processProtocolReferences(currentClassName, protocolReferenceListContext);
 
         // instance variables
         ObjCParser.Instance_variablesContext instanceVariablesContext = ctx.instance_variables();
@@ -419,7 +500,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
         // reference to protocols if any
         ObjCParser.Protocol_reference_listContext protocolReferenceListContext = ctx.protocol_reference_list();
-        processProtocolReferences(protocolReferenceListContext);
+        processProtocolReferences(currentClassName, protocolReferenceListContext);
 
         // instance variables
         ObjCParser.Instance_variablesContext instanceVariablesContext = ctx.instance_variables();
@@ -437,7 +518,24 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
     @Override
     public void enterProtocol_declaration(ObjCParser.Protocol_declarationContext ctx) {
-        // TODO
+
+        // protocol definition
+        Def protocolDef = def(ctx.protocol_name(), DefKind.INTERFACE);
+        protocolDef.defKey = new DefKey(null, protocolDef.name);
+        emit(protocolDef);
+
+        currentClassName = protocolDef.name;
+        graph.types.add(protocolDef.name);
+        graph.selectors.addProtocol(protocolDef.name);
+
+        // reference to parent protocols if any
+        processProtocolReferences(currentClassName, ctx.protocol_reference_list());
+
+        // required and optional methods
+        for (ObjCParser.Interface_declaration_listContext interfaceDeclarationListContext :
+                ctx.interface_declaration_list()) {
+            processDeclarationList(interfaceDeclarationListContext);
+        }
     }
 
     @Override
@@ -482,7 +580,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
         blockCounter = 0;
 
-        Def fnDef = def(ctx.identifier(), "METHOD");
+        Def fnDef = def(ctx.identifier(), DefKind.METHOD);
         fnDef.defKey = new DefKey(null, fnDef.name);
         emit(fnDef);
         graph.functions.add(fnDef.name);
@@ -522,7 +620,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                 }
                 ident = typeSpecifierContexts.get(typeSpecifierContexts.size() - 1);
             }
-            Def argDef = def(ident, "VAR");
+            Def argDef = def(ident, DefKind.VAR);
             argDef.defKey = new DefKey(null, currentDefKey(argDef.name));
             emit(argDef);
             paramsVars.put(argDef.name, typeName);
@@ -543,15 +641,22 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                 ctx.struct_declaration().struct_declarator_list().struct_declarator(0);
 
         // property def
-        Def propertyDef = def(structDeclaratorContext.declarator().direct_declarator(), "VAR");
+        Def propertyDef = def(structDeclaratorContext.declarator().direct_declarator(), DefKind.VAR);
         // adding () to distinguish from private members
         propertyDef.defKey = new DefKey(null, currentClassName + '/' + propertyDef.name + "()");
         emit(propertyDef);
 
         // type refs
+        String typeName = null;
         for (ObjCParser.Type_specifierContext typeSpecifierContext : ctx.struct_declaration().
                 specifier_qualifier_list().type_specifier()) {
-            processTypeSpecifier(typeSpecifierContext);
+            String type = processTypeSpecifier(typeSpecifierContext);
+            if (type != null) {
+                typeName = type;
+            }
+        }
+        if (typeName != null && currentClassName != null) {
+            graph.properties.computeIfAbsent(currentClassName, k -> new HashMap<>()).put(propertyDef.name, typeName);
         }
     }
 
@@ -589,33 +694,25 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                 // TODO: separate super?
                 propertyKey = currentClassName + '/' + varName;
             } else {
-                Var var = getLocalVariable(id);
-                if (var != null) {
-                    propertyKey = var.type + '/' + varName;
+                int var = localVars.lookup(id);
+                if (var != ScopeTable.NONE) {
+                    propertyKey = localVars.type(var) + '/' + varName;
                 } else {
                     String type = paramsVars.get(id);
                     if (type != null) {
                         propertyKey = type + '/' + varName;
-                    } else {
-                        Map<String, String> currentInstanceVars = graph.instanceVars.get(currentClassName);
-                        type = currentInstanceVars != null ? currentInstanceVars.get(id) : null;
-                        if (type != null) {
-                            propertyKey = type + '/' + varName;
-                        } else {
-                            type = graph.globalVars.get(id);
-                            if (type != null) {
-                                propertyKey = type + '/' + varName;
-                            }
-                        }
                     }
                 }
             }
+            // ref to method
+            Ref propertyRef = ref(identifierContext.get(0));
             if (propertyKey != null) {
-                // ref to method
-                Ref propertyRef = ref(identifierContext.get(0));
                 // adding () to distinguish private members from properties
                 propertyRef.defKey = new DefKey(null, propertyKey + "()");
                 emit(propertyRef);
+            } else {
+                // instance or global variable, resolved when all files are known
+                graph.linker.defer(Linker.Kind.PROPERTY, propertyRef, currentClassName, id, varName, null);
             }
             return;
         }
@@ -629,21 +726,19 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
         String id = ctx.identifier().getText();
 
         // ref to variable?
-        String key = null;
-        Var var = getLocalVariable(id);
-        if (var != null) {
-            key = var.defKey;
+        String key;
+        Ref varOrTypeRef = ref(ctx.identifier());
+        int var = localVars.lookup(id);
+        if (var != ScopeTable.NONE) {
+            key = localVars.defKey(var);
         } else if (paramsVars.containsKey(id)) {
             key = currentDefKey(id);
         } else {
-            Map<String, String> currentClassVars = graph.instanceVars.get(currentClassName);
-            if (currentClassVars != null && currentClassVars.containsKey(id)) {
-                key = currentClassName + '/' + id;
-            } else { // global var or type
-                key = id;
-            }
+            // instance variable, global var or type, resolved when all files are known.
+            // Unknown identifiers are still assumed to be global
+            graph.linker.defer(Linker.Kind.PRIMARY, varOrTypeRef, currentClassName, id, null, id);
+            return;
         }
-        Ref varOrTypeRef = ref(ctx.identifier());
         varOrTypeRef.defKey = new DefKey(null, key);
         emit(varOrTypeRef);
     }
@@ -659,7 +754,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
         String typeName;
         if (ctx.identifier() != null) {
-            Def typeDef = def(ctx.identifier(), "ENUM");
+            Def typeDef = def(ctx.identifier(), DefKind.ENUM);
             // TODO: encapsulate enums
             typeDef.defKey = new DefKey(null, typeDef.name);
             emit(typeDef);
@@ -672,7 +767,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
             return;
         }
         for (ObjCParser.EnumeratorContext enumeratorContext : enumeratorListContext.enumerator()) {
-            Def enumeratorDef = def(enumeratorContext.identifier(), "VAR");
+            Def enumeratorDef = def(enumeratorContext.identifier(), DefKind.VAR);
             Map<String, String> vars = null;
             String defKey;
             if (currentClassName == null) {
@@ -680,9 +775,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                     vars = graph.globalVars;
                     defKey = enumeratorDef.name;
                 } else {
-                    Var var = new Var(enumeratorDef.name, typeName);
-                    localVars.peek().put(enumeratorDef.name, var);
-                    defKey = var.defKey;
+                    defKey = defineLocal(enumeratorDef.name, typeName);
                 }
             } else {
                 if (currentMethodName == null) {
@@ -693,9 +786,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                     }
                     defKey = currentDefKey(enumeratorDef.name);
                 } else {
-                    Var var = new Var(enumeratorDef.name, typeName);
-                    localVars.peek().put(enumeratorDef.name, var);
-                    defKey = var.defKey;
+                    defKey = defineLocal(enumeratorDef.name, typeName);
                 }
             }
             enumeratorDef.defKey = new DefKey(null, defKey);
@@ -710,16 +801,14 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
     public void enterType_variable_declarator(ObjCParser.Type_variable_declaratorContext ctx) {
         ObjCParser.Direct_declaratorContext directDeclaratorContext = ctx.declarator().direct_declarator();
 
-        Def varDef = def(directDeclaratorContext, "VAR");
+        Def varDef = def(directDeclaratorContext, DefKind.VAR);
 
         for (ObjCParser.Type_specifierContext typeSpecifierContext : ctx.declaration_specifiers().type_specifier()) {
             String type = processTypeSpecifier(typeSpecifierContext);
             if (type != null) {
                 if (currentMethodName != null) {
                     // TODO
-                    Var var = new Var(varDef.name, type);
-                    localVars.peek().put(varDef.name, var);
-                    varDef.defKey = new DefKey(null, var.defKey);
+                    varDef.defKey = new DefKey(null, defineLocal(varDef.name, type));
                 } else {
                     if (currentClassName != null) {
                         // class
@@ -740,7 +829,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
 
     @Override
     public void enterFor_statement(ObjCParser.For_statementContext ctx) {
-        localVars.push(new HashMap<>());
+        localVars.enter();
 
         ObjCParser.Declaration_specifiersContext declarationSpecifiersContext = ctx.declaration_specifiers();
         if (declarationSpecifiersContext == null) {
@@ -761,38 +850,36 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                 continue;
             }
 
-            Def varDef = def(ident, "VAR");
-            Var var = new Var(varDef.name, typeName);
-            localVars.peek().put(varDef.name, var);
-            varDef.defKey = new DefKey(null, var.defKey);
+            Def varDef = def(ident, DefKind.VAR);
+            varDef.defKey = new DefKey(null, defineLocal(varDef.name, typeName));
             emit(varDef);
         }
     }
 
     @Override
     public void exitFor_statement(ObjCParser.For_statementContext ctx) {
-        localVars.pop();
+        localVars.exit();
     }
 
     @Override
     public void enterCatch_statement(ObjCParser.Catch_statementContext ctx) {
-        localVars.push(new HashMap<>());
+        localVars.enter();
     }
 
     @Override
     public void exitCatch_statement(ObjCParser.Catch_statementContext ctx) {
-        localVars.pop();
+        localVars.exit();
     }
 
     @Override
     public void enterCompound_statement(ObjCParser.Compound_statementContext ctx) {
-        localVars.push(new HashMap<>());
+        localVars.enter();
         blockCounter++;
     }
 
     @Override
     public void exitCompound_statement(ObjCParser.Compound_statementContext ctx) {
-        localVars.pop();
+        localVars.exit();
     }
 
     @Override
@@ -832,7 +919,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
         }
     }
 
-    protected Def def(ParserRuleContext ctx, String kind) {
+    protected Def def(ParserRuleContext ctx, DefKind kind) {
         Def def = new Def();
         def.defStart = ctx.getStart().getStartIndex();
         def.defEnd = ctx.getStop().getStopIndex();
@@ -842,7 +929,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
         return def;
     }
 
-    protected Def def(Token token, String kind) {
+    protected Def def(Token token, DefKind kind) {
         Def def = new Def();
         def.defStart = token.getStartIndex();
         def.defEnd = token.getStopIndex();
@@ -869,8 +956,10 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
     }
 
     protected void emit(Def def) {
+        def.defKey = graph.keys.intern(def.defKey);
         try {
             graph.writer.writeDef(def);
+            graph.defCount++;
         } catch (IOException e) {
             e.printStackTrace(); // TODO
         }
@@ -885,8 +974,10 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
     }
 
     protected void emit(Ref ref) {
+        graph.resolveTarget(ref);
         try {
             graph.writer.writeRef(ref);
+            graph.refCount++;
         } catch (IOException e) {
             e.printStackTrace(); // TODO
         }
@@ -899,13 +990,18 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
         ObjCParser.Method_selectorContext methodSelectorContext = ctx.method_selector();
         ObjCParser.SelectorContext selectorContext = methodSelectorContext.selector();
         if (selectorContext != null) {
-            methodDef = def(selectorContext, "METHOD");
+            methodDef = def(selectorContext, DefKind.METHOD);
+        } else if (!methodSelectorContext.keyword_declarator().isEmpty()) {
+            methodDef = def(methodSelectorContext.keyword_declarator().get(0).selector(), DefKind.METHOD);
         } else {
-            methodDef = def(methodSelectorContext.keyword_declarator().get(0).selector(), "METHOD");
+            // - (id)retain
+            methodDef = def(methodSelectorContext, DefKind.METHOD);
         }
 
-        String key = className + '/' + getFuncName(methodSelectorContext);
+        String selector = getFuncName(methodSelectorContext);
+        String key = className + '/' + selector;
         graph.functions.add(key);
+        graph.selectors.add(selector, className, graph.importGraph.id(file));
         methodDef.defKey = new DefKey(null, key);
         emit(methodDef);
 
@@ -919,7 +1015,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
             for (ObjCParser.Keyword_declaratorContext declaratorCtx : methodSelectorContext.keyword_declarator()) {
                 ObjCParser.SelectorContext sContext = declaratorCtx.selector();
                 if (sContext != null && sContext.IDENTIFIER() != null && !first) {
-                    Def argDef = def(sContext, "VAR");
+                    Def argDef = def(sContext, DefKind.VAR);
                     // using /@ to distinguish parameter name from parameter prefix
                     // in the following cases: "reuseIdentifier:(NSString *)reuseIdentifier"
                     argDef.defKey = new DefKey(null, key + "/@" + sContext.IDENTIFIER().getText());
@@ -1015,7 +1111,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                         argTypeName = "id";
                     }
                     paramsVars.put(keywordDeclaratorContext.getStop().getText(), argTypeName);
-                    Def argDef = def(keywordDeclaratorContext.getStop(), "VAR");
+                    Def argDef = def(keywordDeclaratorContext.getStop(), DefKind.VAR);
                     argDef.defKey = new DefKey(null, defKey + '/' + keywordDeclaratorContext.getStop().getText());
                     emit(argDef);
                 }
@@ -1061,6 +1157,10 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
             }
         }
         ObjCParser.Class_nameContext classNameContext = ctx.class_name();
+        if (protocolReferenceListContext != null && classNameContext == null && ctx.identifier() == null) {
+            // id<Protocol, ...>, keeping protocols to narrow down messages sent to such variables
+            return "id" + protocolReferenceListContext.getText();
+        }
         if (classNameContext != null && !isReservedSpecifier(classNameContext.getText())) {
             Ref typeRef = ref(classNameContext);
             typeRef.defKey = new DefKey(null, classNameContext.getText());
@@ -1107,7 +1207,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                 // variable defs
                 for (ObjCParser.Struct_declaratorContext structDeclaratorContext : structDeclarationContext.
                         struct_declarator_list().struct_declarator()) {
-                    Def propertyDef = def(structDeclaratorContext.declarator().direct_declarator(), "VAR");
+                    Def propertyDef = def(structDeclaratorContext.declarator().direct_declarator(), DefKind.VAR);
                     propertyDef.defKey = new DefKey(null, currentClassName + '/' + propertyDef.name);
                     emit(propertyDef);
                     currentClassVars.put(propertyDef.name, typeName);
@@ -1117,7 +1217,13 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
         }
     }
 
-    private void processProtocolReferences(ObjCParser.Protocol_reference_listContext protocolReferenceListContext) {
+    /**
+     * Emits references to protocols and registers them as adopted by class or as parents of protocol
+     * @param owner current class or protocol
+     * @param protocolReferenceListContext protocol list, may be null
+     */
+    private void processProtocolReferences(String owner,
+                                           ObjCParser.Protocol_reference_listContext protocolReferenceListContext) {
         if (protocolReferenceListContext != null) {
             ObjCParser.Protocol_listContext protocolListContext = protocolReferenceListContext.protocol_list();
             if (protocolListContext != null) {
@@ -1127,6 +1233,7 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                         Ref protocolRef = ref(protocolNameContext);
                         protocolRef.defKey = new DefKey(null, protocolNameContext.getText());
                         emit(protocolRef);
+                        graph.hierarchy.addProtocol(owner, protocolNameContext.getText());
                     }
                 }
             }
@@ -1152,14 +1259,26 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
         }
     }
 
-    private Var getLocalVariable(String variable) {
-        for (int i = localVars.size() - 1; i >= 0; i--) {
-            Var var = localVars.get(i).get(variable);
-            if (var != null) {
-                return var;
-            }
-        }
-        return null;
+    /**
+     * Binds local variable in the innermost scope
+     * @param name variable name
+     * @param type variable type
+     * @return definition key of variable
+     */
+    private String defineLocal(String name, String type) {
+        String key = localDefKey(name, blockCounter);
+        localVars.define(name, type, key);
+        return key;
+    }
+
+    /**
+     * @param name local variable name
+     * @param block number of block variable was declared in
+     * @return definition key of local variable, variables declared in nested blocks are suffixed with block number
+     */
+    private String localDefKey(String name, int block) {
+        String defKey = currentDefKey(name);
+        return block > 0 ? defKey + '$' + block : defKey;
     }
 
     private String currentDefKey(String ident) {
@@ -1181,7 +1300,14 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
                             int charPositionInLine,
                             String msg,
                             RecognitionException e) {
-        LOGGER.warn("{} at {}:{}: {}", file, line, charPositionInLine, msg);
+        String rule;
+        if (recognizer instanceof Parser) {
+            ParserRuleContext ctx = ((Parser) recognizer).getContext();
+            rule = ctx == null ? null : recognizer.getRuleNames()[ctx.getRuleIndex()];
+        } else {
+            rule = "lexer";
+        }
+        graph.diagnostics.report("syntax-error", file, rule, "{} at {}:{}: {}", file, line, charPositionInLine, msg);
     }
 
     @Override
@@ -1208,17 +1334,4 @@ public class FileGrapher extends ObjCBaseListener implements ANTLRErrorListener
     @Override
     public void reportContextSensitivity(Parser parser, DFA dfa, int i, int i1, int i2, ATNConfigSet atnConfigSet) {
     }
-
-    private class Var {
-        String type;
-        String defKey;
-
-        Var(String name, String type) {
-            this.type = type;
-            this.defKey = currentDefKey(name);
-            if (blockCounter > 0) {
-                this.defKey += "$" + blockCounter;
-            }
-        }
-    }
 }
\ No newline at end of file
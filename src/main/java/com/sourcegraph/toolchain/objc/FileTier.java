@@ -0,0 +1,43 @@
+package com.sourcegraph.toolchain.objc;
+
+/**
+ * How thoroughly file is processed
+ */
+public enum FileTier {
+    /**
+     * Full LL parse with default error recovery
+     */
+    FULL("full", "LL"),
+    /**
+     * Cheaper SLL-only parse, used when full parse ran out of time
+     */
+    DEGRADED("degraded", "SLL"),
+    /**
+     * No parse tree, identifiers are resolved against symbols collected from other files.
+     * Used for huge files and files that parser can't make sense of
+     */
+    LEXER_ONLY("lexer-only", "none");
+
+    private final String name;
+
+    private final String predictionMode;
+
+    FileTier(String name, String predictionMode) {
+        this.name = name;
+        this.predictionMode = predictionMode;
+    }
+
+    /**
+     * @return tier name as written to graph output
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return parser prediction mode (LL, SLL) or "none" if file is not parsed
+     */
+    public String getPredictionMode() {
+        return predictionMode;
+    }
+}
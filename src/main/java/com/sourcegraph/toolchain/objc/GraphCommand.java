@@ -2,19 +2,22 @@ package com.sourcegraph.toolchain.objc;
 
 import com.beust.jcommander.Parameter;
 import com.google.gson.Gson;
-import com.sourcegraph.toolchain.core.GraphData;
-import com.sourcegraph.toolchain.core.GraphWriter;
-import com.sourcegraph.toolchain.core.JSONUtil;
-import com.sourcegraph.toolchain.core.SourceUnit;
+import com.google.gson.JsonObject;
+import com.sourcegraph.toolchain.core.*;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class GraphCommand {
 
@@ -23,16 +26,68 @@ public class GraphCommand {
     @Parameter(names = {"--debug-unit-file"}, description = "The path to a source unit input file, which will be read as though it came from stdin. Used to mimic stdin when you can't actually pipe to stdin (e.g., in IntelliJ run configurations).")
     String debugUnitFile;
 
+    @Parameter(names = {"-D", "--define"}, description = "Preprocessor macro to treat as defined when evaluating #if conditions, NAME or NAME=VALUE (for example DEBUG or TARGET_OS_IPHONE=1)")
+    List<String> defines = new ArrayList<>();
+
+    @Parameter(names = {"-U", "--undefine"}, description = "Preprocessor macro to treat as undefined when evaluating #if conditions")
+    List<String> undefines = new ArrayList<>();
+
+    @Parameter(names = {"--file-timeout"}, description = "Per-file lex and parse time budget in seconds, files that exceed it are parsed again in cheaper mode (0 means unlimited)")
+    int fileTimeout = 60;
+
+    @Parameter(names = {"--file-max-tokens"}, description = "Per-file token budget, files that exceed it are parsed again in cheaper mode (0 means unlimited)")
+    int fileMaxTokens = 0;
+
+    @Parameter(names = {"--lexer-only-size"}, description = "Files of this size in KB or larger are indexed by lexer only, without parse tree (0 means no limit)")
+    int lexerOnlySize = 2048;
+
+    @Parameter(names = {"--max-errors-per-kb"}, description = "Syntax error rate (errors per KB of source) that makes grapher stop parsing file and index it by lexer only, for example 2 (0 means no limit)")
+    double maxErrorsPerKb = 0;
+
+    @Parameter(names = {"--diagnostics"}, description = "The path to a file to write diagnostics (syntax errors, redefinitions, budget overruns) to as JSON")
+    String diagnosticsFile;
+
+    @Parameter(names = {"--diagnostics-samples"}, description = "Number of examples of each kind of diagnostic event to keep")
+    int diagnosticsSamples = Diagnostics.DEFAULT_SAMPLES;
+
+    @Parameter(names = {"--changed"}, description = "The path to a file that lists changed files, one per line. Only changed files and files that transitively import them are re-graphed and merged into --previous output")
+    String changedFile;
+
+    @Parameter(names = {"--previous"}, description = "The path to a previous graph output to merge incremental (--changed) results into")
+    String previousOutput;
+
+    @Parameter(names = {"--sdk-index"}, description = "The path to a prebuilt framework symbol index (see sdk-index command)")
+    String sdkIndex;
+
+    @Parameter(names = {"--threads"}, description = "Number of threads that lex and parse files while graph thread walks parsed ones (0 means read, parse and walk files one by one)")
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--read-ahead"}, description = "Maximum number of files read and parsed ahead of graph thread")
+    int readAhead = 32;
+
+    @Parameter(names = {"--write-queue"}, description = "Maximum number of batches of definitions and references waiting for writer thread (0 means write on graph thread)")
+    int writeQueue = 16;
+
+    @Parameter(names = {"--heap-budget"}, description = "Estimated heap size in MB that definitions and references may take before they are spilled to temporary files and merged when output is written (0 means keep everything in memory). References waiting for link phase get a budget of the same size. Not used with --changed")
+    int heapBudget = 0;
+
+    @Parameter(names = {"--index-output"}, description = "The path to write memory-mappable sorted graph index to, in addition to JSON output. Index is built from data kept in memory, so it is not supported with --heap-budget or --changed")
+    String indexOutput;
+
     /**
      * The Source Unit that is read in from STDIN. Defined here, so that it can be
      * accessed within the anonymous classes below.
      */
     public static SourceUnit unit;
 
+    /**
+     * Counts bytes allocated in each stage when set (see bench command)
+     */
+    AllocationMeter allocations;
+
     /**
      * Main method
      */
-    @SuppressWarnings("unchecked")
     public void Execute() {
 
         try {
@@ -49,21 +104,173 @@ public class GraphCommand {
             LOGGER.error("Failed to read source unit data", e);
             System.exit(1);
         }
-        LOGGER.info("Building graph for {}", unit.Name);
-
-        GraphWriter writer = new GraphData();
 
         try {
-            LOGGER.debug("Starting graph collection");
-            ObjCGraph graph = new ObjCGraph(writer);
-            graph.process(unit.Files);
-            LOGGER.debug("Graph collection complete");
-            writer.flush();
+            graph(unit, System.out);
         } catch (Exception e) {
             LOGGER.error("Unexpected error occurred while building graph", e);
             System.exit(1);
         }
+    }
+
+    /**
+     * Builds graph of source unit and writes it as JSON
+     * @param unit source unit
+     * @param out destination stream
+     * @return graph that was built, for statistics
+     * @throws IOException if reading input or writing output fails
+     */
+    ObjCGraph graph(SourceUnit unit, OutputStream out) throws IOException {
+        LOGGER.info("Building graph for {}", unit.Name);
+
+        Diagnostics diagnostics = new Diagnostics(diagnosticsSamples);
+        // keys are interned by graph thread, so graph data never touches the table from writer thread
+        KeyTable keys = new KeyTable();
+        GraphData data = new GraphData(diagnostics, keys);
+        GraphWriter writer = data;
+        SpillingGraphWriter spill = null;
+        IndexGraphWriter index = null;
+
+        Collection<String> searchPaths = getHeaderSearchPaths(unit);
+        Collection<String> files = unit.Files;
+        Set<String> affected = null;
+        if (!StringUtils.isEmpty(changedFile)) {
+            if (StringUtils.isEmpty(previousOutput)) {
+                throw new IllegalArgumentException("--changed requires --previous graph output");
+            }
+            if (!StringUtils.isEmpty(indexOutput)) {
+                throw new IllegalArgumentException("--index-output is not supported with --changed");
+            }
+            SourceTree tree = new SourceTree(unit.Files, searchPaths);
+            try {
+                affected = tree.getAffectedFiles(readChangedFiles(changedFile));
+            } catch (IOException e) {
+                throw new IOException("Failed to read list of changed files", e);
+            }
+            // affected files still need symbols declared in files they import
+            files = new TreeSet<>(tree.getImportClosure(affected));
+            LOGGER.info("Re-graphing {} affected file(s) of {}", affected.size(), unit.Files.size());
+            writer = new FilteringGraphWriter(data, affected::contains);
+        } else if (!StringUtils.isEmpty(indexOutput)) {
+            if (heapBudget > 0) {
+                // index tables are built from all definitions and references at once, spilled runs won't do
+                throw new IllegalArgumentException("--index-output is not supported with --heap-budget");
+            }
+            index = new IndexGraphWriter(data);
+            writer = index;
+        } else if (heapBudget > 0) {
+            spill = new SpillingGraphWriter(heapBudget * FileUtils.ONE_MB, diagnostics);
+            writer = spill;
+        }
+        if (writeQueue > 0) {
+            writer = new AsyncGraphWriter(writer, writeQueue);
+        }
+
+        LOGGER.debug("Starting graph collection");
+        ObjCGraph graph = new ObjCGraph(writer, keys);
+        graph.diagnostics = diagnostics;
+        graph.preprocessor = Preprocessor.fromOptions(defines, undefines);
+        graph.fileTimeout = TimeUnit.SECONDS.toMillis(fileTimeout);
+        graph.fileMaxTokens = fileMaxTokens;
+        graph.lexerOnlySize = lexerOnlySize * 1024;
+        graph.maxErrorsPerKb = maxErrorsPerKb;
+        graph.headers = new HeaderMap(unit.Files, searchPaths);
+        graph.threads = threads;
+        graph.readAhead = readAhead;
+        graph.allocations = allocations;
+        if (spill != null) {
+            graph.linkBudget = heapBudget * FileUtils.ONE_MB;
+        }
+        if (!StringUtils.isEmpty(sdkIndex)) {
+            long start = System.currentTimeMillis();
+            graph.sdk = SdkIndex.load(new File(sdkIndex));
+            graph.sdk.apply(graph);
+            LOGGER.info("Loaded SDK index of {} type(s) and {} selector(s) in {} ms",
+                    graph.sdk.getTypeCount(),
+                    graph.sdk.getSelectorCount(),
+                    System.currentTimeMillis() - start);
+        }
+        graph.process(files);
+        LOGGER.debug("Graph collection complete");
+        writer.flush();
+
+        if (spill != null) {
+            if (spill.getRunCount() > 0) {
+                LOGGER.info("Merging {} spilled run(s)", spill.getRunCount());
+            }
+            // redefinitions are found while merging, so summary goes after
+            JfrEvents.Span span = JfrEvents.begin(JfrEvents.Type.FLUSH).set(JfrEvents.Field.WRITER, "json");
+            long[] mark = allocations == null ? null : allocations.start();
+            spill.writeJSON(out);
+            if (mark != null) {
+                allocations.add(AllocationMeter.Stage.SERIALIZE, mark);
+            }
+            span.commit();
+        }
+
+        diagnostics.logSummary();
+        if (!StringUtils.isEmpty(diagnosticsFile)) {
+            try {
+                diagnostics.writeJSON(new File(diagnosticsFile));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to write diagnostics to {}", diagnosticsFile, e);
+            }
+        }
 
-        JSONUtil.writeJSON(writer);
+        if (spill != null) {
+            return graph;
+        }
+        if (affected == null) {
+            JfrEvents.Span span = JfrEvents.begin(JfrEvents.Type.FLUSH).set(JfrEvents.Field.WRITER, "json");
+            long[] mark = allocations == null ? null : allocations.start();
+            JSONUtil.writeJSON(data, out);
+            if (mark != null) {
+                allocations.add(AllocationMeter.Stage.SERIALIZE, mark);
+            }
+            span.commit();
+            if (index != null) {
+                long start = System.currentTimeMillis();
+                span = JfrEvents.begin(JfrEvents.Type.FLUSH).set(JfrEvents.Field.WRITER, "index");
+                index.writeIndex(new File(indexOutput));
+                span.commit();
+                LOGGER.info("Wrote graph index to {} in {} ms", indexOutput, System.currentTimeMillis() - start);
+            }
+            return graph;
+        }
+        try {
+            JsonObject previous = JSONUtil.readJSON(new File(previousOutput)).getAsJsonObject();
+            JsonObject current = JSONUtil.toJSONTree(data).getAsJsonObject();
+            JSONUtil.writeJSON(GraphPatch.merge(previous, current, affected), out);
+        } catch (IllegalStateException e) {
+            throw new IOException("Failed to merge results into previous graph output " + previousOutput, e);
+        }
+        return graph;
+    }
+
+    /**
+     * @param unit source unit
+     * @return header search paths collected by scan (Data.HeaderSearchPaths), empty if there are none
+     */
+    @SuppressWarnings("unchecked")
+    static Collection<String> getHeaderSearchPaths(SourceUnit unit) {
+        Object searchPaths = unit.Data.get("HeaderSearchPaths");
+        return searchPaths instanceof Collection ? (Collection<String>) searchPaths : Collections.emptyList();
+    }
+
+    /**
+     * Reads list of changed files
+     * @param fileName file that contains changed files, one per line
+     * @return changed file paths relative to current working directory
+     * @throws IOException
+     */
+    private static Collection<String> readChangedFiles(String fileName) throws IOException {
+        Collection<String> ret = new ArrayList<>();
+        for (String line : Files.readAllLines(FileSystems.getDefault().getPath(fileName))) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                ret.add(PathUtil.relativizeCwd(line));
+            }
+        }
+        return ret;
     }
 }
@@ -0,0 +1,218 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.sourcegraph.toolchain.core.JfrEvents;
+import com.sourcegraph.toolchain.core.PathUtil;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Resolves names used in #import and #include directives to unit files without touching file system.
+ * Unit files are indexed once by path, by basename and by framework-style Module/Header.h name
+ * (where module is either containing directory or Module.framework/Headers), so that resolution is a few hash
+ * lookups. Name is looked up relative to importing file's directory, then in header search paths, then as
+ * Module/Header.h, then by path suffix. Results are cached per (directory, name), including negative ones
+ */
+class HeaderMap {
+
+    private static final String FRAMEWORK_HEADERS = ".framework/Headers";
+
+    private static final String RECURSIVE = "/**";
+
+    /**
+     * Marks negative cache entries
+     */
+    private static final String UNRESOLVED = "";
+
+    private Set<String> files = new HashSet<>();
+
+    // basename -> files
+    private Map<String, List<String>> byBasename = new HashMap<>();
+
+    // Module/Header.h -> files
+    private Map<String, List<String>> byModule = new HashMap<>();
+
+    // non-recursive search paths, in order
+    private List<String> searchPaths = new ArrayList<>();
+
+    // recursive (/**) search paths, in order
+    private List<String> recursiveSearchPaths = new ArrayList<>();
+
+    // directory + '\0' + name -> resolved file
+    private Map<String, String> cache = new HashMap<>();
+
+    private int resolved;
+    private int unresolved;
+
+    /**
+     * @param files unit files
+     * @param headerSearchPaths header search paths relative to current working directory, paths that end with /**
+     * are searched recursively
+     */
+    HeaderMap(Collection<String> files, Collection<String> headerSearchPaths) {
+        for (String file : files) {
+            file = PathUtil.relativizeCwd(file);
+            if (!this.files.add(file)) {
+                continue;
+            }
+            int slash = file.lastIndexOf('/');
+            String basename = file.substring(slash + 1);
+            byBasename.computeIfAbsent(basename, k -> new ArrayList<>(1)).add(file);
+            if (slash < 0) {
+                continue;
+            }
+            String dir = file.substring(0, slash);
+            String module;
+            if (dir.endsWith(FRAMEWORK_HEADERS)) {
+                dir = dir.substring(0, dir.length() - FRAMEWORK_HEADERS.length());
+                module = dir.substring(dir.lastIndexOf('/') + 1);
+            } else {
+                module = dir.substring(dir.lastIndexOf('/') + 1);
+            }
+            byModule.computeIfAbsent(module + '/' + basename, k -> new ArrayList<>(1)).add(file);
+        }
+        for (String searchPath : headerSearchPaths) {
+            if (searchPath.endsWith(RECURSIVE)) {
+                recursiveSearchPaths.add(prefix(searchPath.substring(0, searchPath.length() - RECURSIVE.length())));
+            } else {
+                searchPaths.add(prefix(searchPath));
+            }
+        }
+    }
+
+    /**
+     * Resolves imported name
+     * @param name name as written in directive, for example Foo.h or Module/Foo.h
+     * @param from importing file, relative to current working directory
+     * @return unit file relative to current working directory or null if name does not denote unit file
+     */
+    String resolve(String name, String from) {
+        String dir = from == null ? StringUtils.EMPTY : prefix(directory(from));
+        String key = dir + '\0' + name;
+        JfrEvents.Span span = JfrEvents.begin(JfrEvents.Type.IMPORT).
+                set(JfrEvents.Field.IMPORT, name).
+                set(JfrEvents.Field.FILE, from);
+        String ret = cache.get(key);
+        span.set(JfrEvents.Field.CACHE_HIT, ret != null);
+        if (ret == null) {
+            ret = lookup(name, dir);
+            cache.put(key, ret == null ? UNRESOLVED : ret);
+            if (ret == null) {
+                unresolved++;
+            } else {
+                resolved++;
+            }
+        }
+        if (ret == UNRESOLVED) {
+            ret = null;
+        }
+        span.set(JfrEvents.Field.RESOLVED, ret).commit();
+        return ret;
+    }
+
+    /**
+     * @return true if given path is unit file
+     */
+    boolean contains(String file) {
+        return files.contains(file);
+    }
+
+    /**
+     * @return number of distinct (directory, name) pairs resolved to unit files
+     */
+    int getResolvedCount() {
+        return resolved;
+    }
+
+    /**
+     * @return number of distinct (directory, name) pairs that do not denote unit files
+     */
+    int getUnresolvedCount() {
+        return unresolved;
+    }
+
+    private String lookup(String name, String dir) {
+        // relative to importing file
+        String file = normalize(dir + name);
+        if (files.contains(file)) {
+            return file;
+        }
+        for (String searchPath : searchPaths) {
+            file = normalize(searchPath + name);
+            if (files.contains(file)) {
+                return file;
+            }
+        }
+        int slash = name.lastIndexOf('/');
+        List<String> candidates = byBasename.get(name.substring(slash + 1));
+        if (candidates == null) {
+            return null;
+        }
+        for (String searchPath : recursiveSearchPaths) {
+            for (String candidate : candidates) {
+                if (candidate.startsWith(searchPath) &&
+                        (candidate.equals(searchPath + name) || candidate.endsWith('/' + name))) {
+                    return candidate;
+                }
+            }
+        }
+        if (slash >= 0) {
+            List<String> modules = byModule.get(name);
+            if (modules != null) {
+                return closest(modules, dir);
+            }
+            // Some/Dir/Header.h
+            List<String> matches = new ArrayList<>();
+            for (String candidate : candidates) {
+                if (candidate.endsWith('/' + name)) {
+                    matches.add(candidate);
+                }
+            }
+            return matches.isEmpty() ? null : closest(matches, dir);
+        }
+        return closest(candidates, dir);
+    }
+
+    /**
+     * @return candidate that shares the longest directory prefix with importing file's directory,
+     * first one in case of tie
+     */
+    private static String closest(List<String> candidates, String dir) {
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        String ret = null;
+        int best = -1;
+        for (String candidate : candidates) {
+            int common = StringUtils.getCommonPrefix(candidate, dir).length();
+            if (common > best) {
+                best = common;
+                ret = candidate;
+            }
+        }
+        return ret;
+    }
+
+    private static String directory(String file) {
+        int slash = file.lastIndexOf('/');
+        return slash < 0 ? StringUtils.EMPTY : file.substring(0, slash);
+    }
+
+    /**
+     * @return directory with trailing slash, empty string for current working directory
+     */
+    private static String prefix(String dir) {
+        return dir.isEmpty() || dir.equals(".") ? StringUtils.EMPTY : StringUtils.appendIfMissing(dir, "/");
+    }
+
+    /**
+     * Lexically normalizes path (removes . and .. elements)
+     */
+    private static String normalize(String path) {
+        if (!path.contains("./")) {
+            return path;
+        }
+        return PathUtil.normalize(Paths.get(path).normalize().toString());
+    }
+}
@@ -0,0 +1,95 @@
+package com.sourcegraph.toolchain.objc;
+
+import java.util.*;
+
+/**
+ * #import edges between unit files as met by graphers. Import closure of a file (file itself plus everything it
+ * transitively imports) is the set of files whose declarations the file can see, so lookups limited to it give the
+ * same result whatever other files of a unit were graphed. Files are numbered in order they are first met
+ */
+class ImportGraph {
+
+    /**
+     * Id of declarations that do not come from unit files (framework symbols), visible everywhere
+     */
+    static final int GLOBAL = -1;
+
+    private Map<String, Integer> ids = new HashMap<>();
+
+    // file id -> ids of files it imports
+    private List<int[]> imports = new ArrayList<>();
+    private List<Integer> importCounts = new ArrayList<>();
+
+    /**
+     * @param file file name, relative to current working directory
+     * @return id of file, new one if file was not met before
+     */
+    int id(String file) {
+        Integer id = ids.get(file);
+        if (id == null) {
+            id = ids.size();
+            ids.put(file, id);
+            imports.add(null);
+            importCounts.add(0);
+        }
+        return id;
+    }
+
+    /**
+     * Records import edge
+     * @param from importing file
+     * @param to imported file
+     */
+    void add(String from, String to) {
+        int source = id(from);
+        int target = id(to);
+        int[] edges = imports.get(source);
+        int count = importCounts.get(source);
+        for (int i = 0; i < count; i++) {
+            if (edges[i] == target) {
+                return;
+            }
+        }
+        if (edges == null) {
+            edges = new int[4];
+        } else if (count == edges.length) {
+            edges = Arrays.copyOf(edges, count << 1);
+        }
+        edges[count] = target;
+        imports.set(source, edges);
+        importCounts.set(source, count + 1);
+    }
+
+    /**
+     * @param file file name, relative to current working directory
+     * @return ids of file and of all files it transitively imports
+     */
+    BitSet closure(String file) {
+        BitSet ret = new BitSet(ids.size());
+        Deque<Integer> queue = new ArrayDeque<>();
+        int start = id(file);
+        ret.set(start);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            int[] edges = imports.get(current);
+            int count = importCounts.get(current);
+            for (int i = 0; i < count; i++) {
+                if (!ret.get(edges[i])) {
+                    ret.set(edges[i]);
+                    queue.add(edges[i]);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param visible ids of visible files, null if everything is visible
+     * @param file file id or {@link #GLOBAL}
+     * @return true if declarations of a given file are visible
+     */
+    static boolean isVisible(BitSet visible, int file) {
+        return visible == null || file == GLOBAL || visible.get(file);
+    }
+}
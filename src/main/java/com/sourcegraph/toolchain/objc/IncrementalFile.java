@@ -0,0 +1,443 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.sourcegraph.toolchain.core.*;
+import com.sourcegraph.toolchain.objc.antlr4.ObjCLexer;
+import com.sourcegraph.toolchain.objc.antlr4.ObjCParser;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Source file kept in memory for editor-speed graph updates. File is split into top-level declarations
+ * (external_declaration: @interface ... @end, @implementation ... @end, function, declaration, #import), each
+ * with definitions and references found in it. Text edit re-lexes and re-parses only declarations the edit touches
+ * (or the gap between declarations it falls into) and walks new declarations with symbol tables graph already has.
+ * Result is a delta: definitions and references of replaced declarations and of new ones, definitions and
+ * references of later declarations just move by edit's length difference.
+ * <p>
+ * Falls back to re-parsing whole file when edit changes preprocessor output outside edited region, when region
+ * does not end on a token boundary any more (for example, unterminated comment) or when region does not parse
+ * cleanly on its own (for example, @end was removed).
+ * <p>
+ * Graph must have processed the unit file belongs to, symbol tables are only added to, never pruned. Not
+ * thread-safe, and must not be used while graph is processing files
+ */
+public class IncrementalFile {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalFile.class);
+
+    private final ObjCGraph graph;
+
+    private final String file;
+
+    // source as edited
+    private String source;
+
+    // source after preprocessing, what lexer sees
+    private char[] text;
+
+    private List<Declaration> declarations = new ArrayList<>();
+
+    /**
+     * Parses and walks whole file
+     * @param graph graph that processed file's unit
+     * @param file file name, relative to current working directory
+     * @param source file contents
+     */
+    public IncrementalFile(ObjCGraph graph, String file, String source) {
+        this.graph = graph;
+        this.file = file;
+        this.source = source;
+        this.text = preprocess(source);
+        this.declarations = parseAll();
+    }
+
+    /**
+     * Reads file (using default encoding, like graph does) and parses it
+     * @param graph graph that processed file's unit
+     * @param file file name, relative to current working directory
+     * @return parsed file
+     * @throws IOException
+     */
+    public static IncrementalFile open(ObjCGraph graph, String file) throws IOException {
+        return new IncrementalFile(graph, file, FileUtils.readFileToString(new File(file), Charset.defaultCharset()));
+    }
+
+    /**
+     * @return current source
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return definitions of current source in declaration order
+     */
+    public List<Def> getDefs() {
+        List<Def> ret = new ArrayList<>();
+        for (Declaration declaration : declarations) {
+            ret.addAll(declaration.defs);
+        }
+        return ret;
+    }
+
+    /**
+     * @return references of current source in declaration order
+     */
+    public List<Ref> getRefs() {
+        List<Ref> ret = new ArrayList<>();
+        for (Declaration declaration : declarations) {
+            ret.addAll(declaration.refs);
+        }
+        return ret;
+    }
+
+    /**
+     * Replaces source range with new text and updates graph of the file
+     * @param start start offset of replaced range
+     * @param end end offset (exclusive) of replaced range
+     * @param replacement new text
+     * @return changes of definitions and references
+     */
+    public Delta edit(int start, int end, String replacement) {
+        if (start < 0 || end < start || end > source.length()) {
+            throw new IndexOutOfBoundsException("Edit range " + start + ".." + end + " is outside of " + file);
+        }
+        long started = System.nanoTime();
+        int shift = replacement.length() - (end - start);
+        source = source.substring(0, start) + replacement + source.substring(end);
+        char[] previous = text;
+        text = preprocess(source);
+
+        // declarations edit touches, or the gap it falls into
+        int first = 0;
+        while (first < declarations.size() && declarations.get(first).end < start) {
+            first++;
+        }
+        int last = first;
+        while (last < declarations.size() && declarations.get(last).start <= end) {
+            last++;
+        }
+        // region must start and end on token boundaries: at declaration's edge or, if edit reaches into
+        // the gap between declarations (which may be inside a comment), at the edge of the gap
+        int gapStart = first == 0 ? 0 : declarations.get(first - 1).end;
+        int gapEnd = last == declarations.size() ? previous.length : declarations.get(last).start;
+        int regionStart = gapStart;
+        int regionEnd = gapEnd;
+        if (first < last) {
+            if (start >= declarations.get(first).start) {
+                regionStart = declarations.get(first).start;
+            }
+            if (end <= declarations.get(last - 1).end) {
+                regionEnd = declarations.get(last - 1).end;
+            }
+        }
+
+        List<Declaration> replaced = declarations.subList(first, last);
+        List<Declaration> added = null;
+        if (sameOutside(previous, regionStart, regionEnd, shift)) {
+            added = parseRegion(regionStart, regionEnd + shift);
+        }
+
+        Delta delta;
+        if (added == null) {
+            LOGGER.debug("Re-parsing whole {}", file);
+            List<Declaration> old = declarations;
+            declarations = parseAll();
+            delta = new Delta(old, declarations, 0, 0, true);
+        } else {
+            delta = new Delta(replaced, added, regionEnd, shift, false);
+            for (Declaration declaration : declarations.subList(last, declarations.size())) {
+                declaration.move(shift);
+            }
+            List<Declaration> updated = new ArrayList<>(declarations.size() - replaced.size() + added.size());
+            updated.addAll(declarations.subList(0, first));
+            updated.addAll(added);
+            updated.addAll(declarations.subList(last, declarations.size()));
+            declarations = updated;
+        }
+        LOGGER.debug("Updated {} in {} ms: {} declaration(s) replaced by {}{}",
+                file,
+                (System.nanoTime() - started) / 1000000,
+                delta.full ? "all" : replaced.size(),
+                delta.full ? declarations.size() : added.size(),
+                delta.full ? " (full re-parse)" : "");
+        return delta;
+    }
+
+    /**
+     * @return true if preprocessed text outside of region did not change (besides moving by shift)
+     */
+    private boolean sameOutside(char[] previous, int regionStart, int regionEnd, int shift) {
+        if (text.length != previous.length + shift) {
+            return false;
+        }
+        for (int i = 0; i < regionStart; i++) {
+            if (text[i] != previous[i]) {
+                return false;
+            }
+        }
+        for (int i = regionEnd; i < previous.length; i++) {
+            if (text[i + shift] != previous[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses and walks whole text with error recovery
+     */
+    private List<Declaration> parseAll() {
+        ObjCLexer lexer = new ObjCLexer(new ANTLRInputStream(text, text.length));
+        lexer.removeErrorListeners();
+        ObjCParser parser = new ObjCParser(new CommonTokenStream(lexer));
+        parser.removeErrorListeners();
+        return walk(parser.translation_unit());
+    }
+
+    /**
+     * Lexes, parses and walks region of new text
+     * @param start region start, token boundary
+     * @param end region end
+     * @return declarations in region or null if region can't be parsed on its own
+     */
+    private List<Declaration> parseRegion(int start, int end) {
+        ANTLRInputStream input = new ANTLRInputStream(text, text.length);
+        ObjCLexer lexer = new ObjCLexer(input);
+        ErrorCounter errors = new ErrorCounter();
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(errors);
+        input.seek(start);
+
+        List<Token> tokens = new ArrayList<>();
+        for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+            if (token.getStartIndex() >= end) {
+                break;
+            }
+            if (token.getStopIndex() >= end) {
+                // token runs into text that follows region
+                return null;
+            }
+            tokens.add(token);
+        }
+
+        ObjCParser parser = new ObjCParser(new CommonTokenStream(new ListTokenSource(tokens)));
+        parser.removeErrorListeners();
+        parser.addErrorListener(errors);
+        ObjCParser.Translation_unitContext tree = parser.translation_unit();
+        if (errors.count > 0) {
+            return null;
+        }
+        return walk(tree);
+    }
+
+    /**
+     * Walks top-level declarations of a tree with graph writer redirected to collector. Deferred references go to
+     * a linker of their own, linked before walk returns, so graph's linker never holds stale offsets
+     */
+    private List<Declaration> walk(ObjCParser.Translation_unitContext tree) {
+        List<Declaration> ret = new ArrayList<>();
+        for (ObjCParser.External_declarationContext ctx : tree.external_declaration()) {
+            if (ctx.getStop() == null || ctx.getStop().getStopIndex() < ctx.getStart().getStartIndex()) {
+                continue;
+            }
+            ret.add(new Declaration(ctx.getStart().getStartIndex(), ctx.getStop().getStopIndex() + 1));
+        }
+
+        Collector collector = new Collector();
+        GraphWriter writer = graph.writer;
+        Linker linker = graph.linker;
+        graph.writer = collector;
+        graph.linker = new Linker(graph);
+        try {
+            FileGrapher grapher = new FileGrapher(graph, file);
+            new ParseTreeWalker().walk(grapher, tree);
+            graph.linker.link();
+        } finally {
+            graph.writer = writer;
+            graph.linker = linker;
+        }
+
+        for (Def def : collector.defs) {
+            Declaration declaration = find(ret, def.defStart);
+            if (declaration != null) {
+                declaration.defs.add(def);
+            }
+        }
+        for (Ref ref : collector.refs) {
+            Declaration declaration = find(ret, ref.start);
+            if (declaration != null) {
+                declaration.refs.add(ref);
+            }
+        }
+        return ret;
+    }
+
+    private static Declaration find(List<Declaration> declarations, int offset) {
+        int low = 0;
+        int high = declarations.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Declaration declaration = declarations.get(middle);
+            if (declaration.end <= offset) {
+                low = middle + 1;
+            } else if (declaration.start > offset) {
+                high = middle - 1;
+            } else {
+                return declaration;
+            }
+        }
+        return null;
+    }
+
+    private char[] preprocess(String source) {
+        char[] data = source.toCharArray();
+        if (graph.preprocessor != null) {
+            graph.preprocessor.process(data, data.length);
+        }
+        return data;
+    }
+
+    /**
+     * Changes made by an edit
+     */
+    public static class Delta {
+
+        /**
+         * Definitions and references that are gone
+         */
+        public final List<Def> removedDefs = new ArrayList<>();
+        public final List<Ref> removedRefs = new ArrayList<>();
+
+        /**
+         * Definitions and references that are new
+         */
+        public final List<Def> addedDefs = new ArrayList<>();
+        public final List<Ref> addedRefs = new ArrayList<>();
+
+        /**
+         * Offset (in source before edit) definitions and references at or after which moved by shift.
+         * Those objects are updated in place
+         */
+        public final int shiftStart;
+
+        public final int shift;
+
+        /**
+         * True if whole file was re-parsed, all definitions and references are removed and added
+         */
+        public final boolean full;
+
+        Delta(List<Declaration> removed, List<Declaration> added, int shiftStart, int shift, boolean full) {
+            for (Declaration declaration : removed) {
+                removedDefs.addAll(declaration.defs);
+                removedRefs.addAll(declaration.refs);
+            }
+            for (Declaration declaration : added) {
+                addedDefs.addAll(declaration.defs);
+                addedRefs.addAll(declaration.refs);
+            }
+            this.shiftStart = shiftStart;
+            this.shift = shift;
+            this.full = full;
+        }
+
+        /**
+         * @return true if edit changed no definitions or references
+         */
+        public boolean isEmpty() {
+            return removedDefs.isEmpty() && removedRefs.isEmpty() && addedDefs.isEmpty() && addedRefs.isEmpty();
+        }
+    }
+
+    /**
+     * Top-level declaration and its graph
+     */
+    private static class Declaration {
+
+        int start;
+        int end;
+
+        final List<Def> defs = new ArrayList<>();
+        final List<Ref> refs = new ArrayList<>();
+
+        Declaration(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void move(int shift) {
+            if (shift == 0) {
+                return;
+            }
+            start += shift;
+            end += shift;
+            for (Def def : defs) {
+                def.defStart += shift;
+                def.defEnd += shift;
+                if (def.identEnd > 0) {
+                    def.identStart += shift;
+                    def.identEnd += shift;
+                }
+            }
+            for (Ref ref : refs) {
+                ref.start += shift;
+                ref.end += shift;
+            }
+        }
+    }
+
+    /**
+     * Keeps definitions and references made in this file
+     */
+    private class Collector implements GraphWriter {
+
+        final List<Def> defs = new ArrayList<>();
+        // grapher may emit the same reference more than once, other writers drop duplicates too
+        final Set<Ref> refs = new LinkedHashSet<>();
+
+        @Override
+        public void writeRef(Ref r) {
+            if (file.equals(r.file)) {
+                refs.add(r);
+            }
+        }
+
+        @Override
+        public void writeDef(Def s) {
+            if (file.equals(s.file)) {
+                defs.add(s);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    private static class ErrorCounter extends BaseErrorListener {
+
+        int count;
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer,
+                                Object offendingSymbol,
+                                int line,
+                                int charPositionInLine,
+                                String msg,
+                                RecognitionException e) {
+            count++;
+        }
+    }
+}
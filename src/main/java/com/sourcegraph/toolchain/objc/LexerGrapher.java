@@ -0,0 +1,71 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.sourcegraph.toolchain.core.Ref;
+import com.sourcegraph.toolchain.objc.antlr4.ObjCLexer;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Token;
+
+/**
+ * Lexer-only grapher for huge or unparseable files. Does not build parse tree, instead records identifiers
+ * to be resolved in link phase against types, functions, global and instance variables collected from other files
+ */
+class LexerGrapher {
+
+    private ObjCGraph graph;
+
+    private String file;
+
+    LexerGrapher(ObjCGraph graph, String file) {
+        this.graph = graph;
+        this.file = file;
+    }
+
+    /**
+     * Lexes given stream and emits references
+     * @param stream source stream
+     */
+    void process(CharStream stream) {
+        ObjCLexer lexer = new ObjCLexer(stream);
+        lexer.removeErrorListeners();
+
+        String currentClassName = null;
+        boolean expectClassName = false;
+
+        for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+            if (token.getChannel() != Token.DEFAULT_CHANNEL) {
+                continue;
+            }
+            switch (token.getType()) {
+                case ObjCLexer.IMPORT:
+                case ObjCLexer.INCLUDE:
+                    String fileName = FileGrapher.importedFile(token.getText());
+                    if (fileName != null) {
+                        graph.imported(fileName, file);
+                    }
+                    break;
+                case ObjCLexer.INTERFACE:
+                case ObjCLexer.IMPLEMENTATION:
+                    expectClassName = true;
+                    break;
+                case ObjCLexer.END:
+                    currentClassName = null;
+                    break;
+                case ObjCLexer.IDENTIFIER:
+                    String id = token.getText();
+                    if (expectClassName) {
+                        currentClassName = id;
+                        expectClassName = false;
+                    }
+                    Ref ref = new Ref();
+                    ref.start = token.getStartIndex();
+                    ref.end = token.getStopIndex();
+                    ref.file = file;
+                    // identifiers are resolved against types, functions and variables when all files are known
+                    graph.linker.defer(Linker.Kind.IDENTIFIER, ref, currentClassName, id, null, null);
+                    break;
+                default:
+                    expectClassName = false;
+            }
+        }
+    }
+}
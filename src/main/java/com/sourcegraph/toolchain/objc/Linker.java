@@ -0,0 +1,443 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.sourcegraph.toolchain.core.DefKey;
+import com.sourcegraph.toolchain.core.Ref;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Link phase of graph building. References that depend on cross-file symbol tables (instance and global
+ * variables, types, functions) are not resolved while walking file because the result would depend on the order
+ * files were processed in. Instead graphers record them as pending symbolic references, and once all files are
+ * processed the linker resolves them in bulk: pending references are grouped by file and scope class and probed
+ * against class variable tables and global tables (hash join), then written. Messages are resolved against method
+ * declarations of file's import closure only, so they resolve the same way whatever other files were graphed.
+ * When pending references outgrow link budget, they are spilled to temporary files and linked run by run
+ */
+class Linker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Linker.class);
+
+    private static final String SELF_PROPERTY = "self.";
+
+    // rough heap footprint of pending reference and its Ref, strings are mostly shared with parse tree and tables
+    private static final int PENDING_SIZE = 128;
+
+    // string markers of spilled runs, other values are indexes of strings already written
+    private static final int NULL_STRING = -1;
+    private static final int NEW_STRING = -2;
+
+    /**
+     * Kinds of pending references
+     */
+    enum Kind {
+        /**
+         * [receiver selector], name is receiver, suffix is selector
+         */
+        MESSAGE,
+        /**
+         * [receiver selector] where receiver is self, local variable or parameter, name is receiver type
+         * (may be null or dynamic, like id or id&lt;P&gt;), suffix is selector
+         */
+        TYPED_MESSAGE,
+        /**
+         * [super selector], name is current class, suffix is selector
+         */
+        SUPER_MESSAGE,
+        /**
+         * receiver.property or receiver->variable, name is receiver, suffix is property name
+         */
+        PROPERTY,
+        /**
+         * variable, function or type identifier in expression, name is identifier
+         */
+        PRIMARY,
+        /**
+         * identifier found by lexer-only grapher, name is identifier
+         */
+        IDENTIFIER
+    }
+
+    private ObjCGraph graph;
+
+    private List<Pending> pending = new ArrayList<>();
+    private long size;
+
+    // spilled pending references, one run per spill
+    private final List<File> runs = new ArrayList<>();
+    private int spilled;
+
+    Linker(ObjCGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Records reference to be resolved in link phase
+     * @param kind reference kind
+     * @param ref reference (without definition key yet)
+     * @param scopeClass class reference was made in, may be null
+     * @param name receiver or identifier
+     * @param suffix selector or property name, may be null
+     * @param fallback definition key to use if reference can't be resolved, may be null
+     */
+    void defer(Kind kind, Ref ref, String scopeClass, String name, String suffix, String fallback) {
+        pending.add(new Pending(kind, ref, scopeClass, name, suffix, fallback));
+        size += PENDING_SIZE;
+        if (graph.linkBudget > 0 && size >= graph.linkBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * @return number of references waiting for link phase, including spilled ones
+     */
+    int size() {
+        return spilled + pending.size();
+    }
+
+    /**
+     * Resolves and writes all pending references, logs resolution rate for each kind of reference
+     */
+    void link() {
+        if (pending.isEmpty() && runs.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        int[] total = new int[Kind.values().length];
+        int[] resolved = new int[Kind.values().length];
+        int[] fallback = new int[Kind.values().length];
+
+        if (!runs.isEmpty()) {
+            LOGGER.info("Linking {} spilled run(s)", runs.size());
+        }
+        try {
+            for (File run : runs) {
+                List<Pending> batch;
+                try {
+                    batch = readRun(run);
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to read pending references from {}: {}", run, e.getMessage());
+                    continue;
+                }
+                link(batch, total, resolved, fallback);
+            }
+        } finally {
+            for (File run : runs) {
+                try {
+                    Files.deleteIfExists(run.toPath());
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to remove {}: {}", run, e.getMessage());
+                }
+            }
+            runs.clear();
+            spilled = 0;
+        }
+        link(pending, total, resolved, fallback);
+
+        for (Kind kind : Kind.values()) {
+            int i = kind.ordinal();
+            if (total[i] == 0) {
+                continue;
+            }
+            LOGGER.info("Linked {} reference(s): {} of {} resolved ({}%), {} guessed, {} dropped",
+                    kind.name().toLowerCase(),
+                    resolved[i],
+                    total[i],
+                    resolved[i] * 100 / total[i],
+                    fallback[i],
+                    total[i] - resolved[i] - fallback[i]);
+        }
+        LOGGER.debug("Link phase took {} ms", System.currentTimeMillis() - start);
+        pending = new ArrayList<>();
+        size = 0;
+    }
+
+    /**
+     * Resolves and writes batch of pending references
+     * @param batch pending references
+     * @param total number of references of each kind, updated
+     * @param resolved number of resolved references of each kind, updated
+     * @param fallback number of references of each kind that got fallback key, updated
+     */
+    private void link(List<Pending> batch, int[] total, int[] resolved, int[] fallback) {
+        // build side: file -> class -> pending references made in this class
+        Map<String, Map<String, List<Pending>>> byFile = new LinkedHashMap<>();
+        for (Pending p : batch) {
+            byFile.computeIfAbsent(p.ref.file, k -> new HashMap<>()).
+                    computeIfAbsent(p.scopeClass, k -> new ArrayList<>()).add(p);
+        }
+
+        for (Map.Entry<String, Map<String, List<Pending>>> file : byFile.entrySet()) {
+            BitSet visible = file.getKey() == null ? null : graph.importGraph.closure(file.getKey());
+            for (Map.Entry<String, List<Pending>> entry : file.getValue().entrySet()) {
+                String scopeClass = entry.getKey();
+                Map<String, String> classVars = scopeClass == null ? null : graph.instanceVars.get(scopeClass);
+                for (Pending p : entry.getValue()) {
+                    int kind = p.kind.ordinal();
+                    total[kind]++;
+                    String key = resolve(p, classVars, visible);
+                    if (key != null) {
+                        resolved[kind]++;
+                    } else if (p.fallback != null) {
+                        key = p.fallback;
+                        fallback[kind]++;
+                    } else {
+                        continue;
+                    }
+                    p.ref.defKey = new DefKey(null, key);
+                    emit(p.ref);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param p pending reference
+     * @param classVars variables of reference's scope class
+     * @param visible ids of files visible from reference's file, null if all are visible
+     * @return definition key or null if reference can't be resolved using symbol tables
+     */
+    private String resolve(Pending p, Map<String, String> classVars, BitSet visible) {
+        switch (p.kind) {
+            case MESSAGE:
+                String type = variableType(p, classVars);
+                if (type == null) {
+                    // receiver is not a variable, maybe a class name
+                    if (p.fallback != null) {
+                        String className = p.fallback.substring(0, p.fallback.indexOf('/'));
+                        if (className.isEmpty()) {
+                            // receiver text is not known
+                            return null;
+                        }
+                        if (graph.types.contains(className)) {
+                            return resolveMessage(className, p.suffix, p.fallback, visible);
+                        }
+                        if (Character.isUpperCase(className.charAt(0))) {
+                            // class we know nothing about (framework class), Class/selector guess is better than
+                            // any method that happens to have the same selector
+                            return null;
+                        }
+                    }
+                    // untyped receiver, treated as id
+                    return graph.selectors.resolve(p.suffix, Collections.emptyList(), visible);
+                }
+                return resolveMessage(type, p.suffix, type + '/' + p.suffix, visible);
+            case TYPED_MESSAGE:
+                return resolveMessage(p.name, p.suffix, null, visible);
+            case SUPER_MESSAGE:
+                String superclass = p.name == null ? null : graph.hierarchy.getSuperclass(p.name);
+                return superclass == null ? null : graph.hierarchy.resolve(superclass, p.suffix, visible);
+            case PROPERTY:
+                type = variableType(p, classVars);
+                if (type == null) {
+                    return null;
+                }
+                String owner = propertyOwner(type, p.suffix);
+                return (owner == null ? type : owner) + '/' + p.suffix + "()";
+            case PRIMARY:
+            case IDENTIFIER:
+                if (classVars != null && classVars.containsKey(p.name)) {
+                    return p.scopeClass + '/' + p.name;
+                }
+                if (graph.types.contains(p.name) ||
+                        graph.globalVars.containsKey(p.name) ||
+                        graph.functions.contains(p.name)) {
+                    return p.name;
+                }
+                return null;
+        }
+        return null;
+    }
+
+    /**
+     * @param type receiver type
+     * @param selector message selector
+     * @param unresolved value to return if method was not found in class hierarchy of concrete type
+     * @param visible ids of files method declarations may come from, null if all are visible
+     * @return definition key of method
+     */
+    private String resolveMessage(String type, String selector, String unresolved, BitSet visible) {
+        if (SelectorIndex.isDynamic(type)) {
+            return graph.selectors.resolve(selector, SelectorIndex.getDeclaredProtocols(type), visible);
+        }
+        String key = graph.hierarchy.resolve(type, selector, visible);
+        return key == null ? unresolved : key;
+    }
+
+    /**
+     * @param p pending reference, name is variable name or self.property
+     * @param classVars variables of scope class
+     * @return type of instance variable, global variable or property of self, null if unknown
+     */
+    private String variableType(Pending p, Map<String, String> classVars) {
+        String type = classVars == null ? null : classVars.get(p.name);
+        if (type == null) {
+            type = graph.globalVars.get(p.name);
+        }
+        if (type == null && p.scopeClass != null && p.name.startsWith(SELF_PROPERTY)) {
+            String owner = propertyOwner(p.scopeClass, p.name.substring(SELF_PROPERTY.length()));
+            if (owner != null) {
+                type = graph.properties.get(owner).get(p.name.substring(SELF_PROPERTY.length()));
+            }
+        }
+        return type;
+    }
+
+    /**
+     * @param className class name
+     * @param property property name
+     * @return class in superclass chain that declares given property or null
+     */
+    private String propertyOwner(String className, String property) {
+        Set<String> visited = new HashSet<>();
+        for (String c = className; c != null && visited.add(c); c = graph.hierarchy.getSuperclass(c)) {
+            Map<String, String> classProperties = graph.properties.get(c);
+            if (classProperties != null && classProperties.containsKey(property)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private void emit(Ref ref) {
+        graph.resolveTarget(ref);
+        try {
+            graph.writer.writeRef(ref);
+            graph.refCount++;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write reference {}", ref, e);
+        }
+    }
+
+    /**
+     * Writes pending references to temporary run and clears them. If run can't be written, references stay
+     * in memory and linker stops spilling
+     */
+    private void spill() {
+        File run = null;
+        try {
+            run = File.createTempFile("srclib-objc-link", ".run");
+            run.deleteOnExit();
+            writeRun(run, pending);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to spill pending references, keeping them in memory: {}", e.getMessage());
+            if (run != null) {
+                run.delete();
+            }
+            graph.linkBudget = 0;
+            return;
+        }
+        LOGGER.debug("Spilled {} pending reference(s) to disk", pending.size());
+        runs.add(run);
+        spilled += pending.size();
+        pending = new ArrayList<>();
+        size = 0;
+    }
+
+    /**
+     * Writes pending references, strings are written once per run and then referred to by index
+     */
+    private static void writeRun(File run, List<Pending> batch) throws IOException {
+        Map<String, Integer> strings = new HashMap<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+                1 << 16))) {
+            out.writeInt(batch.size());
+            for (Pending p : batch) {
+                out.writeByte(p.kind.ordinal());
+                writeString(out, strings, p.ref.file);
+                out.writeInt(p.ref.start);
+                out.writeInt(p.ref.end);
+                writeString(out, strings, p.scopeClass);
+                writeString(out, strings, p.name);
+                writeString(out, strings, p.suffix);
+                writeString(out, strings, p.fallback);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, Map<String, Integer> strings, String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(NULL_STRING);
+            return;
+        }
+        Integer id = strings.get(s);
+        if (id != null) {
+            out.writeInt(id);
+            return;
+        }
+        strings.put(s, strings.size());
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(NEW_STRING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads pending references written by writeRun
+     */
+    private static List<Pending> readRun(File run) throws IOException {
+        List<String> strings = new ArrayList<>();
+        Kind[] kinds = Kind.values();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16))) {
+            int count = in.readInt();
+            List<Pending> ret = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Kind kind = kinds[in.readByte()];
+                Ref ref = new Ref();
+                ref.file = readString(in, strings);
+                ref.start = in.readInt();
+                ref.end = in.readInt();
+                String scopeClass = readString(in, strings);
+                String name = readString(in, strings);
+                String suffix = readString(in, strings);
+                String fallback = readString(in, strings);
+                ret.add(new Pending(kind, ref, scopeClass, name, suffix, fallback));
+            }
+            return ret;
+        }
+    }
+
+    private static String readString(DataInputStream in, List<String> strings) throws IOException {
+        int id = in.readInt();
+        if (id == NULL_STRING) {
+            return null;
+        }
+        if (id != NEW_STRING) {
+            return strings.get(id);
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        String s = new String(bytes, StandardCharsets.UTF_8);
+        strings.add(s);
+        return s;
+    }
+
+    /**
+     * Symbolic reference waiting for link phase
+     */
+    private static class Pending {
+
+        final Kind kind;
+        final Ref ref;
+        final String scopeClass;
+        final String name;
+        final String suffix;
+        final String fallback;
+
+        Pending(Kind kind, Ref ref, String scopeClass, String name, String suffix, String fallback) {
+            this.kind = kind;
+            this.ref = ref;
+            this.scopeClass = scopeClass;
+            this.name = name;
+            this.suffix = suffix;
+            this.fallback = fallback;
+        }
+    }
+}
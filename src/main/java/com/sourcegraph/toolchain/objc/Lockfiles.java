@@ -0,0 +1,158 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.sourcegraph.toolchain.core.RawDependency;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads CocoaPods (Podfile.lock) and Carthage (Cartfile.resolved) lockfiles into raw dependencies
+ */
+class Lockfiles {
+
+    static final String PODFILE_LOCK = "Podfile.lock";
+    static final String CARTFILE_RESOLVED = "Cartfile.resolved";
+
+    /**
+     * Group ID of CocoaPods dependencies
+     */
+    static final String COCOAPODS = "cocoapods";
+
+    /**
+     * Group ID of Carthage dependencies
+     */
+    static final String CARTHAGE = "carthage";
+
+    private static final String SCOPE = "compile";
+
+    // "  - Name (1.2.3)", "  - Name (1.2.3):" or "  - "Name/Subspec (1.2.3)":"
+    private static final Pattern POD = Pattern.compile("^  - \"?([^\\s\"(]+) \\(([^)]+)\\)\"?:?$");
+    // "  Name:" in EXTERNAL SOURCES or CHECKOUT OPTIONS
+    private static final Pattern SOURCE_POD = Pattern.compile("^  \"?([^\\s\":]+)\"?:$");
+    // "    :git: URL"
+    private static final Pattern SOURCE_OPTION = Pattern.compile("^    :(\\w+): \"?([^\"]+)\"?$");
+    // github "owner/repo" "1.2.3"
+    private static final Pattern CARTFILE_ENTRY = Pattern.compile("^(github|git|binary)\\s+\"([^\"]+)\"\\s+\"([^\"]+)\"");
+
+    private static final String GITHUB = "https://github.com/";
+
+    private Lockfiles() {
+    }
+
+    /**
+     * Reads all known lockfiles in given directory
+     * @param dir directory to look for lockfiles in
+     * @return dependencies listed in lockfiles
+     * @throws IOException
+     */
+    static List<RawDependency> read(File dir) throws IOException {
+        List<RawDependency> ret = new ArrayList<>();
+        File podfileLock = new File(dir, PODFILE_LOCK);
+        if (podfileLock.isFile()) {
+            ret.addAll(readPodfileLock(podfileLock));
+        }
+        File cartfileResolved = new File(dir, CARTFILE_RESOLVED);
+        if (cartfileResolved.isFile()) {
+            ret.addAll(readCartfileResolved(cartfileResolved));
+        }
+        return ret;
+    }
+
+    /**
+     * Reads Podfile.lock. Subspecs are folded into their root pods, pods with :git: source get repoURI,
+     * development pods (:path: source) are skipped because they live in the same repository
+     * @param file Podfile.lock
+     * @return pods
+     * @throws IOException
+     */
+    static List<RawDependency> readPodfileLock(File file) throws IOException {
+        Map<String, String> versions = new TreeMap<>();
+        Map<String, Map<String, String>> sources = new HashMap<>();
+
+        String section = null;
+        String sourcePod = null;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (!Character.isWhitespace(line.charAt(0))) {
+                section = line.endsWith(":") ? line.substring(0, line.length() - 1) : line;
+                sourcePod = null;
+                continue;
+            }
+            if ("PODS".equals(section)) {
+                Matcher m = POD.matcher(line);
+                if (m.matches()) {
+                    String pod = StringUtils.substringBefore(m.group(1), "/");
+                    versions.putIfAbsent(pod, m.group(2).trim());
+                }
+            } else if ("EXTERNAL SOURCES".equals(section) || "CHECKOUT OPTIONS".equals(section)) {
+                Matcher m = SOURCE_POD.matcher(line);
+                if (m.matches()) {
+                    sourcePod = m.group(1);
+                    continue;
+                }
+                m = SOURCE_OPTION.matcher(line);
+                if (m.matches() && sourcePod != null) {
+                    sources.computeIfAbsent(sourcePod, k -> new HashMap<>()).put(m.group(1), m.group(2).trim());
+                }
+            }
+        }
+
+        List<RawDependency> ret = new ArrayList<>();
+        for (Map.Entry<String, String> entry : versions.entrySet()) {
+            Map<String, String> options = sources.get(entry.getKey());
+            if (options != null && options.containsKey("path")) {
+                continue;
+            }
+            RawDependency dependency = new RawDependency(COCOAPODS,
+                    entry.getKey(),
+                    entry.getValue(),
+                    SCOPE,
+                    file.getPath());
+            if (options != null) {
+                dependency.repoURI = options.get("git");
+            }
+            ret.add(dependency);
+        }
+        return ret;
+    }
+
+    /**
+     * Reads Cartfile.resolved
+     * @param file Cartfile.resolved
+     * @return Carthage dependencies
+     * @throws IOException
+     */
+    static List<RawDependency> readCartfileResolved(File file) throws IOException {
+        List<RawDependency> ret = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            Matcher m = CARTFILE_ENTRY.matcher(line.trim());
+            if (!m.find()) {
+                continue;
+            }
+            String kind = m.group(1);
+            String location = m.group(2);
+            RawDependency dependency = new RawDependency(CARTHAGE, location, m.group(3), SCOPE, file.getPath());
+            dependency.type = kind;
+            switch (kind) {
+                case "github":
+                    dependency.repoURI = location.contains("://") ? location : GITHUB + location;
+                    break;
+                case "git":
+                    dependency.repoURI = location;
+                    break;
+                default:
+                    // binary framework, there is no source repository
+            }
+            ret.add(dependency);
+        }
+        return ret;
+    }
+}
@@ -31,10 +31,16 @@ public class Main {
         ScanCommand scan = new ScanCommand();
         GraphCommand graph = new GraphCommand();
         DepresolveCommand depresolve = new DepresolveCommand();
+        SdkIndexCommand sdkIndex = new SdkIndexCommand();
+        BenchCommand bench = new BenchCommand();
+        QueryCommand query = new QueryCommand();
 
         jc.addCommand("scan", scan);
         jc.addCommand("graph", graph);
         jc.addCommand("depresolve", depresolve);
+        jc.addCommand("sdk-index", sdkIndex);
+        jc.addCommand("bench", bench);
+        jc.addCommand("query", query);
 
         try {
             jc.parse(args);
@@ -53,6 +59,15 @@ public class Main {
             case "depresolve":
                 depresolve.Execute();
                 break;
+            case "sdk-index":
+                sdkIndex.Execute();
+                break;
+            case "bench":
+                bench.Execute();
+                break;
+            case "query":
+                query.Execute();
+                break;
             default:
                 LOGGER.error("Unknown command {}", jc.getParsedCommand());
                 jc.usage();
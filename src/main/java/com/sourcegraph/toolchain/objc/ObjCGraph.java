@@ -1,82 +1,644 @@
 package com.sourcegraph.toolchain.objc;
 
+import com.sourcegraph.toolchain.core.AsyncGraphWriter;
+import com.sourcegraph.toolchain.core.Diagnostics;
 import com.sourcegraph.toolchain.core.GraphWriter;
+import com.sourcegraph.toolchain.core.JfrEvents;
+import com.sourcegraph.toolchain.core.KeyTable;
 import com.sourcegraph.toolchain.core.PathUtil;
-import com.sourcegraph.toolchain.objc.antlr4.ObjCLexer;
+import com.sourcegraph.toolchain.core.Ref;
 import com.sourcegraph.toolchain.objc.antlr4.ObjCParser;
-import org.antlr.v4.runtime.ANTLRFileStream;
+import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.atn.PredictionMode;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
 
 public class ObjCGraph {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ObjCGraph.class);
 
+    /**
+     * Small files are allowed to have this many syntax errors regardless of error rate
+     */
+    private static final int MIN_ERROR_BUDGET = 10;
+
+    // outcomes of flight recorder events
+    private static final String OUTCOME_OK = "ok";
+    private static final String OUTCOME_BUDGET = "budget-exceeded";
+    private static final String OUTCOME_IO_ERROR = "io-error";
+    private static final String OUTCOME_ERROR = "error";
+
     GraphWriter writer;
 
+    /**
+     * Collects syntax errors, budget overruns and other per-file events
+     */
+    Diagnostics diagnostics = new Diagnostics();
+
     Map<String, String> globalVars = new HashMap<>();
     // class name -> (variable -> type)
     Map<String, Map<String, String>> instanceVars = new HashMap<>();
 
+    // class name -> (property -> type)
+    Map<String, Map<String, String>> properties = new HashMap<>();
+
     Set<String> functions = new HashSet<>();
     Set<String> types = new HashSet<>();
 
+    /**
+     * Selector -> classes and protocols declaring it
+     */
+    SelectorIndex selectors = new SelectorIndex();
+
+    /**
+     * Superclasses and protocols of classes
+     */
+    ClassHierarchy hierarchy = new ClassHierarchy(selectors);
+
+    /**
+     * Imports between unit files, tells which declarations each file can see
+     */
+    ImportGraph importGraph = new ImportGraph();
+
+    /**
+     * Prebuilt index of framework symbols, may be null
+     */
+    SdkIndex sdk;
+
+    /**
+     * Resolves references to instance and global variables, types and functions once all files are processed
+     */
+    Linker linker = new Linker(this);
+
+    /**
+     * Estimated heap size in bytes references waiting for link phase may take before they are spilled to
+     * temporary files, 0 means keep them in memory
+     */
+    long linkBudget;
+
+    /**
+     * Conditional compilation stage, drops inactive #if branches before lexing
+     */
+    Preprocessor preprocessor = new Preprocessor();
+
+    /**
+     * Per-file lex and parse time budget in milliseconds, 0 means unlimited
+     */
+    long fileTimeout;
+
+    /**
+     * Per-file token budget, 0 means unlimited
+     */
+    int fileMaxTokens;
+
+    /**
+     * Files of this size (in characters) or larger are processed by lexer only, 0 means no limit
+     */
+    int lexerOnlySize;
+
+    /**
+     * Number of syntax errors per KB of source that makes us give up parsing file and switch to lexer-only mode,
+     * 0 means no limit
+     */
+    double maxErrorsPerKb;
+
+    /**
+     * Resolves imported names to unit files, made of graph files when not set
+     */
+    HeaderMap headers;
+
+    /**
+     * Number of parser threads, 0 means that files are read, parsed and walked one by one on graph thread
+     */
+    int threads;
+
+    /**
+     * Maximum number of files read or parsed ahead of graph thread
+     */
+    int readAhead;
+
+    /**
+     * Interned definition keys
+     */
+    final KeyTable keys;
+
+    /**
+     * Number of definitions written
+     */
+    long defCount;
+
+    /**
+     * Number of references written, writer drops duplicates
+     */
+    long refCount;
+
+    /**
+     * Counts bytes allocated in each stage, null means no accounting. Requires threads to be 0
+     */
+    AllocationMeter allocations;
+
+    private Pipeline pipeline;
+
+    // files waiting for their imports to be processed, innermost on top
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    // file being walked by worklist and names its prescan found, null outside of worklist walk
+    private String walking;
+    private Set<String> prescanned = Collections.emptySet();
+
+    // imports met by walk that prescan did not see, processed right after file being walked
+    private final List<String> walkImports = new ArrayList<>();
+
     private Set<String> visited = new HashSet<>();
     private Set<String> files;
 
     public ObjCGraph(GraphWriter writer) {
+        this(writer, new KeyTable());
+    }
+
+    /**
+     * @param writer writer to pass definitions and references to
+     * @param keys table to intern definition keys with, may be shared with writer (see GraphData)
+     */
+    public ObjCGraph(GraphWriter writer, KeyTable keys) {
         this.writer = writer;
+        this.keys = keys;
     }
 
     public void process(Collection<String> files) {
-        this.files = new HashSet<>();
+        this.files = new LinkedHashSet<>();
         for (String file : files) {
             this.files.add(PathUtil.relativizeCwd(file));
         }
-        for (String file : files) {
-            process(file, null);
+        if (headers == null) {
+            headers = new HeaderMap(this.files, Collections.emptyList());
+        }
+        long start = System.nanoTime();
+        if (threads > 0) {
+            pipeline = new Pipeline(this, this.files, threads, readAhead);
+        }
+        try {
+            for (String file : files) {
+                process(file, null);
+            }
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+        }
+        LOGGER.debug("Imports resolved: {}, unresolved: {}", headers.getResolvedCount(), headers.getUnresolvedCount());
+        linker.link();
+        if (pipeline != null) {
+            pipeline.logUtilization(System.nanoTime() - start,
+                    writer instanceof AsyncGraphWriter ? ((AsyncGraphWriter) writer).getBusyTime() : -1);
+            pipeline = null;
         }
     }
 
+    /**
+     * Processes file and, first, files it imports. Imports are found by prescan of preprocessed source and processed
+     * depth-first through explicit stack of importers before importer is parsed, so importer sees their symbols
+     * as it would if they were processed at #import, while graph thread keeps only one parse tree alive
+     * @param file file name, or imported name if from is set
+     * @param from importing file, null for unit files
+     */
     protected void process(String file, String from) {
-        if (from != null) {
-            file = PathUtil.concat(new File(from).getParentFile(), file).getPath();
-        }
-        file = PathUtil.relativizeCwd(file);
-        if (visited.contains(file)) {
+        file = from == null ? PathUtil.relativizeCwd(file) : headers.resolve(file, from);
+        if (!accept(file)) {
             return;
         }
-        if (!files.contains(file)) {
+        if (walking != null) {
+            walkImports.add(file);
+            visited.add(file);
             return;
         }
-        LOGGER.info("Processing {}", file);
+        push(file);
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            String next = nextImport(frame);
+            if (next != null) {
+                push(next);
+                continue;
+            }
+            stack.pop();
+            walk(frame);
+            for (int i = walkImports.size() - 1; i >= 0; i--) {
+                push(walkImports.get(i));
+            }
+            walkImports.clear();
+        }
+    }
+
+    /**
+     * Records #import met while walking and adds it to import graph. Imports prescan found are already processed,
+     * others are processed right after file being walked. Walks that do not come from worklist (re-parse of edited
+     * file) process import at once
+     * @param name imported name
+     * @param from importing file
+     */
+    void imported(String name, String from) {
+        String file = headers.resolve(name, from);
+        if (file != null) {
+            importGraph.add(from, file);
+        }
+        if (walking == null || !prescanned.contains(name)) {
+            process(name, from);
+        }
+    }
+
+    /**
+     * @return true if file is a unit file not processed yet
+     */
+    private boolean accept(String file) {
+        return file != null && !visited.contains(file) && files.contains(file);
+    }
+
+    /**
+     * Marks file visited and puts it on stack with names it imports, reading it unless parser threads do
+     */
+    private void push(String file) {
         visited.add(file);
+        Frame frame = new Frame(file);
         try {
-            FileGrapher extractor = new FileGrapher(this, file);
-
-            CharStream stream = new ANTLRFileStream(file);
-            ObjCLexer lexer = new ObjCLexer(stream);
-            lexer.removeErrorListeners();
-            lexer.addErrorListener(extractor);
-
-            CommonTokenStream tokens = new CommonTokenStream(lexer);
-            ObjCParser parser = new ObjCParser(tokens);
-            parser.removeErrorListeners();
-            parser.addErrorListener(extractor);
-            ObjCParser.Translation_unitContext tree = parser.translation_unit(); // parse
+            if (pipeline != null) {
+                frame.imports = pipeline.imports(file);
+            } else {
+                long[] read = allocations == null ? null : allocations.start();
+                SourceStream stream = readSource(file);
+                frame.stream = stream;
+                frame.imports = stream.imports;
+                if (read != null) {
+                    allocations.add(AllocationMeter.Stage.READ, read);
+                }
+            }
+        } catch (IOException e) {
+            frame.error = e;
+        }
+        stack.push(frame);
+    }
+
+    /**
+     * @return next file imported by frame's file that should be processed before it, null if there are none left
+     */
+    private String nextImport(Frame frame) {
+        while (frame.next < frame.imports.size()) {
+            String file = headers.resolve(frame.imports.get(frame.next++), frame.file);
+            if (accept(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses (or takes parsed) file and walks it, its imports are already processed
+     */
+    private void walk(Frame frame) {
+        String file = frame.file;
+        LOGGER.debug("Processing {}", file);
+        JfrEvents.Span span = JfrEvents.begin(JfrEvents.Type.FILE).set(JfrEvents.Field.FILE, file);
+        long defs = defCount;
+        long refs = refCount;
+        String outcome = OUTCOME_OK;
+        long[] walk = null;
+        JfrEvents.Span walkSpan = null;
+        try {
+            if (frame.error != null) {
+                throw frame.error;
+            }
+            ParsedFile parsed;
+            if (pipeline != null) {
+                parsed = pipeline.take(file);
+            } else if (allocations != null) {
+                long[] read = allocations.start();
+                parsed = parse(file, frame.stream);
+                allocations.add(AllocationMeter.Stage.READ, read);
+            } else {
+                parsed = parse(file, frame.stream);
+            }
+            frame.stream = null;
+            span.set(JfrEvents.Field.BYTES, (long) parsed.size).
+                    set(JfrEvents.Field.TOKENS, (long) parsed.tokens).
+                    set(JfrEvents.Field.MODE, parsed.tier.getPredictionMode());
+            writer.writeTier(file, parsed.tier.getName());
+            if (allocations != null) {
+                walk = allocations.start();
+            }
+            walkSpan = phase(file, parsed.tree == null ? "lex" : "walk", parsed.tier);
+            walking = file;
+            prescanned = new HashSet<>(frame.imports);
+            if (parsed.tree == null) {
+                new LexerGrapher(this, file).process(parsed.stream);
+                return;
+            }
             ParseTreeWalker walker = new ParseTreeWalker(); // create standard walker
-            walker.walk(extractor, tree); // initiate walk of tree with listener
+            walker.walk(parsed.grapher, parsed.tree); // initiate walk of tree with listener
         } catch (IOException e) {
+            outcome = OUTCOME_IO_ERROR;
             LOGGER.warn("Failed to process {}: {}", file, e.getMessage());
         } catch (Exception e) {
+            outcome = OUTCOME_ERROR;
             LOGGER.error("Failed to process {} - unexpected error", file, e);
+        } finally {
+            walking = null;
+            prescanned = Collections.emptySet();
+            if (walkSpan != null) {
+                walkSpan.set(JfrEvents.Field.OUTCOME, outcome).commit();
+            }
+            span.set(JfrEvents.Field.DEFS, defCount - defs).
+                    set(JfrEvents.Field.REFS, refCount - refs).
+                    set(JfrEvents.Field.OUTCOME, outcome).
+                    commit();
+            if (walk != null) {
+                allocations.add(AllocationMeter.Stage.WALK, walk);
+            }
+        }
+    }
+
+    /**
+     * @return number of definitions written so far
+     */
+    public long getDefCount() {
+        return defCount;
+    }
+
+    /**
+     * @return number of references written so far, including duplicates writer drops
+     */
+    public long getRefCount() {
+        return refCount;
+    }
+
+    /**
+     * Lexes and parses file, falling back to cheaper tiers when file does not fit into budget.
+     * May be called from parser threads, so it touches only thread-safe graph state (diagnostics)
+     * @param file file name
+     * @param stream source stream
+     * @return parsed file, keeps source stream only if it should be processed by lexer
+     */
+    ParsedFile parse(String file, CharStream stream) {
+        FileGrapher extractor = new FileGrapher(this, file);
+        FileTier tier = lexerOnlySize > 0 && stream.size() >= lexerOnlySize ? FileTier.LEXER_ONLY : FileTier.FULL;
+        while (tier != FileTier.LEXER_ONLY) {
+            try {
+                return parse(file, stream, extractor, tier);
+            } catch (ParseBudget.ExceededException e) {
+                List<String> ruleStack = e.getRuleStack();
+                diagnostics.report("parse-budget",
+                        file,
+                        ruleStack.isEmpty() ? null : ruleStack.get(0),
+                        "{}: {} in {} mode, rule stack {}",
+                        file,
+                        e.getMessage(),
+                        tier.getName(),
+                        ruleStack);
+                // SLL may help when we are out of time, but it won't fix syntax errors or reduce number of tokens
+                if (tier == FileTier.FULL && e.getLimit() == ParseBudget.Limit.TIME) {
+                    tier = FileTier.DEGRADED;
+                } else {
+                    tier = FileTier.LEXER_ONLY;
+                }
+                stream.seek(0);
+            }
+        }
+        return new ParsedFile(tier, extractor, null, stream, stream.size(), 0);
+    }
+
+    /**
+     * Points reference to framework's source unit if it refers to framework symbol
+     * @param ref reference to check
+     */
+    void resolveTarget(Ref ref) {
+        if (sdk != null && !ref.def && sdk.isFrameworkSymbol(ref.defKey.getPath())) {
+            ref.setDefTarget(sdk.getTarget());
+        }
+    }
+
+    /**
+     * Parses file within the configured time, token and syntax error budget
+     * @param file file name
+     * @param stream source stream
+     * @param extractor grapher that listens for syntax errors
+     * @param tier parse mode
+     * @return parsed file with parse tree
+     * @throws ParseBudget.ExceededException if file does not fit into budget
+     */
+    private ParsedFile parse(String file, CharStream stream, FileGrapher extractor, FileTier tier) {
+        int maxErrors = 0;
+        if (maxErrorsPerKb > 0) {
+            maxErrors = Math.max(MIN_ERROR_BUDGET, (int) (maxErrorsPerKb * stream.size() / 1024));
+        }
+        ParseBudget budget = new ParseBudget(file, fileMaxTokens, maxErrors);
+        Lexer lexer = budget.lexer(stream);
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(extractor);
+
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        ObjCParser parser = new ObjCParser(tokens);
+        parser.removeErrorListeners();
+        parser.addErrorListener(extractor);
+        budget.attach(parser);
+        if (tier == FileTier.DEGRADED) {
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        }
+        ScheduledFuture<?> watch = Watchdog.watch(budget, fileTimeout);
+        try {
+            // parser buffers all tokens anyway, lexing them up front separates lexer cost from parser one
+            JfrEvents.Span span = phase(file, "lex", tier).set(JfrEvents.Field.OUTCOME, OUTCOME_ERROR);
+            long[] mark = allocations == null ? null : allocations.start();
+            try {
+                tokens.fill();
+                span.set(JfrEvents.Field.OUTCOME, OUTCOME_OK);
+            } catch (ParseBudget.ExceededException e) {
+                span.set(JfrEvents.Field.OUTCOME, OUTCOME_BUDGET);
+                throw e;
+            } finally {
+                if (mark != null) {
+                    allocations.add(AllocationMeter.Stage.LEX, mark);
+                }
+                span.set(JfrEvents.Field.TOKENS, (long) tokens.size()).commit();
+            }
+
+            span = phase(file, "parse", tier).
+                    set(JfrEvents.Field.TOKENS, (long) tokens.size()).
+                    set(JfrEvents.Field.OUTCOME, OUTCOME_ERROR);
+            mark = allocations == null ? null : allocations.start();
+            try {
+                ObjCParser.Translation_unitContext tree = parser.translation_unit(); // parse
+                span.set(JfrEvents.Field.OUTCOME, OUTCOME_OK);
+                return new ParsedFile(tier, extractor, tree, null, stream.size(), tokens.size());
+            } catch (ParseBudget.ExceededException e) {
+                span.set(JfrEvents.Field.OUTCOME, OUTCOME_BUDGET);
+                throw e;
+            } finally {
+                if (mark != null) {
+                    allocations.add(AllocationMeter.Stage.PARSE, mark);
+                }
+                span.commit();
+            }
+        } finally {
+            Watchdog.release(watch);
+        }
+    }
+
+    /**
+     * Starts flight recorder event of file processing phase
+     */
+    private static JfrEvents.Span phase(String file, String phase, FileTier tier) {
+        return JfrEvents.begin(JfrEvents.Type.PHASE).
+                set(JfrEvents.Field.FILE, file).
+                set(JfrEvents.Field.PHASE, phase).
+                set(JfrEvents.Field.MODE, tier.getPredictionMode());
+    }
+
+    /**
+     * Reads source file (using default encoding, like ANTLRFileStream does) and applies preprocessor to it
+     * @param file file to read
+     * @return stream to feed lexer with, knows names source imports
+     * @throws IOException
+     */
+    SourceStream readSource(String file) throws IOException {
+        JfrEvents.Span span = JfrEvents.begin(JfrEvents.Type.PHASE).
+                set(JfrEvents.Field.FILE, file).
+                set(JfrEvents.Field.PHASE, "read").
+                set(JfrEvents.Field.OUTCOME, OUTCOME_IO_ERROR);
+        try {
+            SourceStream stream = read(file);
+            span.set(JfrEvents.Field.BYTES, (long) stream.size()).set(JfrEvents.Field.OUTCOME, OUTCOME_OK);
+            return stream;
+        } finally {
+            span.commit();
+        }
+    }
+
+    private SourceStream read(String file) throws IOException {
+        File f = new File(file);
+        char[] data = new char[(int) f.length()];
+        int length = 0;
+        try (Reader reader = new InputStreamReader(new FileInputStream(f))) {
+            int n;
+            while ((n = reader.read(data, length, data.length - length)) > 0) {
+                length += n;
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2 + 1);
+                }
+            }
+        }
+        if (preprocessor != null) {
+            preprocessor.process(data, length);
+        }
+        if (allocations != null) {
+            allocations.addInput(length);
+        }
+        SourceStream stream = new SourceStream(data, length);
+        stream.name = file;
+        return stream;
+    }
+
+    /**
+     * Preprocessed source and names it imports
+     */
+    static class SourceStream extends ANTLRInputStream {
+
+        /**
+         * Imported names in source order, found by prescan
+         */
+        final List<String> imports;
+
+        SourceStream(char[] data, int length) {
+            super(data, length);
+            imports = FileGrapher.importedFiles(data, length);
+        }
+    }
+
+    /**
+     * File on worklist stack
+     */
+    private static class Frame {
+
+        final String file;
+
+        /**
+         * Imported names, from prescan
+         */
+        List<String> imports = Collections.emptyList();
+
+        /**
+         * Next import to check
+         */
+        int next;
+
+        /**
+         * Source read by graph thread, null when parser threads read it
+         */
+        CharStream stream;
+
+        /**
+         * Error that occurred while reading
+         */
+        IOException error;
+
+        Frame(String file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Result of parse stage
+     */
+    static class ParsedFile {
+
+        final FileTier tier;
+
+        /**
+         * Listener to walk tree with, also collected syntax errors during parse
+         */
+        final FileGrapher grapher;
+
+        /**
+         * Parse tree, null for lexer-only files
+         */
+        final ObjCParser.Translation_unitContext tree;
+
+        /**
+         * Source stream of lexer-only files, null otherwise
+         */
+        final CharStream stream;
+
+        /**
+         * Source size in chars
+         */
+        final int size;
+
+        /**
+         * Number of tokens, 0 for lexer-only files
+         */
+        final int tokens;
+
+        ParsedFile(FileTier tier,
+                   FileGrapher grapher,
+                   ObjCParser.Translation_unitContext tree,
+                   CharStream stream,
+                   int size,
+                   int tokens) {
+            this.tier = tier;
+            this.grapher = grapher;
+            this.tree = tree;
+            this.stream = stream;
+            this.size = size;
+            this.tokens = tokens;
         }
     }
 }
\ No newline at end of file
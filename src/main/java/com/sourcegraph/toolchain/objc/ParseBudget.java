@@ -0,0 +1,194 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.sourcegraph.toolchain.objc.antlr4.ObjCLexer;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-file lex/parse budget. Lexer and parser check it cooperatively (on every token, rule entry and
+ * error recovery step), watchdog cancels it when file takes too much time
+ */
+class ParseBudget implements ParseTreeListener {
+
+    private final String file;
+
+    private final int maxTokens;
+
+    private final int maxErrors;
+
+    private int tokens;
+
+    private int errors;
+
+    private volatile String cancelReason;
+
+    private volatile Limit cancelLimit;
+
+    private Parser parser;
+
+    /**
+     * @param file file being parsed
+     * @param maxTokens maximum number of tokens lexer may produce, 0 means unlimited
+     * @param maxErrors maximum number of syntax errors, 0 means unlimited
+     */
+    ParseBudget(String file, int maxTokens, int maxErrors) {
+        this.file = file;
+        this.maxTokens = maxTokens;
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Makes parser check budget on every rule entry and recovery attempt
+     * @param parser parser to attach to
+     */
+    void attach(Parser parser) {
+        this.parser = parser;
+        parser.addParseListener(this);
+        parser.addErrorListener(new BaseErrorListener() {
+            @Override
+            public void syntaxError(Recognizer<?, ?> recognizer,
+                                    Object offendingSymbol,
+                                    int line,
+                                    int charPositionInLine,
+                                    String msg,
+                                    RecognitionException e) {
+                if (maxErrors > 0 && ++errors > maxErrors) {
+                    cancel(Limit.ERRORS, "syntax error budget of " + maxErrors + " exceeded");
+                }
+            }
+        });
+        parser.setErrorHandler(new DefaultErrorStrategy() {
+            @Override
+            public void recover(Parser recognizer, RecognitionException e) {
+                check();
+                super.recover(recognizer, e);
+            }
+
+            @Override
+            public void sync(Parser recognizer) throws RecognitionException {
+                check();
+                super.sync(recognizer);
+            }
+        });
+    }
+
+    /**
+     * Makes lexer that checks budget on every token
+     * @param stream character stream
+     * @return lexer
+     */
+    Lexer lexer(CharStream stream) {
+        return new ObjCLexer(stream) {
+            @Override
+            public Token nextToken() {
+                if (maxTokens > 0 && ++tokens > maxTokens) {
+                    cancel(Limit.TOKENS, "token budget of " + maxTokens + " exceeded");
+                }
+                check();
+                return super.nextToken();
+            }
+        };
+    }
+
+    /**
+     * Asks lexer and parser to stop as soon as they check the budget
+     * @param limit limit that was hit
+     * @param reason cancellation reason
+     */
+    void cancel(Limit limit, String reason) {
+        if (cancelReason == null) {
+            cancelLimit = limit;
+            cancelReason = reason;
+        }
+    }
+
+    String getFile() {
+        return file;
+    }
+
+    int getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return rule invocation stack of the attached parser, innermost rule first. May be called from other threads
+     * for diagnostic purposes only
+     */
+    List<String> ruleStack() {
+        Parser p = parser;
+        if (p == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return p.getRuleInvocationStack();
+        } catch (RuntimeException e) {
+            // parser state may be changing under our feet
+            return Collections.emptyList();
+        }
+    }
+
+    private void check() {
+        if (cancelReason != null) {
+            throw new ExceededException(cancelLimit, cancelReason, ruleStack());
+        }
+    }
+
+    @Override
+    public void enterEveryRule(ParserRuleContext ctx) {
+        check();
+    }
+
+    @Override
+    public void exitEveryRule(ParserRuleContext ctx) {
+    }
+
+    @Override
+    public void visitTerminal(TerminalNode node) {
+    }
+
+    @Override
+    public void visitErrorNode(ErrorNode node) {
+        check();
+    }
+
+    /**
+     * Kinds of budget limits
+     */
+    enum Limit {
+        TIME,
+        TOKENS,
+        ERRORS
+    }
+
+    /**
+     * Raised when lexer or parser runs out of budget
+     */
+    static class ExceededException extends ParseCancellationException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Limit limit;
+
+        private final List<String> ruleStack;
+
+        ExceededException(Limit limit, String reason, List<String> ruleStack) {
+            super(reason);
+            this.limit = limit;
+            this.ruleStack = ruleStack;
+        }
+
+        Limit getLimit() {
+            return limit;
+        }
+
+        List<String> getRuleStack() {
+            return ruleStack;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.sourcegraph.toolchain.objc;
+
+import org.antlr.v4.runtime.CharStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-ahead and parse stages of graph: one I/O thread reads and preprocesses files in the order they will be
+ * walked (and prescans their imports), a pool of CPU threads lexes and parses them, and the graph thread asks for
+ * imports of a file as soon as it is read, then takes parsed file once its imports are processed. Walking stays on
+ * the graph thread because it updates shared symbol tables and must see imported files first. Number of files read
+ * or parsed but not walked yet is bounded by read-ahead depth, so reader blocks when graph thread falls behind.
+ * File asked for before reader got to it is read and parsed by graph thread itself
+ */
+class Pipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Pipeline.class);
+
+    private final ObjCGraph graph;
+
+    private final int threads;
+
+    private final Semaphore window;
+
+    /**
+     * Entry left in place of file handed over to graph thread, keeps reader from reading it again while not holding
+     * on to its parse tree
+     */
+    private static final Entry TAKEN = new Entry();
+
+    private final ConcurrentMap<String, Entry> scheduled = new ConcurrentHashMap<>();
+
+    private final ExecutorService parsers;
+
+    private final Thread reader;
+
+    private final AtomicLong readTime = new AtomicLong();
+    private final AtomicLong parseTime = new AtomicLong();
+    private long waitTime;
+    private int inline;
+
+    /**
+     * @param graph graph to read and parse files for
+     * @param files files in the order they will be walked, relative to current working directory
+     * @param threads number of parser threads
+     * @param readAhead maximum number of files read or parsed ahead of graph thread
+     */
+    Pipeline(ObjCGraph graph, Collection<String> files, int threads, int readAhead) {
+        this.graph = graph;
+        this.threads = threads;
+        this.window = new Semaphore(Math.max(1, readAhead));
+        AtomicInteger counter = new AtomicInteger();
+        this.parsers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "parser-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<String> order = new ArrayList<>(files);
+        this.reader = new Thread(() -> read(order), "reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Returns names file imports, waiting for reader if needed
+     * @param file file relative to current working directory
+     * @return imported names
+     * @throws IOException if graph thread had to read file and failed
+     */
+    List<String> imports(String file) throws IOException {
+        Entry entry = new Entry();
+        Entry existing = scheduled.putIfAbsent(file, entry);
+        if (existing == null) {
+            // reader did not get to this file yet, and now it won't
+            inline++;
+            ObjCGraph.SourceStream stream = graph.readSource(file);
+            entry.inline = stream;
+            return stream.imports;
+        }
+        return await(file, existing.imports);
+    }
+
+    /**
+     * Returns parsed file, waiting for parser if needed
+     * @param file file relative to current working directory, its imports must be asked for first
+     * @return parsed file
+     * @throws IOException if file can't be read
+     */
+    ObjCGraph.ParsedFile take(String file) throws IOException {
+        Entry entry = scheduled.replace(file, TAKEN);
+        if (entry.inline != null) {
+            CharStream stream = entry.inline;
+            entry.inline = null;
+            return graph.parse(file, stream);
+        }
+        try {
+            return await(file, entry.parsed);
+        } finally {
+            window.release();
+        }
+    }
+
+    private <T> T await(String file, CompletableFuture<T> future) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + file);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            waitTime += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Stops reader and parser threads
+     */
+    void close() {
+        reader.interrupt();
+        parsers.shutdownNow();
+    }
+
+    /**
+     * Logs how busy each stage was
+     * @param wallTime total graph time (ns)
+     * @param writeTime time (ns) writer stage spent writing, negative if there is no writer stage
+     */
+    void logUtilization(long wallTime, long writeTime) {
+        if (wallTime <= 0) {
+            return;
+        }
+        LOGGER.info("Stage utilization: read {}%, parse {}% of {} thread(s), walk {}%{}, {} file(s) parsed inline",
+                percent(readTime.get(), wallTime),
+                percent(parseTime.get(), wallTime * threads),
+                threads,
+                percent(wallTime - waitTime, wallTime),
+                writeTime < 0 ? "" : ", write " + percent(writeTime, wallTime) + '%',
+                inline);
+    }
+
+    private void read(List<String> files) {
+        for (String file : files) {
+            try {
+                window.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Entry entry = new Entry();
+            if (scheduled.putIfAbsent(file, entry) != null) {
+                // duplicate or already taken by graph thread
+                window.release();
+                continue;
+            }
+            long start = System.nanoTime();
+            ObjCGraph.SourceStream stream;
+            try {
+                stream = graph.readSource(file);
+            } catch (IOException | RuntimeException e) {
+                // graph thread learns about failure when it takes the file
+                entry.imports.complete(Collections.emptyList());
+                entry.parsed.completeExceptionally(e);
+                continue;
+            } finally {
+                readTime.addAndGet(System.nanoTime() - start);
+            }
+            entry.imports.complete(stream.imports);
+            try {
+                parsers.execute(() -> parse(file, stream, entry.parsed));
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void parse(String file, CharStream stream, CompletableFuture<ObjCGraph.ParsedFile> future) {
+        long start = System.nanoTime();
+        try {
+            future.complete(graph.parse(file, stream));
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        } finally {
+            parseTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static long percent(long part, long total) {
+        return Math.round(100.0 * part / total);
+    }
+
+    /**
+     * Read and parse state of file
+     */
+    private static class Entry {
+
+        final CompletableFuture<List<String>> imports = new CompletableFuture<>();
+
+        final CompletableFuture<ObjCGraph.ParsedFile> parsed = new CompletableFuture<>();
+
+        /**
+         * Source read by graph thread because reader did not get to file, graph thread parses it as well
+         */
+        CharStream inline;
+    }
+}
@@ -0,0 +1,204 @@
+package com.sourcegraph.toolchain.objc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-pass parser of old-style (OpenStep) property lists such as project.pbxproj. Works directly on character
+ * buffer without tokenizer objects or regular expressions. Dictionaries become maps, arrays become lists,
+ * strings and data (&lt;...&gt;) become strings
+ */
+class PlistParser {
+
+    private final char[] data;
+    private final int length;
+    private int pos;
+
+    private PlistParser(char[] data, int length) {
+        this.data = data;
+        this.length = length;
+    }
+
+    /**
+     * Parses property list
+     * @param data source
+     * @param length number of characters to parse
+     * @return root value (usually dictionary)
+     * @throws IOException if property list is malformed
+     */
+    static Object parse(char[] data, int length) throws IOException {
+        PlistParser parser = new PlistParser(data, length);
+        Object ret = parser.value();
+        parser.skipWhitespace();
+        if (parser.pos < length) {
+            throw parser.error("Unexpected content after root value");
+        }
+        return ret;
+    }
+
+    private Object value() throws IOException {
+        skipWhitespace();
+        if (pos >= length) {
+            throw error("Unexpected end of input");
+        }
+        switch (data[pos]) {
+            case '{':
+                return dictionary();
+            case '(':
+                return array();
+            case '"':
+            case '\'':
+                return quoted();
+            case '<':
+                return binary();
+            default:
+                return unquoted();
+        }
+    }
+
+    private Map<String, Object> dictionary() throws IOException {
+        pos++;
+        Map<String, Object> ret = new LinkedHashMap<>();
+        while (true) {
+            skipWhitespace();
+            if (pos >= length) {
+                throw error("Unterminated dictionary");
+            }
+            if (data[pos] == '}') {
+                pos++;
+                return ret;
+            }
+            Object key = value();
+            if (!(key instanceof String)) {
+                throw error("Dictionary key must be a string");
+            }
+            expect('=');
+            ret.put((String) key, value());
+            expect(';');
+        }
+    }
+
+    private List<Object> array() throws IOException {
+        pos++;
+        List<Object> ret = new ArrayList<>();
+        while (true) {
+            skipWhitespace();
+            if (pos >= length) {
+                throw error("Unterminated array");
+            }
+            if (data[pos] == ')') {
+                pos++;
+                return ret;
+            }
+            ret.add(value());
+            skipWhitespace();
+            if (pos < length && data[pos] == ',') {
+                pos++;
+            }
+        }
+    }
+
+    private String quoted() throws IOException {
+        char quote = data[pos++];
+        StringBuilder ret = null;
+        int start = pos;
+        while (pos < length) {
+            char c = data[pos];
+            if (c == quote) {
+                String s = ret == null ? new String(data, start, pos - start) : ret.toString();
+                pos++;
+                return s;
+            }
+            if (c == '\\' && pos + 1 < length) {
+                if (ret == null) {
+                    ret = new StringBuilder().append(data, start, pos - start);
+                }
+                pos++;
+                c = data[pos];
+                switch (c) {
+                    case 'n':
+                        ret.append('\n');
+                        break;
+                    case 't':
+                        ret.append('\t');
+                        break;
+                    case 'r':
+                        ret.append('\r');
+                        break;
+                    default:
+                        ret.append(c);
+                }
+            } else if (ret != null) {
+                ret.append(c);
+            }
+            pos++;
+        }
+        throw error("Unterminated string");
+    }
+
+    private String binary() throws IOException {
+        int start = ++pos;
+        while (pos < length && data[pos] != '>') {
+            pos++;
+        }
+        if (pos >= length) {
+            throw error("Unterminated data");
+        }
+        return new String(data, start, pos++ - start);
+    }
+
+    private String unquoted() throws IOException {
+        int start = pos;
+        while (pos < length && isUnquotedChar(data[pos])) {
+            pos++;
+        }
+        if (pos == start) {
+            throw error("Unexpected character '" + data[pos] + "'");
+        }
+        return new String(data, start, pos - start);
+    }
+
+    private static boolean isUnquotedChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' ||
+                c == '_' || c == '$' || c == '/' || c == ':' || c == '.' || c == '-';
+    }
+
+    private void expect(char c) throws IOException {
+        skipWhitespace();
+        if (pos >= length || data[pos] != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    /**
+     * Skips whitespace, line and block comments
+     */
+    private void skipWhitespace() {
+        while (pos < length) {
+            char c = data[pos];
+            if (Character.isWhitespace(c)) {
+                pos++;
+            } else if (c == '/' && pos + 1 < length && data[pos + 1] == '*') {
+                pos += 2;
+                while (pos < length && !(data[pos] == '*' && pos + 1 < length && data[pos + 1] == '/')) {
+                    pos++;
+                }
+                pos += 2;
+            } else if (c == '/' && pos + 1 < length && data[pos + 1] == '/') {
+                while (pos < length && data[pos] != '\n') {
+                    pos++;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at offset " + pos);
+    }
+}
@@ -0,0 +1,652 @@
+package com.sourcegraph.toolchain.objc;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.*;
+
+/**
+ * Conditional compilation stage that runs in front of ObjCLexer.
+ * Evaluates #if/#ifdef/#ifndef/#elif/#else/#endif directives against configured set of macros and blanks
+ * inactive regions in place (everything except line breaks becomes a space), so lexer and parser never see them
+ * while character offsets of the remaining code stay the same.
+ * Conditions that cannot be evaluated (unknown macros, function-like macros, arithmetic) keep all their branches
+ * which matches the behaviour of the grammar that sends directives to hidden channel.
+ */
+public class Preprocessor {
+
+    /**
+     * Result of condition evaluation when condition depends on something we don't know
+     */
+    private static final Integer UNKNOWN = null;
+
+    /**
+     * Marks macro that was #undef'ed in the current file
+     */
+    private static final String UNDEFINED = new String("<undefined>");
+
+    /**
+     * Marks macro that was #define'd or #undef'ed in the region we are not sure is active
+     */
+    private static final String UNCERTAIN = new String("<uncertain>");
+
+    // no branch was taken so far, all previous conditions were false
+    private static final int NONE = 0;
+    // one of previous branches was (or might be) taken, remaining branches are inactive
+    private static final int TAKEN = 1;
+    // previous branches had conditions we were unable to evaluate
+    private static final int UNDECIDED = 2;
+
+    private final Map<String, String> defines;
+    private final Set<String> undefines;
+
+    /**
+     * Constructs preprocessor that knows only about literal conditions such as "#if 0"
+     */
+    public Preprocessor() {
+        this(Collections.emptyMap(), Collections.emptySet());
+    }
+
+    /**
+     * @param defines macros that should be treated as defined (name -> value, empty value means "1")
+     * @param undefines macros that should be treated as undefined
+     */
+    public Preprocessor(Map<String, String> defines, Collection<String> undefines) {
+        this.defines = new HashMap<>(defines);
+        this.undefines = new HashSet<>(undefines);
+    }
+
+    /**
+     * Makes preprocessor from command line options
+     * @param defines list of NAME or NAME=VALUE entries
+     * @param undefines list of macro names
+     * @return configured preprocessor
+     */
+    public static Preprocessor fromOptions(Collection<String> defines, Collection<String> undefines) {
+        Map<String, String> macros = new HashMap<>();
+        if (defines != null) {
+            for (String define : defines) {
+                int pos = define.indexOf('=');
+                if (pos < 0) {
+                    macros.put(define.trim(), "1");
+                } else {
+                    macros.put(define.substring(0, pos).trim(), define.substring(pos + 1).trim());
+                }
+            }
+        }
+        return new Preprocessor(macros, undefines == null ? Collections.emptySet() : undefines);
+    }
+
+    /**
+     * Blanks inactive conditional regions of given source in place
+     * @param data source characters
+     * @param length number of meaningful characters in data
+     * @return number of characters blanked
+     */
+    public int process(char[] data, int length) {
+        return new Pass(data, length).run();
+    }
+
+    /**
+     * Single file pass, keeps per-file state such as local #define's and open conditionals
+     */
+    private class Pass {
+
+        private final char[] data;
+        private final int length;
+
+        private Map<String, String> local;
+
+        private final Deque<Frame> frames = new ArrayDeque<>();
+
+        private boolean inComment;
+        private int blanked;
+
+        Pass(char[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        int run() {
+            int offset = 0;
+            while (offset < length) {
+                int end = lineEnd(offset);
+                boolean startsInComment = inComment;
+                int directive = startsInComment ? -1 : directiveStart(offset, end);
+                if (directive >= 0) {
+                    // directive may span several lines with backslash continuations
+                    while (end < length && continues(offset, end)) {
+                        end = lineEnd(nextLine(end));
+                    }
+                    boolean keep = handleDirective(directive, end);
+                    skipComments(offset, end);
+                    if (!keep) {
+                        blank(offset, end);
+                    }
+                } else {
+                    skipComments(offset, end);
+                    if (!isActive()) {
+                        blank(offset, end);
+                    }
+                }
+                offset = nextLine(end);
+            }
+            return blanked;
+        }
+
+        /**
+         * Handles directive, returns false if directive line belongs to inactive region
+         */
+        private boolean handleDirective(int start, int end) {
+            int nameEnd = start;
+            while (nameEnd < end && Character.isLetter(data[nameEnd])) {
+                nameEnd++;
+            }
+            String name = new String(data, start, nameEnd - start);
+            String rest = null;
+            switch (name) {
+                case "if":
+                case "ifdef":
+                case "ifndef": {
+                    Frame frame = new Frame(isActive(), isCertain());
+                    frames.push(frame);
+                    if (frame.parentActive) {
+                        enter(frame, evaluate(name, condition(nameEnd, end)));
+                    } else {
+                        frame.state = TAKEN;
+                    }
+                    return frame.parentActive;
+                }
+                case "elif": {
+                    Frame frame = frames.peek();
+                    if (frame == null) {
+                        return isActive();
+                    }
+                    if (frame.parentActive) {
+                        switch (frame.state) {
+                            case TAKEN:
+                                frame.branchActive = false;
+                                break;
+                            case NONE:
+                                enter(frame, evaluate(name, condition(nameEnd, end)));
+                                break;
+                            default:
+                                Integer value = evaluate(name, condition(nameEnd, end));
+                                frame.branchActive = value == UNKNOWN || value != 0;
+                                frame.branchCertain = false;
+                                if (value != UNKNOWN && value != 0) {
+                                    frame.state = TAKEN;
+                                }
+                        }
+                    }
+                    return frame.parentActive;
+                }
+                case "else": {
+                    Frame frame = frames.peek();
+                    if (frame == null) {
+                        return isActive();
+                    }
+                    switch (frame.state) {
+                        case TAKEN:
+                            frame.branchActive = false;
+                            break;
+                        case NONE:
+                            frame.branchActive = true;
+                            frame.branchCertain = true;
+                            frame.state = TAKEN;
+                            break;
+                        default:
+                            frame.branchActive = true;
+                            frame.branchCertain = false;
+                            frame.state = TAKEN;
+                    }
+                    return frame.parentActive;
+                }
+                case "endif": {
+                    Frame frame = frames.poll();
+                    return frame == null ? isActive() : frame.parentActive;
+                }
+                case "define":
+                case "undef":
+                    if (isActive()) {
+                        rest = condition(nameEnd, end);
+                        String macro = StringUtils.substringBefore(rest, " ");
+                        int paren = macro.indexOf('(');
+                        if (paren >= 0) {
+                            // function-like macros are not evaluated
+                            macro = macro.substring(0, paren);
+                        }
+                        if (!macro.isEmpty()) {
+                            if (local == null) {
+                                local = new HashMap<>();
+                            }
+                            String value;
+                            if (!isCertain() || paren >= 0) {
+                                value = UNCERTAIN;
+                            } else if (name.equals("undef")) {
+                                value = UNDEFINED;
+                            } else {
+                                value = rest.substring(macro.length()).trim();
+                            }
+                            local.put(macro, value);
+                        }
+                        return true;
+                    }
+                    return false;
+                default:
+                    return isActive();
+            }
+        }
+
+        private void enter(Frame frame, Integer value) {
+            if (value == UNKNOWN) {
+                frame.branchActive = true;
+                frame.branchCertain = false;
+                frame.state = UNDECIDED;
+            } else if (value != 0) {
+                frame.branchActive = true;
+                frame.branchCertain = true;
+                frame.state = TAKEN;
+            } else {
+                frame.branchActive = false;
+                frame.state = NONE;
+            }
+        }
+
+        private Integer evaluate(String directive, String condition) {
+            switch (directive) {
+                case "ifdef":
+                    return defined(condition.trim());
+                case "ifndef": {
+                    Integer value = defined(condition.trim());
+                    return value == UNKNOWN ? UNKNOWN : Integer.valueOf(1 - value);
+                }
+                default:
+                    return new Expression(condition).evaluate();
+            }
+        }
+
+        private Integer defined(String macro) {
+            String value = lookup(macro);
+            if (value == UNCERTAIN) {
+                return UNKNOWN;
+            }
+            if (value == UNDEFINED) {
+                return 0;
+            }
+            return value == null ? UNKNOWN : Integer.valueOf(1);
+        }
+
+        /**
+         * @return macro value, UNDEFINED, UNCERTAIN or null if we know nothing about macro
+         */
+        private String lookup(String macro) {
+            if (local != null) {
+                String value = local.get(macro);
+                if (value != null) {
+                    return value;
+                }
+            }
+            String value = defines.get(macro);
+            if (value != null) {
+                return value;
+            }
+            return undefines.contains(macro) ? UNDEFINED : null;
+        }
+
+        private boolean isActive() {
+            Frame frame = frames.peek();
+            return frame == null || frame.parentActive && frame.branchActive;
+        }
+
+        private boolean isCertain() {
+            Frame frame = frames.peek();
+            return frame == null || frame.parentCertain && frame.branchCertain;
+        }
+
+        /**
+         * @return directive text with comments and line continuations removed
+         */
+        private String condition(int start, int end) {
+            StringBuilder ret = new StringBuilder(end - start);
+            int i = start;
+            while (i < end) {
+                char c = data[i];
+                if (c == '/' && i + 1 < end && data[i + 1] == '/') {
+                    break;
+                }
+                if (c == '/' && i + 1 < end && data[i + 1] == '*') {
+                    int close = indexOf("*/", i + 2, end);
+                    if (close < 0) {
+                        break;
+                    }
+                    ret.append(' ');
+                    i = close + 2;
+                    continue;
+                }
+                if (c == '\\' || c == '\r' || c == '\n' || c == '\t') {
+                    c = ' ';
+                }
+                ret.append(c);
+                i++;
+            }
+            return ret.toString().trim();
+        }
+
+        /**
+         * @return position of directive name if line is a preprocessor directive, -1 otherwise
+         */
+        private int directiveStart(int start, int end) {
+            int i = skipSpaces(start, end);
+            if (i >= end || data[i] != '#') {
+                return -1;
+            }
+            return skipSpaces(i + 1, end);
+        }
+
+        /**
+         * Updates multi-line comment state with the content of given line
+         */
+        private void skipComments(int start, int end) {
+            int i = start;
+            char quote = 0;
+            while (i < end) {
+                char c = data[i];
+                if (inComment) {
+                    if (c == '*' && i + 1 < end && data[i + 1] == '/') {
+                        inComment = false;
+                        i++;
+                    }
+                } else if (quote != 0) {
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '/' && i + 1 < end) {
+                    char next = data[i + 1];
+                    if (next == '/') {
+                        return;
+                    }
+                    if (next == '*') {
+                        inComment = true;
+                        i++;
+                    }
+                }
+                i++;
+            }
+        }
+
+        private void blank(int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = data[i];
+                if (c != '\n' && c != '\r' && c != ' ') {
+                    data[i] = ' ';
+                    blanked++;
+                }
+            }
+        }
+
+        private boolean continues(int start, int end) {
+            int i = end - 1;
+            while (i >= start && data[i] == '\r') {
+                i--;
+            }
+            return i >= start && data[i] == '\\';
+        }
+
+        private int lineEnd(int offset) {
+            while (offset < length && data[offset] != '\n') {
+                offset++;
+            }
+            return offset;
+        }
+
+        private int nextLine(int end) {
+            return end < length ? end + 1 : end;
+        }
+
+        private int skipSpaces(int start, int end) {
+            while (start < end && (data[start] == ' ' || data[start] == '\t')) {
+                start++;
+            }
+            return start;
+        }
+
+        private int indexOf(String s, int start, int end) {
+            outer:
+            for (int i = start; i <= end - s.length(); i++) {
+                for (int j = 0; j < s.length(); j++) {
+                    if (data[i + j] != s.charAt(j)) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Tri-state evaluator of #if expressions, supports integer literals, macros, defined(),
+         * !, &&, ||, comparisons and parentheses. Anything else makes expression unknown
+         */
+        private class Expression {
+
+            private final String text;
+            private int pos;
+            private boolean failed;
+
+            Expression(String text) {
+                this.text = text;
+            }
+
+            Integer evaluate() {
+                Integer value = or();
+                skipWhitespace();
+                if (failed || pos < text.length()) {
+                    return UNKNOWN;
+                }
+                return value;
+            }
+
+            private Integer or() {
+                Integer left = and();
+                while (accept("||")) {
+                    Integer right = and();
+                    if (left != UNKNOWN && left != 0 || right != UNKNOWN && right != 0) {
+                        left = 1;
+                    } else if (left == UNKNOWN || right == UNKNOWN) {
+                        left = UNKNOWN;
+                    } else {
+                        left = 0;
+                    }
+                }
+                return left;
+            }
+
+            private Integer and() {
+                Integer left = equality();
+                while (accept("&&")) {
+                    Integer right = equality();
+                    if (left != UNKNOWN && left == 0 || right != UNKNOWN && right == 0) {
+                        left = 0;
+                    } else if (left == UNKNOWN || right == UNKNOWN) {
+                        left = UNKNOWN;
+                    } else {
+                        left = 1;
+                    }
+                }
+                return left;
+            }
+
+            private Integer equality() {
+                Integer left = unary();
+                while (true) {
+                    String op;
+                    if (accept("==")) {
+                        op = "==";
+                    } else if (accept("!=")) {
+                        op = "!=";
+                    } else if (accept(">=")) {
+                        op = ">=";
+                    } else if (accept("<=")) {
+                        op = "<=";
+                    } else if (accept(">")) {
+                        op = ">";
+                    } else if (accept("<")) {
+                        op = "<";
+                    } else {
+                        return left;
+                    }
+                    Integer right = unary();
+                    if (left == UNKNOWN || right == UNKNOWN) {
+                        left = UNKNOWN;
+                        continue;
+                    }
+                    boolean result;
+                    switch (op) {
+                        case "==":
+                            result = left.intValue() == right.intValue();
+                            break;
+                        case "!=":
+                            result = left.intValue() != right.intValue();
+                            break;
+                        case ">=":
+                            result = left >= right;
+                            break;
+                        case "<=":
+                            result = left <= right;
+                            break;
+                        case ">":
+                            result = left > right;
+                            break;
+                        default:
+                            result = left < right;
+                    }
+                    left = result ? 1 : 0;
+                }
+            }
+
+            private Integer unary() {
+                if (accept("!")) {
+                    Integer value = unary();
+                    return value == UNKNOWN ? UNKNOWN : Integer.valueOf(value == 0 ? 1 : 0);
+                }
+                if (accept("(")) {
+                    Integer value = or();
+                    if (!accept(")")) {
+                        failed = true;
+                    }
+                    return value;
+                }
+                skipWhitespace();
+                if (pos >= text.length()) {
+                    failed = true;
+                    return UNKNOWN;
+                }
+                char c = text.charAt(pos);
+                if (Character.isDigit(c)) {
+                    return number();
+                }
+                if (Character.isJavaIdentifierStart(c)) {
+                    String ident = identifier();
+                    if (ident.equals("defined")) {
+                        boolean paren = accept("(");
+                        skipWhitespace();
+                        String macro = identifier();
+                        if (macro.isEmpty() || paren && !accept(")")) {
+                            failed = true;
+                            return UNKNOWN;
+                        }
+                        return defined(macro);
+                    }
+                    skipWhitespace();
+                    if (pos < text.length() && text.charAt(pos) == '(') {
+                        // function-like macro or builtin such as __has_include
+                        failed = true;
+                        return UNKNOWN;
+                    }
+                    return macro(ident);
+                }
+                failed = true;
+                return UNKNOWN;
+            }
+
+            private Integer macro(String name) {
+                String value = lookup(name);
+                if (value == null || value == UNCERTAIN) {
+                    return UNKNOWN;
+                }
+                if (value == UNDEFINED) {
+                    return 0;
+                }
+                if (value.isEmpty()) {
+                    return UNKNOWN;
+                }
+                try {
+                    return Integer.decode(StringUtils.stripEnd(value, "uUlL"));
+                } catch (NumberFormatException e) {
+                    return UNKNOWN;
+                }
+            }
+
+            private Integer number() {
+                int start = pos;
+                while (pos < text.length() && Character.isLetterOrDigit(text.charAt(pos))) {
+                    pos++;
+                }
+                try {
+                    return Integer.decode(StringUtils.stripEnd(text.substring(start, pos), "uUlL"));
+                } catch (NumberFormatException e) {
+                    failed = true;
+                    return UNKNOWN;
+                }
+            }
+
+            private String identifier() {
+                int start = pos;
+                while (pos < text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) {
+                    pos++;
+                }
+                return text.substring(start, pos);
+            }
+
+            private boolean accept(String token) {
+                skipWhitespace();
+                if (text.startsWith(token, pos)) {
+                    // don't confuse "!=" with "!" and "<=" with "<"
+                    if (token.length() == 1 && pos + 1 < text.length() && text.charAt(pos + 1) == '=' &&
+                            token.charAt(0) != '(' && token.charAt(0) != ')') {
+                        return false;
+                    }
+                    pos += token.length();
+                    return true;
+                }
+                return false;
+            }
+
+            private void skipWhitespace() {
+                while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Single #if ... #endif group
+     */
+    private static class Frame {
+        final boolean parentActive;
+        final boolean parentCertain;
+        int state;
+        boolean branchActive;
+        boolean branchCertain;
+
+        Frame(boolean parentActive, boolean parentCertain) {
+            this.parentActive = parentActive;
+            this.parentCertain = parentCertain;
+        }
+    }
+}
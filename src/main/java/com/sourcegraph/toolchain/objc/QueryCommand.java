@@ -0,0 +1,241 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.beust.jcommander.Parameter;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sourcegraph.toolchain.core.GraphIndex;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads graph output into {@link GraphIndex} and answers lookups (what is at file offset or in range, definition by
+ * path, references of path). Queries come from command line options, or, when there are none, from standard input one
+ * per line, so an editor or navigation backend can keep index loaded:
+ * <pre>
+ *     at FILE OFFSET
+ *     range FILE START END
+ *     def PATH
+ *     refs PATH
+ * </pre>
+ * Each answer is written as a single JSON line {"Query": ..., "Refs"|"Defs": [...]}, load time, heap taken by index
+ * and lookup latency are logged
+ */
+public class QueryCommand {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryCommand.class);
+
+    @Parameter(names = {"--graph"}, description = "The path to graph output (JSON) to load", required = true)
+    String graph;
+
+    @Parameter(names = {"--at"}, description = "Finds references and definitions at FILE:OFFSET")
+    List<String> at = new ArrayList<>();
+
+    @Parameter(names = {"--range"}, description = "Finds references and definitions overlapping FILE:START-END (inclusive)")
+    List<String> range = new ArrayList<>();
+
+    @Parameter(names = {"--def"}, description = "Finds definition by path")
+    List<String> def = new ArrayList<>();
+
+    @Parameter(names = {"--refs"}, description = "Finds references to definition path, of the current unit unless --repo, --unit or --unit-type are set")
+    List<String> refs = new ArrayList<>();
+
+    @Parameter(names = {"--repo"}, description = "The repository of definitions --refs point to")
+    String repo;
+
+    @Parameter(names = {"--unit"}, description = "The source unit of definitions --refs point to")
+    String unit;
+
+    @Parameter(names = {"--unit-type"}, description = "The source unit type of definitions --refs point to")
+    String unitType;
+
+    private final Gson gson = new Gson();
+
+    private int queries;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * Main method
+     */
+    public void Execute() {
+        GraphIndex index;
+        try {
+            long before = usedHeap();
+            long start = System.nanoTime();
+            index = GraphIndex.load(new File(graph));
+            long loadMillis = (System.nanoTime() - start) / 1000000;
+            long heap = Math.max(0, usedHeap() - before);
+            LOGGER.info("Loaded {} definition(s) and {} reference(s) from {} in {} ms, index takes {} MB of heap " +
+                            "({} MB per million references)",
+                    index.getDefCount(),
+                    index.getRefCount(),
+                    graph,
+                    loadMillis,
+                    heap >> 20,
+                    index.getRefCount() == 0 ? 0 :
+                            String.format("%.1f", heap * 1000000.0 / index.getRefCount() / (1 << 20)));
+        } catch (IOException e) {
+            LOGGER.error("Failed to load graph output {}", graph, e);
+            System.exit(1);
+            return;
+        }
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out,
+                StandardCharsets.UTF_8)));
+        try {
+            boolean any = false;
+            for (String q : at) {
+                int colon = q.lastIndexOf(':');
+                answer(index, "at", q, colon < 0 ? null : new String[]{q.substring(0, colon), q.substring(colon + 1)}, out);
+                any = true;
+            }
+            for (String q : range) {
+                int colon = q.lastIndexOf(':');
+                String[] bounds = colon < 0 ? null : StringUtils.split(q.substring(colon + 1), '-');
+                answer(index, "range", q, bounds == null || bounds.length != 2 ? null :
+                        new String[]{q.substring(0, colon), bounds[0], bounds[1]}, out);
+                any = true;
+            }
+            for (String q : def) {
+                answer(index, "def", q, new String[]{q}, out);
+                any = true;
+            }
+            for (String q : refs) {
+                answer(index, "refs", q, new String[]{q}, out);
+                any = true;
+            }
+            if (!any) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String[] parts = StringUtils.split(line, null, 2);
+                    String args = parts.length > 1 ? parts[1].trim() : StringUtils.EMPTY;
+                    answer(index, parts[0], line, split(parts[0], args), out);
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to read queries", e);
+            System.exit(1);
+        } finally {
+            out.flush();
+        }
+        if (queries > 0) {
+            LOGGER.info("Answered {} quer(ies), mean {} us, max {} us",
+                    queries,
+                    totalNanos / queries / 1000,
+                    maxNanos / 1000);
+        }
+    }
+
+    /**
+     * Splits standard input query arguments. File names may contain spaces, so numbers are taken from the end
+     */
+    private static String[] split(String command, String args) {
+        switch (command) {
+            case "at": {
+                int last = args.lastIndexOf(' ');
+                return last < 0 ? null : new String[]{args.substring(0, last), args.substring(last + 1)};
+            }
+            case "range": {
+                int last = args.lastIndexOf(' ');
+                int first = last < 0 ? -1 : args.lastIndexOf(' ', last - 1);
+                if (first < 0) {
+                    return null;
+                }
+                return new String[]{args.substring(0, first), args.substring(first + 1, last), args.substring(last + 1)};
+            }
+            default:
+                return new String[]{args};
+        }
+    }
+
+    /**
+     * Runs query and writes its answer
+     * @param index index to query
+     * @param command query type
+     * @param query query as given, echoed back
+     * @param args query arguments, null if query is malformed
+     * @param out destination
+     */
+    private void answer(GraphIndex index, String command, String query, String[] args, PrintWriter out) {
+        JsonObject answer = new JsonObject();
+        answer.addProperty("Query", query);
+        List<GraphIndex.Reference> foundRefs = null;
+        List<GraphIndex.Definition> foundDefs = null;
+        // latency covers lookup only, not parsing of query or serialization of answer
+        long nanos = 0;
+        try {
+            if (args == null) {
+                throw new IllegalArgumentException("expected FILE and offset(s)");
+            }
+            switch (command) {
+                case "at": {
+                    int offset = Integer.parseInt(args[1].trim());
+                    long start = System.nanoTime();
+                    foundRefs = index.refsAt(args[0], offset);
+                    foundDefs = index.defsIn(args[0], offset, offset);
+                    nanos = System.nanoTime() - start;
+                    break;
+                }
+                case "range": {
+                    int from = Integer.parseInt(args[1].trim());
+                    int to = Integer.parseInt(args[2].trim());
+                    long start = System.nanoTime();
+                    foundRefs = index.refsIn(args[0], from, to);
+                    foundDefs = index.defsIn(args[0], from, to);
+                    nanos = System.nanoTime() - start;
+                    break;
+                }
+                case "def": {
+                    long start = System.nanoTime();
+                    GraphIndex.Definition definition = index.def(args[0]);
+                    nanos = System.nanoTime() - start;
+                    foundDefs = new ArrayList<>();
+                    if (definition != null) {
+                        foundDefs.add(definition);
+                    }
+                    break;
+                }
+                case "refs": {
+                    long start = System.nanoTime();
+                    foundRefs = index.refs(repo, unitType, unit, args[0]);
+                    nanos = System.nanoTime() - start;
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unknown query, expected at, range, def or refs");
+            }
+        } catch (IllegalArgumentException e) {
+            answer.addProperty("Error", e.getMessage());
+        }
+        if (foundRefs != null) {
+            answer.add("Refs", gson.toJsonTree(foundRefs));
+        }
+        if (foundDefs != null) {
+            answer.add("Defs", gson.toJsonTree(foundDefs));
+        }
+        queries++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+        LOGGER.debug("Query {} took {} us", query, nanos / 1000);
+        out.println(gson.toJson(answer));
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -6,6 +6,8 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -15,6 +17,10 @@ public class ScanCommand {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ScanCommand.class);
 
+    private static final String UNIT_TYPE = "ObjectiveC";
+
+    private static final String[] SOURCE_EXTENSIONS = new String[]{".h", ".m", ".mm"};
+
     @Parameter(names = {"--repo"}, description = "The URI of the repository that contains the directory tree being scanned")
     String repoURI;
 
@@ -27,26 +33,122 @@ public class ScanCommand {
     public void Execute() {
 
         try {
-            if (repoURI == null) {
-                repoURI = StringUtils.EMPTY;
-            }
-            if (subdir == null) {
-                subdir = ".";
-            }
+            JSONUtil.writeJSON(scan());
+        } catch (Exception e) {
+            LOGGER.error("Unexpected error occurred while collecting source units", e);
+            System.exit(1);
+        }
+    }
 
+    /**
+     * Collects source units in current working directory
+     * @return normalized source units
+     * @throws IOException if lockfiles can't be read
+     */
+    Collection<SourceUnit> scan() throws IOException {
+        if (repoURI == null) {
+            repoURI = StringUtils.EMPTY;
+        }
+        if (subdir == null) {
+            subdir = ".";
+        }
+
+        List<String> files = ScanUtil.scanFiles(PathUtil.CWD.toAbsolutePath().toString(), SOURCE_EXTENSIONS);
+        Collection<RawDependency> lockfileDependencies = Lockfiles.read(PathUtil.CWD.toFile());
+
+        Collection<SourceUnit> units = new ArrayList<>(getTargetUnits(files, lockfileDependencies));
+        List<String> unclaimed = getUnclaimedFiles(files, units);
+        if (units.isEmpty() || !unclaimed.isEmpty()) {
+            // files no target covers (for example, pod sources reachable only through skipped Pods project) or
+            // all files if there are no targets
             SourceUnit unit = new SourceUnit();
-            unit.Type = "ObjectiveC";
+            unit.Type = UNIT_TYPE;
             unit.Name = ".";
             unit.Dir = subdir;
-            unit.Files = ScanUtil.scanFiles(PathUtil.CWD.toAbsolutePath().toString(), new String[] {".h", ".m", ".mm"});
+            unit.Files = units.isEmpty() ? files : new ArrayList<>(new SourceTree(files).getImportClosure(unclaimed));
+            unit.Dependencies.addAll(lockfileDependencies);
+            units.add(unit);
+        }
+        normalize(units);
+        return units;
+    }
 
-            Collection<SourceUnit> units = Collections.singleton(unit);
-            normalize(units);
-            JSONUtil.writeJSON(units);
-        } catch (Exception e) {
-            LOGGER.error("Unexpected error occurred while collecting source units", e);
-            System.exit(1);
+    /**
+     * Makes source unit for every target of every Xcode project found. Unit includes files from target's build phases
+     * plus headers they transitively import, target's header search paths (Data.HeaderSearchPaths) and
+     * dependencies on other targets of the same project
+     * @param files all source files found
+     * @param lockfileDependencies dependencies from CocoaPods and Carthage lockfiles, shared by all targets
+     * @return source units, empty if there are no Xcode projects or they define no targets
+     */
+    private static Collection<SourceUnit> getTargetUnits(Collection<String> files,
+                                                         Collection<RawDependency> lockfileDependencies) {
+        List<XcodeProject> projects = new ArrayList<>();
+        Map<String, Integer> nameCounts = new HashMap<>();
+        for (File projectFile : XcodeProject.find(PathUtil.CWD.toFile())) {
+            try {
+                XcodeProject project = new XcodeProject(projectFile);
+                projects.add(project);
+                for (XcodeProject.Target target : project.getTargets()) {
+                    nameCounts.merge(target.name, 1, Integer::sum);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to parse Xcode project {}", projectFile, e);
+            }
+        }
+        if (projects.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // targets usually share search paths, no need to scan files for each of them
+        Map<Set<String>, SourceTree> trees = new HashMap<>();
+        Collection<SourceUnit> units = new ArrayList<>();
+        for (XcodeProject project : projects) {
+            for (XcodeProject.Target target : project.getTargets()) {
+                SourceTree tree = trees.computeIfAbsent(target.headerSearchPaths,
+                        searchPaths -> new SourceTree(files, searchPaths));
+                SourceUnit unit = new SourceUnit();
+                unit.Type = UNIT_TYPE;
+                unit.Name = getUnitName(project, target.name, nameCounts);
+                unit.Dir = project.getSourceRoot().getPath();
+                unit.Files = new ArrayList<>(tree.getImportClosure(target.files));
+                unit.Data.put("HeaderSearchPaths", new ArrayList<>(target.headerSearchPaths));
+                String projectFile = project.getFile().getPath();
+                for (String dependency : target.dependencies) {
+                    unit.Dependencies.add(new RawDependency(XcodeProject.TARGET_DEPENDENCY,
+                            getUnitName(project, dependency, nameCounts),
+                            StringUtils.EMPTY,
+                            "target",
+                            projectFile));
+                }
+                unit.Dependencies.addAll(lockfileDependencies);
+                units.add(unit);
+                LOGGER.debug("Target {} of {}: {} file(s)", unit.Name, projectFile, unit.Files.size());
+            }
+        }
+        return units;
+    }
+
+    /**
+     * @param files all source files found
+     * @param units target units
+     * @return files that belong to none of given units
+     */
+    private static List<String> getUnclaimedFiles(Collection<String> files, Collection<SourceUnit> units) {
+        Set<String> claimed = new HashSet<>();
+        for (SourceUnit unit : units) {
+            claimed.addAll(unit.Files);
         }
+        return files.stream().
+                filter(file -> !claimed.contains(PathUtil.relativizeCwd(file))).
+                collect(Collectors.toList());
+    }
+
+    /**
+     * @return target name, prefixed with project name if several projects define targets with the same name
+     */
+    private static String getUnitName(XcodeProject project, String target, Map<String, Integer> nameCounts) {
+        return nameCounts.getOrDefault(target, 0) > 1 ? project.getName() + '/' + target : target;
     }
 
     /**
@@ -0,0 +1,150 @@
+package com.sourcegraph.toolchain.objc;
+
+import java.util.Arrays;
+
+/**
+ * Flat, array-backed table of local variable bindings.
+ * Bindings are appended to parallel arrays, frames are just marks (number of bindings at frame entry),
+ * so entering or leaving an empty frame costs nothing. Every name maps (through open-addressing table)
+ * to its innermost binding and every binding points to the binding of the same name it shadows,
+ * so lookup does not scan frames. Names are interned, keys are compared by identity. Each binding keeps definition
+ * key of its variable, computed once when variable is declared
+ */
+class ScopeTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * No binding
+     */
+    static final int NONE = -1;
+
+    // bindings
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] types = new String[INITIAL_CAPACITY];
+    private String[] defKeys = new String[INITIAL_CAPACITY];
+    private int[] shadowed = new int[INITIAL_CAPACITY];
+    private int size;
+
+    // frames, each one holds number of bindings at frame entry
+    private int[] frames = new int[16];
+    private int depth;
+
+    // name -> innermost binding, open addressing with linear probing
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private int[] heads = new int[INITIAL_CAPACITY];
+    private int keyCount;
+
+    /**
+     * Opens new frame
+     */
+    void enter() {
+        if (depth == frames.length) {
+            frames = grow(frames);
+        }
+        frames[depth++] = size;
+    }
+
+    /**
+     * Closes innermost frame dropping all its bindings
+     */
+    void exit() {
+        if (depth == 0) {
+            return;
+        }
+        int mark = frames[--depth];
+        while (size > mark) {
+            size--;
+            heads[slot(names[size])] = shadowed[size];
+            names[size] = null;
+            types[size] = null;
+            defKeys[size] = null;
+        }
+    }
+
+    /**
+     * Binds name in the innermost frame
+     * @param name variable name
+     * @param type variable type, may be null
+     * @param defKey definition key of variable
+     */
+    void define(String name, String type, String defKey) {
+        if (size == names.length) {
+            int capacity = size << 1;
+            names = Arrays.copyOf(names, capacity);
+            types = Arrays.copyOf(types, capacity);
+            defKeys = Arrays.copyOf(defKeys, capacity);
+            shadowed = Arrays.copyOf(shadowed, capacity);
+        }
+        name = name.intern();
+        int slot = slot(name);
+        if (keys[slot] == null) {
+            keys[slot] = name;
+            heads[slot] = NONE;
+            if (++keyCount << 1 > keys.length) {
+                rehash();
+                slot = slot(name);
+            }
+        }
+        names[size] = name;
+        types[size] = type;
+        defKeys[size] = defKey;
+        shadowed[size] = heads[slot];
+        heads[slot] = size++;
+    }
+
+    /**
+     * @param name variable name
+     * @return innermost binding of given name or {@link #NONE}
+     */
+    int lookup(String name) {
+        int mask = keys.length - 1;
+        for (int i = name.hashCode() & mask; ; i = (i + 1) & mask) {
+            String key = keys[i];
+            if (key == null) {
+                return NONE;
+            }
+            if (key.equals(name)) {
+                return heads[i];
+            }
+        }
+    }
+
+    String type(int binding) {
+        return types[binding];
+    }
+
+    String defKey(int binding) {
+        return defKeys[binding];
+    }
+
+    /**
+     * @return slot of interned name, either the one that holds it or the free one where it should go
+     */
+    private int slot(String name) {
+        int mask = keys.length - 1;
+        int i = name.hashCode() & mask;
+        while (keys[i] != null && keys[i] != name) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash() {
+        String[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = new String[oldKeys.length << 1];
+        heads = new int[oldKeys.length << 1];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    private static int[] grow(int[] array) {
+        return Arrays.copyOf(array, array.length << 1);
+    }
+}
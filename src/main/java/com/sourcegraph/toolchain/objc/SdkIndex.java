@@ -0,0 +1,328 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.sourcegraph.toolchain.core.MappedFile;
+import com.sourcegraph.toolchain.core.ResolvedTarget;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Prebuilt index of framework (SDK) symbols: classes, protocols, selectors and their owners, property types,
+ * superclass links and adopted protocols. Generated once from framework headers and loaded at graph startup,
+ * so receivers typed with framework classes can be resolved and references to framework symbols can point
+ * to framework's source unit instead of nonexistent local definitions.
+ * <p>
+ * File format (big-endian): magic, version, string table (count, then length-prefixed UTF-8 strings),
+ * target (repo, unit, unit type, version as string ids, -1 for null), then sections that refer to strings by id:
+ * types, protocols, (class, superclass) pairs, (class, protocol) pairs, selectors with owners,
+ * (class, property, type) triples. Every section starts with entry count
+ */
+class SdkIndex {
+
+    private static final int MAGIC = 0x4F424A58;
+
+    private static final int VERSION = 1;
+
+    private ResolvedTarget target;
+
+    private Set<String> types = new HashSet<>();
+    private Set<String> protocols = new HashSet<>();
+    private Map<String, String> superclasses = new HashMap<>();
+    private Map<String, Set<String>> adopted = new HashMap<>();
+    private Map<String, Set<String>> selectors = new HashMap<>();
+    private Map<String, Map<String, String>> properties = new HashMap<>();
+
+    // definition keys of all framework symbols
+    private Set<String> keys;
+
+    private SdkIndex(ResolvedTarget target) {
+        this.target = target;
+    }
+
+    /**
+     * Collects index from symbol tables of graph that processed framework headers
+     * @param graph graph that processed framework headers
+     * @param target framework's source unit
+     * @return new index
+     */
+    static SdkIndex collect(ObjCGraph graph, ResolvedTarget target) {
+        SdkIndex index = new SdkIndex(target);
+        index.types.addAll(graph.types);
+        index.protocols.addAll(graph.selectors.getProtocols());
+        index.superclasses.putAll(graph.hierarchy.getSuperclasses());
+        for (Map.Entry<String, Set<String>> entry : graph.hierarchy.getProtocols().entrySet()) {
+            index.adopted.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        for (Map.Entry<String, Set<String>> entry : graph.selectors.getSelectors().entrySet()) {
+            index.selectors.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        for (Map.Entry<String, Map<String, String>> entry : graph.properties.entrySet()) {
+            index.properties.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return index;
+    }
+
+    /**
+     * Loads index by mapping file into memory
+     * @param file index file
+     * @return loaded index
+     * @throws IOException
+     */
+    static SdkIndex load(File file) throws IOException {
+        try (MappedFile data = new MappedFile(file)) {
+            Cursor cursor = new Cursor(data);
+            if (cursor.nextInt() != MAGIC) {
+                throw new IOException(file + " is not an SDK index");
+            }
+            int version = cursor.nextInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported SDK index version " + version + " in " + file);
+            }
+            String[] strings = new String[cursor.nextInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = cursor.nextString();
+            }
+            cursor.strings = strings;
+
+            SdkIndex index = new SdkIndex(new ResolvedTarget(cursor.nextRef(),
+                    cursor.nextRef(),
+                    cursor.nextRef(),
+                    cursor.nextRef()));
+            for (int i = cursor.nextInt(); i > 0; i--) {
+                index.types.add(cursor.nextRef());
+            }
+            for (int i = cursor.nextInt(); i > 0; i--) {
+                index.protocols.add(cursor.nextRef());
+            }
+            for (int i = cursor.nextInt(); i > 0; i--) {
+                index.superclasses.put(cursor.nextRef(), cursor.nextRef());
+            }
+            for (int i = cursor.nextInt(); i > 0; i--) {
+                index.adopted.computeIfAbsent(cursor.nextRef(), k -> new HashSet<>()).add(cursor.nextRef());
+            }
+            for (int i = cursor.nextInt(); i > 0; i--) {
+                String selector = cursor.nextRef();
+                int count = cursor.nextInt();
+                Set<String> owners = new HashSet<>(count);
+                for (int j = 0; j < count; j++) {
+                    owners.add(cursor.nextRef());
+                }
+                index.selectors.put(selector, owners);
+            }
+            for (int i = cursor.nextInt(); i > 0; i--) {
+                index.properties.computeIfAbsent(cursor.nextRef(), k -> new HashMap<>()).
+                        put(cursor.nextRef(), cursor.nextRef());
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Writes index
+     * @param file destination file
+     * @throws IOException
+     */
+    void write(File file) throws IOException {
+        // string table, sorted to make output reproducible
+        Set<String> strings = new TreeSet<>();
+        addTarget(strings);
+        strings.addAll(types);
+        strings.addAll(protocols);
+        strings.addAll(superclasses.keySet());
+        strings.addAll(superclasses.values());
+        for (Map.Entry<String, Set<String>> entry : adopted.entrySet()) {
+            strings.add(entry.getKey());
+            strings.addAll(entry.getValue());
+        }
+        for (Map.Entry<String, Set<String>> entry : selectors.entrySet()) {
+            strings.add(entry.getKey());
+            strings.addAll(entry.getValue());
+        }
+        for (Map.Entry<String, Map<String, String>> entry : properties.entrySet()) {
+            strings.add(entry.getKey());
+            strings.addAll(entry.getValue().keySet());
+            strings.addAll(entry.getValue().values());
+        }
+        Map<String, Integer> ids = new HashMap<>();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            for (String s : strings) {
+                ids.put(s, ids.size());
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            writeRef(out, ids, target.ToRepoCloneURL);
+            writeRef(out, ids, target.ToUnit);
+            writeRef(out, ids, target.ToUnitType);
+            writeRef(out, ids, target.ToVersionString);
+
+            writeRefs(out, ids, new TreeSet<>(types));
+            writeRefs(out, ids, new TreeSet<>(protocols));
+
+            out.writeInt(superclasses.size());
+            for (Map.Entry<String, String> entry : new TreeMap<>(superclasses).entrySet()) {
+                writeRef(out, ids, entry.getKey());
+                writeRef(out, ids, entry.getValue());
+            }
+
+            int count = 0;
+            for (Set<String> values : adopted.values()) {
+                count += values.size();
+            }
+            out.writeInt(count);
+            for (Map.Entry<String, Set<String>> entry : new TreeMap<>(adopted).entrySet()) {
+                for (String protocol : new TreeSet<>(entry.getValue())) {
+                    writeRef(out, ids, entry.getKey());
+                    writeRef(out, ids, protocol);
+                }
+            }
+
+            out.writeInt(selectors.size());
+            for (Map.Entry<String, Set<String>> entry : new TreeMap<>(selectors).entrySet()) {
+                writeRef(out, ids, entry.getKey());
+                writeRefs(out, ids, new TreeSet<>(entry.getValue()));
+            }
+
+            count = 0;
+            for (Map<String, String> values : properties.values()) {
+                count += values.size();
+            }
+            out.writeInt(count);
+            for (Map.Entry<String, Map<String, String>> entry : new TreeMap<>(properties).entrySet()) {
+                for (Map.Entry<String, String> property : new TreeMap<>(entry.getValue()).entrySet()) {
+                    writeRef(out, ids, entry.getKey());
+                    writeRef(out, ids, property.getKey());
+                    writeRef(out, ids, property.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes framework symbols known to graph: types, selectors, class hierarchy and property types
+     * @param graph graph to populate
+     */
+    void apply(ObjCGraph graph) {
+        graph.types.addAll(types);
+        for (String protocol : protocols) {
+            graph.selectors.addProtocol(protocol);
+        }
+        for (Map.Entry<String, Set<String>> entry : selectors.entrySet()) {
+            for (String owner : entry.getValue()) {
+                graph.selectors.add(entry.getKey(), owner);
+            }
+        }
+        for (Map.Entry<String, String> entry : superclasses.entrySet()) {
+            graph.hierarchy.setSuperclass(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Set<String>> entry : adopted.entrySet()) {
+            for (String protocol : entry.getValue()) {
+                graph.hierarchy.addProtocol(entry.getKey(), protocol);
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> entry : properties.entrySet()) {
+            graph.properties.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).putAll(entry.getValue());
+        }
+    }
+
+    /**
+     * @param key definition key
+     * @return true if key denotes framework's class, protocol, method or property
+     */
+    boolean isFrameworkSymbol(String key) {
+        if (keys == null) {
+            Set<String> ret = new HashSet<>(types);
+            for (Map.Entry<String, Set<String>> entry : selectors.entrySet()) {
+                for (String owner : entry.getValue()) {
+                    ret.add(owner + '/' + entry.getKey());
+                }
+            }
+            for (Map.Entry<String, Map<String, String>> entry : properties.entrySet()) {
+                for (String property : entry.getValue().keySet()) {
+                    ret.add(entry.getKey() + '/' + property + "()");
+                }
+            }
+            keys = ret;
+        }
+        return keys.contains(key);
+    }
+
+    /**
+     * @return framework's source unit
+     */
+    ResolvedTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * @return number of known framework types
+     */
+    int getTypeCount() {
+        return types.size();
+    }
+
+    /**
+     * @return number of known framework selectors
+     */
+    int getSelectorCount() {
+        return selectors.size();
+    }
+
+    private void addTarget(Set<String> strings) {
+        for (String s : new String[]{target.ToRepoCloneURL, target.ToUnit, target.ToUnitType, target.ToVersionString}) {
+            if (s != null) {
+                strings.add(s);
+            }
+        }
+    }
+
+    private static void writeRef(DataOutputStream out, Map<String, Integer> ids, String s) throws IOException {
+        out.writeInt(s == null ? -1 : ids.get(s));
+    }
+
+    private static void writeRefs(DataOutputStream out, Map<String, Integer> ids, Collection<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeRef(out, ids, s);
+        }
+    }
+
+    /**
+     * Sequential reader over mapped index
+     */
+    private static class Cursor {
+
+        private final MappedFile data;
+        private long position;
+        String[] strings;
+
+        Cursor(MappedFile data) {
+            this.data = data;
+        }
+
+        int nextInt() {
+            int ret = data.getInt(position);
+            position += 4;
+            return ret;
+        }
+
+        String nextString() {
+            int length = nextInt();
+            String ret = data.getString(position, length);
+            position += length;
+            return ret;
+        }
+
+        String nextRef() {
+            int id = nextInt();
+            return id < 0 ? null : strings[id];
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.beust.jcommander.Parameter;
+import com.sourcegraph.toolchain.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds prebuilt framework symbol index from a directory of framework headers (for example a copy of SDK)
+ */
+public class SdkIndexCommand {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SdkIndexCommand.class);
+
+    @Parameter(names = {"--headers"}, description = "The path to a directory with framework headers", required = true)
+    String headers;
+
+    @Parameter(names = {"--output"}, description = "The path to write index to", required = true)
+    String output;
+
+    @Parameter(names = {"--repo"}, description = "The URI of the repository framework references should point to")
+    String repo;
+
+    @Parameter(names = {"--unit"}, description = "The name of the source unit framework references should point to")
+    String unit;
+
+    @Parameter(names = {"--unit-type"}, description = "The type of the source unit framework references should point to")
+    String unitType = "ObjectiveC";
+
+    @Parameter(names = {"--version"}, description = "Framework version")
+    String version;
+
+    @Parameter(names = {"-D", "--define"}, description = "Preprocessor macro to treat as defined when evaluating #if conditions, NAME or NAME=VALUE")
+    List<String> defines = new ArrayList<>();
+
+    /**
+     * Main method
+     */
+    public void Execute() {
+        long start = System.currentTimeMillis();
+        try {
+            List<String> files = ScanUtil.scanFiles(headers, new String[]{".h"});
+            LOGGER.info("Indexing {} framework header(s) in {}", files.size(), headers);
+
+            // only symbol tables are needed, references and definitions are dropped
+            ObjCGraph graph = new ObjCGraph(new GraphWriter() {
+                @Override
+                public void writeRef(Ref r) {
+                }
+
+                @Override
+                public void writeDef(Def s) {
+                }
+
+                @Override
+                public void flush() {
+                }
+            });
+            graph.preprocessor = Preprocessor.fromOptions(defines, new ArrayList<>());
+            graph.process(files);
+            graph.diagnostics.logSummary();
+
+            SdkIndex index = SdkIndex.collect(graph, new ResolvedTarget(repo, unit, unitType, version));
+            index.write(new File(output));
+            LOGGER.info("Wrote SDK index of {} type(s) and {} selector(s) to {} in {} ms",
+                    index.getTypeCount(),
+                    index.getSelectorCount(),
+                    output,
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            LOGGER.error("Failed to build SDK index", e);
+            System.exit(1);
+        }
+    }
+}
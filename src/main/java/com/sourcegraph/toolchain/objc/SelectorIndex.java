@@ -0,0 +1,202 @@
+package com.sourcegraph.toolchain.objc;
+
+import java.util.*;
+
+/**
+ * Maps selectors to classes and protocols that declare them, and to files declarations were found in. Used to
+ * resolve messages sent to receivers of unknown or dynamic (id, id&lt;Protocol&gt;) type: when selector is declared
+ * by the only class or protocol, or when it can be narrowed to one by receiver's declared protocols, message
+ * resolves to Owner/selector. Only declarations visible from file message is sent in (see {@link ImportGraph})
+ * take part, so result does not depend on which other files were graphed
+ */
+class SelectorIndex {
+
+    private static final String ID = "id";
+
+    // selector -> classes and protocols declaring it -> ids of files declarations were found in
+    private Map<String, Map<String, int[]>> owners = new HashMap<>();
+
+    private Set<String> protocols = new HashSet<>();
+
+    // incremented whenever new owner of a selector is registered
+    private int version;
+
+    /**
+     * Registers protocol name
+     * @param protocol protocol name
+     */
+    void addProtocol(String protocol) {
+        protocols.add(protocol);
+    }
+
+    /**
+     * @param name class or protocol name
+     * @return true if name denotes protocol
+     */
+    boolean isProtocol(String name) {
+        return protocols.contains(name);
+    }
+
+    /**
+     * @return all known protocols
+     */
+    Set<String> getProtocols() {
+        return Collections.unmodifiableSet(protocols);
+    }
+
+    /**
+     * @return selector -> classes and protocols declaring it
+     */
+    Map<String, Set<String>> getSelectors() {
+        Map<String, Set<String>> ret = new HashMap<>();
+        for (Map.Entry<String, Map<String, int[]>> entry : owners.entrySet()) {
+            ret.put(entry.getKey(), new HashSet<>(entry.getValue().keySet()));
+        }
+        return ret;
+    }
+
+    /**
+     * Registers method declaration visible from every file (framework method)
+     * @param selector method selector, for example "doThing:with:"
+     * @param owner class or protocol that declares method
+     */
+    void add(String selector, String owner) {
+        add(selector, owner, ImportGraph.GLOBAL);
+    }
+
+    /**
+     * Registers method declaration
+     * @param selector method selector, for example "doThing:with:"
+     * @param owner class or protocol that declares method
+     * @param file id of file method is declared in, {@link ImportGraph#GLOBAL} if visible from every file
+     */
+    void add(String selector, String owner, int file) {
+        Map<String, int[]> declarations = owners.computeIfAbsent(selector, k -> new HashMap<>(2));
+        int[] files = declarations.get(owner);
+        if (files == null) {
+            declarations.put(owner, new int[]{file});
+        } else {
+            for (int f : files) {
+                if (f == file) {
+                    return;
+                }
+            }
+            files = Arrays.copyOf(files, files.length + 1);
+            files[files.length - 1] = file;
+            declarations.put(owner, files);
+        }
+        version++;
+    }
+
+    /**
+     * @return number that changes whenever selector declarations are added, lets callers drop memoized lookups
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * @param selector method selector
+     * @return true if any class or protocol declares given selector
+     */
+    boolean isDeclared(String selector) {
+        return owners.containsKey(selector);
+    }
+
+    /**
+     * @param selector method selector
+     * @param owner class or protocol name
+     * @param visible ids of files declarations may come from, null if all are visible
+     * @return true if owner declares selector in one of visible files
+     */
+    boolean declares(String selector, String owner, BitSet visible) {
+        Map<String, int[]> declarations = owners.get(selector);
+        return declarations != null && isVisible(declarations.get(owner), visible);
+    }
+
+    /**
+     * Resolves message sent to receiver of dynamic or unknown type
+     * @param selector message selector
+     * @param declaredProtocols protocols receiver is known to conform to
+     * @param visible ids of files declarations may come from, null if all are visible
+     * @return Owner/selector definition key or null if selector is unknown or ambiguous
+     */
+    String resolve(String selector, Collection<String> declaredProtocols, BitSet visible) {
+        Map<String, int[]> declarations = owners.get(selector);
+        if (declarations == null) {
+            return null;
+        }
+        String only = null;
+        int count = 0;
+        for (Map.Entry<String, int[]> entry : declarations.entrySet()) {
+            if (isVisible(entry.getValue(), visible)) {
+                only = entry.getKey();
+                count++;
+            }
+        }
+        if (count == 1) {
+            return only + '/' + selector;
+        }
+        if (count == 0) {
+            return null;
+        }
+        String match = null;
+        for (String protocol : declaredProtocols) {
+            if (isVisible(declarations.get(protocol), visible)) {
+                if (match != null) {
+                    return null;
+                }
+                match = protocol;
+            }
+        }
+        return match == null ? null : match + '/' + selector;
+    }
+
+    /**
+     * @param files ids of files declaration was found in, may be null
+     * @param visible ids of visible files, null if all are visible
+     * @return true if declaration was found in any visible file
+     */
+    private static boolean isVisible(int[] files, BitSet visible) {
+        if (files == null) {
+            return false;
+        }
+        for (int file : files) {
+            if (ImportGraph.isVisible(visible, file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param type type name as collected by grapher, may be null
+     * @return true if type tells nothing about receiver's class (unknown, id or id&lt;Protocol, ...&gt;)
+     */
+    static boolean isDynamic(String type) {
+        return type == null || type.equals(ID) || type.startsWith(ID + '<');
+    }
+
+    /**
+     * @param type type name as collected by grapher, for example id&lt;A,B&gt;, may be null
+     * @return protocols listed in type name
+     */
+    static Collection<String> getDeclaredProtocols(String type) {
+        if (type == null) {
+            return Collections.emptyList();
+        }
+        int start = type.indexOf('<');
+        int end = type.lastIndexOf('>');
+        if (start < 0 || end < start) {
+            return Collections.emptyList();
+        }
+        Collection<String> ret = new ArrayList<>();
+        for (String protocol : type.substring(start + 1, end).split(",")) {
+            protocol = protocol.trim();
+            if (!protocol.isEmpty()) {
+                ret.add(protocol);
+            }
+        }
+        return ret;
+    }
+}
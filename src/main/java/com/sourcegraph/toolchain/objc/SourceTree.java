@@ -1,28 +1,96 @@
 package com.sourcegraph.toolchain.objc;
 
-import org.apache.commons.io.IOUtils;
+import com.sourcegraph.toolchain.core.PathUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStreamReader;
+import java.util.*;
 
+/**
+ * Import graph of source unit files built by a quick textual scan of #import and #include directives
+ * (no lexing or parsing). Keeps both forward (file -> files it imports) and reverse (file -> files that import it)
+ * indexes
+ */
 public class SourceTree {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(SourceTree.class);
+
     private Collection<String> files;
 
+    private HeaderMap headers;
+
+    // file -> files it imports
     private Map<String, Collection<String>> dependencies = new HashMap<>();
 
+    // file -> files that import it
+    private Map<String, Collection<String>> dependents = new HashMap<>();
+
+    /**
+     * @param files source unit files
+     */
     public SourceTree(Collection<String> files) {
+        this(files, Collections.emptyList());
+    }
+
+    /**
+     * @param files source unit files
+     * @param headerSearchPaths header search paths used to resolve imported names
+     */
+    public SourceTree(Collection<String> files, Collection<String> headerSearchPaths) {
+        this.files = new HashSet<>();
         for (String file : files) {
+            this.files.add(PathUtil.relativizeCwd(file));
+        }
+        headers = new HeaderMap(this.files, headerSearchPaths);
+        for (String file : this.files) {
             collectDependencies(file);
         }
+    }
 
-        for (String file : files) {
-            collectDependencies(file);
+    /**
+     * @param changed changed (added, modified or deleted) files
+     * @return changed files plus all files that transitively import any of them
+     */
+    public Set<String> getAffectedFiles(Collection<String> changed) {
+        return closure(changed, dependents);
+    }
+
+    /**
+     * @param roots files to start from
+     * @return given files plus all unit files they transitively import
+     */
+    public Set<String> getImportClosure(Collection<String> roots) {
+        Set<String> ret = closure(roots, dependencies);
+        ret.retainAll(files);
+        return ret;
+    }
+
+    private Set<String> closure(Collection<String> roots, Map<String, Collection<String>> edges) {
+        Set<String> visited = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        for (String root : roots) {
+            String file = PathUtil.relativizeCwd(root);
+            if (visited.add(file)) {
+                queue.add(file);
+            }
         }
+        while (!queue.isEmpty()) {
+            Collection<String> next = edges.get(queue.poll());
+            if (next == null) {
+                continue;
+            }
+            for (String file : next) {
+                if (visited.add(file)) {
+                    queue.add(file);
+                }
+            }
+        }
+        return visited;
     }
 
     private void collectDependencies(String fileName) {
@@ -30,38 +98,27 @@ public class SourceTree {
         if (!file.isFile()) {
             return;
         }
-        try {
-            String source = IOUtils.toString(new FileInputStream(file));
-            collectImports(source, "#import");
-            collectImports(source, "#include");
-        } catch (IOException ex) {
-            // ignore
-        }
-    }
-
-    private void collectImports(String source, String prefix) {
-        int offset = 0;
-        int start;
-        int l = source.length();
-        while ((start = source.indexOf(prefix, offset)) >= 0) {
-            offset = start + prefix.length();
-            while (offset < l) {
-                char c = source.charAt(offset);
-                if (c == ' ' || c == '\t') {
-                    offset++;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.startsWith("#i")) {
+                    continue;
                 }
+                String dep = FileGrapher.importedFile(line);
+                if (dep == null) {
+                    continue;
+                }
+                String resolved = headers.resolve(dep, fileName);
+                // unlike dependencies, reverse index keeps files outside of unit to find importers of deleted files
+                dep = resolved != null ?
+                        resolved :
+                        PathUtil.relativizeCwd(PathUtil.concat(file.getParentFile(), dep).getPath());
+                dependencies.computeIfAbsent(fileName, k -> new LinkedHashSet<>()).add(dep);
+                dependents.computeIfAbsent(dep, k -> new LinkedHashSet<>()).add(fileName);
             }
-            if (offset == l) {
-                return;
-            }
-            char end = source.charAt(offset) == '"' ? '"' : '>';
-            int pos = source.indexOf(end, offset + 1);
-            if (pos < 0) {
-                return;
-            }
-            String dep = source.substring(offset + 1, pos);
-            dep = dep.substring(1, dep.length() - 1);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to collect imports of {}: {}", fileName, ex.getMessage());
         }
     }
 }
-
@@ -0,0 +1,53 @@
+package com.sourcegraph.toolchain.objc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches files being parsed, reports ones that got stuck and cancels their parse budget
+ */
+class Watchdog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Watchdog.class);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts watching parse of a single file
+     * @param budget file's budget to cancel when time is out
+     * @param timeout time budget in milliseconds, 0 means unlimited
+     * @return watch handle, should be cancelled when parsing is done, or null if there is nothing to watch
+     */
+    static ScheduledFuture<?> watch(ParseBudget budget, long timeout) {
+        if (timeout <= 0) {
+            return null;
+        }
+        return EXECUTOR.schedule(() -> {
+            LOGGER.warn("{} is still being parsed after {} ms ({} tokens), rule stack {}",
+                    budget.getFile(),
+                    timeout,
+                    budget.getTokens(),
+                    budget.ruleStack());
+            budget.cancel(ParseBudget.Limit.TIME, "time budget of " + timeout + " ms exceeded");
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching
+     * @param watch handle returned by watch()
+     */
+    static void release(ScheduledFuture<?> watch) {
+        if (watch != null) {
+            watch.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.sourcegraph.toolchain.objc;
+
+import com.sourcegraph.toolchain.core.PathUtil;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Targets of Xcode project (*.xcodeproj/project.pbxproj): source and header files, header search paths
+ * and dependencies on other targets of the same project
+ */
+class XcodeProject {
+
+    static final String PROJECT_FILE = "project.pbxproj";
+
+    /**
+     * Group ID of dependencies on other targets of the same project
+     */
+    static final String TARGET_DEPENDENCY = "xcode";
+
+    private static final String PROJECT_EXTENSION = ".xcodeproj";
+
+    // CocoaPods-generated project, its targets are covered by lockfile dependencies
+    private static final String PODS_DIR = "Pods";
+
+    private static final String[] TARGET_TYPES = new String[]{
+            "PBXNativeTarget", "PBXAggregateTarget", "PBXLegacyTarget"
+    };
+
+    private static final String[] SOURCE_EXTENSIONS = new String[]{".h", ".m", ".mm"};
+
+    private static final String[] HEADER_SEARCH_SETTINGS = new String[]{
+            "HEADER_SEARCH_PATHS", "USER_HEADER_SEARCH_PATHS"
+    };
+
+    /**
+     * Project file
+     */
+    private final File file;
+
+    /**
+     * Directory that holds *.xcodeproj ($(SRCROOT))
+     */
+    private final File sourceRoot;
+
+    private Map<String, Object> objects;
+
+    // object ID -> parent group ID
+    private Map<String, String> parents = new HashMap<>();
+
+    // object ID -> resolved path (or null)
+    private Map<String, File> paths = new HashMap<>();
+
+    private List<Target> targets = new ArrayList<>();
+
+    /**
+     * Reads and parses project file
+     * @param file project.pbxproj
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    XcodeProject(File file) throws IOException {
+        this.file = file;
+        this.sourceRoot = file.getAbsoluteFile().getParentFile().getParentFile();
+
+        char[] data;
+        int length = 0;
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            data = new char[(int) file.length() + 1];
+            int n;
+            while ((n = reader.read(data, length, data.length - length)) > 0) {
+                length += n;
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+            }
+        }
+        Object root = PlistParser.parse(data, length);
+        if (!(root instanceof Map)) {
+            throw new IOException(file + " is not a property list dictionary");
+        }
+        objects = map(((Map<String, Object>) root).get("objects"));
+        Map<String, Object> project = map(objects.get(string(((Map<String, Object>) root).get("rootObject"))));
+
+        for (Map.Entry<String, Object> entry : objects.entrySet()) {
+            Map<String, Object> object = map(entry.getValue());
+            for (String child : strings(object.get("children"))) {
+                parents.put(child, entry.getKey());
+            }
+        }
+
+        String projectDirPath = string(project.get("projectDirPath"));
+        File projectDir = StringUtils.isEmpty(projectDirPath) ? sourceRoot : PathUtil.concat(sourceRoot, projectDirPath);
+        Set<String> projectSearchPaths = headerSearchPaths(project);
+
+        Map<String, Target> byId = new LinkedHashMap<>();
+        for (String targetId : strings(project.get("targets"))) {
+            Map<String, Object> object = map(objects.get(targetId));
+            if (!ArrayUtils.contains(TARGET_TYPES, string(object.get("isa")))) {
+                continue;
+            }
+            Target target = new Target(string(object.get("name")));
+            for (String phaseId : strings(object.get("buildPhases"))) {
+                for (String buildFileId : strings(map(objects.get(phaseId)).get("files"))) {
+                    String fileRef = string(map(objects.get(buildFileId)).get("fileRef"));
+                    File path = fileRef == null ? null : path(fileRef, projectDir);
+                    if (path != null && StringUtils.endsWithAny(path.getName(), SOURCE_EXTENSIONS)) {
+                        target.files.add(PathUtil.relativizeCwd(path.getPath()));
+                    }
+                }
+            }
+            target.headerSearchPaths.addAll(projectSearchPaths);
+            target.headerSearchPaths.addAll(headerSearchPaths(object));
+            byId.put(targetId, target);
+        }
+        for (String targetId : byId.keySet()) {
+            Target target = byId.get(targetId);
+            for (String dependencyId : strings(map(objects.get(targetId)).get("dependencies"))) {
+                Target dependency = byId.get(string(map(objects.get(dependencyId)).get("target")));
+                if (dependency != null) {
+                    target.dependencies.add(dependency.name);
+                }
+            }
+            targets.add(target);
+        }
+        // parse tree is not needed anymore
+        objects = null;
+        paths = null;
+        parents = null;
+    }
+
+    /**
+     * Looks for Xcode projects in a given directory and its subdirectories, skipping CocoaPods workspace
+     * @param dir directory to search in
+     * @return project files found, sorted by path
+     */
+    static List<File> find(File dir) {
+        List<File> ret = new ArrayList<>();
+        find(dir, ret);
+        ret.sort(Comparator.comparing(File::getPath));
+        return ret;
+    }
+
+    private static void find(File dir, List<File> ret) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (!child.isDirectory() || child.getName().startsWith(".") || child.getName().equals(PODS_DIR)) {
+                continue;
+            }
+            if (child.getName().endsWith(PROJECT_EXTENSION)) {
+                File projectFile = new File(child, PROJECT_FILE);
+                if (projectFile.isFile()) {
+                    ret.add(projectFile);
+                }
+            } else {
+                find(child, ret);
+            }
+        }
+    }
+
+    /**
+     * @return project name (name of .xcodeproj directory without extension)
+     */
+    String getName() {
+        return StringUtils.removeEnd(file.getAbsoluteFile().getParentFile().getName(), PROJECT_EXTENSION);
+    }
+
+    /**
+     * @return directory that holds project ($(SRCROOT))
+     */
+    File getSourceRoot() {
+        return sourceRoot;
+    }
+
+    /**
+     * @return project file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return project targets
+     */
+    List<Target> getTargets() {
+        return targets;
+    }
+
+    /**
+     * Resolves path of file reference or group according to its source tree
+     * @param id object ID
+     * @param projectDir project directory
+     * @return absolute path or null if it can't be resolved (for example, it's relative to SDK or build products)
+     */
+    private File path(String id, File projectDir) {
+        if (paths.containsKey(id)) {
+            return paths.get(id);
+        }
+        Map<String, Object> object = map(objects.get(id));
+        String path = string(object.get("path"));
+        String sourceTree = string(object.get("sourceTree"));
+        File ret = null;
+        if (sourceTree == null || sourceTree.equals("<group>")) {
+            String parent = parents.get(id);
+            File base = parent == null ? projectDir : path(parent, projectDir);
+            if (base != null) {
+                ret = path == null ? base : PathUtil.concat(base, path);
+            }
+        } else if (sourceTree.equals("SOURCE_ROOT")) {
+            ret = path == null ? sourceRoot : PathUtil.concat(sourceRoot, path);
+        } else if (sourceTree.equals("<absolute>") && path != null) {
+            ret = new File(path);
+        }
+        paths.put(id, ret);
+        return ret;
+    }
+
+    /**
+     * @param object project or target
+     * @return header search paths from all build configurations of a given object, relative to current working
+     * directory. Recursive paths keep trailing /**
+     */
+    private Set<String> headerSearchPaths(Map<String, Object> object) {
+        Set<String> ret = new LinkedHashSet<>();
+        Map<String, Object> configurationList = map(objects.get(string(object.get("buildConfigurationList"))));
+        for (String configurationId : strings(configurationList.get("buildConfigurations"))) {
+            Map<String, Object> settings = map(map(objects.get(configurationId)).get("buildSettings"));
+            for (String setting : HEADER_SEARCH_SETTINGS) {
+                Object value = settings.get(setting);
+                Collection<String> entries = value instanceof String ?
+                        Arrays.asList(StringUtils.split((String) value)) :
+                        strings(value);
+                for (String entry : entries) {
+                    String path = expandSearchPath(entry);
+                    if (path != null) {
+                        ret.add(path);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param entry header search path entry
+     * @return entry with known variables expanded, relative to current working directory, null if entry refers
+     * to unknown variables
+     */
+    private String expandSearchPath(String entry) {
+        entry = StringUtils.strip(entry, "\"");
+        if (entry.isEmpty() || entry.equals("$(inherited)")) {
+            return null;
+        }
+        String root = sourceRoot.getPath();
+        for (String variable : new String[]{"SRCROOT", "PROJECT_DIR", "SOURCE_ROOT"}) {
+            entry = entry.replace("$(" + variable + ')', root).replace("${" + variable + '}', root);
+        }
+        entry = entry.replace("$(PODS_ROOT)", root + "/Pods").replace("${PODS_ROOT}", root + "/Pods");
+        if (entry.contains("$")) {
+            return null;
+        }
+        boolean recursive = entry.endsWith("/**");
+        if (recursive) {
+            entry = entry.substring(0, entry.length() - 3);
+        }
+        File path = new File(entry);
+        if (!path.isAbsolute()) {
+            path = PathUtil.concat(sourceRoot, entry);
+        }
+        String ret = PathUtil.relativizeCwd(path.getPath());
+        return recursive ? ret + "/**" : ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(Object o) {
+        return o instanceof Map ? (Map<String, Object>) o : Collections.emptyMap();
+    }
+
+    private static String string(Object o) {
+        return o instanceof String ? (String) o : null;
+    }
+
+    private static Collection<String> strings(Object o) {
+        if (!(o instanceof List)) {
+            return Collections.emptyList();
+        }
+        Collection<String> ret = new ArrayList<>();
+        for (Object item : (List<?>) o) {
+            if (item instanceof String) {
+                ret.add((String) item);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Project target
+     */
+    static class Target {
+
+        final String name;
+
+        /**
+         * Source and header files of build phases, relative to current working directory
+         */
+        final Set<String> files = new LinkedHashSet<>();
+
+        /**
+         * Header search paths, relative to current working directory
+         */
+        final Set<String> headerSearchPaths = new LinkedHashSet<>();
+
+        /**
+         * Names of targets of the same project this one depends on
+         */
+        final Set<String> dependencies = new LinkedHashSet<>();
+
+        Target(String name) {
+            this.name = name;
+        }
+    }
+}